@@ -0,0 +1,114 @@
+package io.geewit.cache.support;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation benchmark for the {@link CompositeCache} read path.
+ *
+ * <p>Run through {@code gradle jmh} (the {@code gc} profiler is enabled in the
+ * build), or through {@link #main} which additionally fails when an L1 hit or a
+ * full miss allocates anything, as reported by {@code gc.alloc.rate.norm}.
+ * The guarantee covers {@link CompositeCache#lookup} and the typed
+ * {@link CompositeCache#get(Object, Class) get}, not {@link CompositeCache#get(Object)},
+ * which allocates the value wrapper it returns.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompositeCacheLookupBenchmark {
+
+    /**
+     * Allowed bytes per operation for paths that must not allocate; leaves
+     * room for the profiler's own rounding noise.
+     */
+    private static final double ALLOCATION_FREE_THRESHOLD = 1.0;
+
+    private static final String L1_KEY = "l1";
+
+    private static final String L2_KEY = "l2";
+
+    private static final String MISSING_KEY = "missing";
+
+    private Cache l1;
+
+    private CompositeCache compositeCache;
+
+
+    @Setup
+    public void setup() {
+        this.l1 = new ConcurrentMapCache("l1", false);
+        Cache l2 = new ConcurrentMapCache("l2", false);
+        Cache l3 = new ConcurrentMapCache("l3", false);
+        this.compositeCache = new CompositeCache("benchmark", Arrays.asList(this.l1, l2, l3), false);
+        this.l1.put(L1_KEY, "value");
+        l2.put(L2_KEY, "value");
+    }
+
+    @Benchmark
+    public Object l1Hit() {
+        return this.compositeCache.lookup(L1_KEY);
+    }
+
+    @Benchmark
+    public Object l1HitTyped() {
+        return this.compositeCache.get(L1_KEY, String.class);
+    }
+
+    @Benchmark
+    public Object l2Hit() {
+        this.l1.evict(L2_KEY);
+        return this.compositeCache.lookup(L2_KEY);
+    }
+
+    @Benchmark
+    public Object miss() {
+        return this.compositeCache.lookup(MISSING_KEY);
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CompositeCacheLookupBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            String benchmark = params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.') + 1);
+            double allocated = allocationPerOperation(result);
+            System.out.printf("%s: %.2f bytes/op%n", benchmark, allocated);
+            if (!"l2Hit".equals(benchmark) && allocated > ALLOCATION_FREE_THRESHOLD) {
+                throw new IllegalStateException(benchmark + " allocated " + allocated + " bytes/op, expected none");
+            }
+        }
+    }
+
+    private static double allocationPerOperation(RunResult result) {
+        for (Result<?> secondary : result.getSecondaryResults().values()) {
+            if (secondary.getLabel().endsWith("gc.alloc.rate.norm")) {
+                return secondary.getScore();
+            }
+        }
+        throw new IllegalStateException("gc.alloc.rate.norm not reported for " + result.getParams().getBenchmark());
+    }
+}
@@ -0,0 +1,190 @@
+package io.geewit.cache.support;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and hit-rate comparison of {@link TinyLfuCache} with Caffeine,
+ * both bounded to the same maximum size, on a Zipfian key distribution.
+ *
+ * <p>Run through {@code gradle jmh}, or through {@link #main}, which first
+ * prints the hit rate of each cache on the same trace of keys. The
+ * {@code readOnly}, {@code readWrite} and {@code writeOnly} groups follow the
+ * read/write mixes of Caffeine's own {@code GetPutBenchmark}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TinyLfuCacheBenchmark {
+
+    private static final int MAXIMUM_SIZE = 1 << 14;
+
+    private static final int TRACE_SIZE = 1 << 20;
+
+    private static final int TRACE_MASK = TRACE_SIZE - 1;
+
+    private static final int KEY_SPACE = MAXIMUM_SIZE * 8;
+
+    private static final double ZIPF_EXPONENT = 0.9;
+
+    private static final Integer[] TRACE = zipfTrace(new Random(42));
+
+    @Param({"tinyLfu", "caffeine"})
+    private String cacheType;
+
+    private CacheAdapter cache;
+
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        int index = ThreadLocalRandom.current().nextInt(TRACE_SIZE);
+    }
+
+    @Setup
+    public void setup() {
+        this.cache = createCache(this.cacheType);
+        for (int i = 0; i < MAXIMUM_SIZE; i++) {
+            Integer key = TRACE[i];
+            this.cache.put(key, key);
+        }
+    }
+
+    @Benchmark
+    @Group("readOnly")
+    @GroupThreads(8)
+    public Object readOnlyGet(ThreadState state) {
+        return this.cache.get(TRACE[state.index++ & TRACE_MASK]);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(6)
+    public Object readWriteGet(ThreadState state) {
+        return this.cache.get(TRACE[state.index++ & TRACE_MASK]);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(2)
+    public void readWritePut(ThreadState state) {
+        Integer key = TRACE[state.index++ & TRACE_MASK];
+        this.cache.put(key, key);
+    }
+
+    @Benchmark
+    @Group("writeOnly")
+    @GroupThreads(8)
+    public void writeOnlyPut(ThreadState state) {
+        Integer key = TRACE[state.index++ & TRACE_MASK];
+        this.cache.put(key, key);
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        for (String cacheType : new String[] {"tinyLfu", "caffeine"}) {
+            System.out.printf("%s: hit rate %.4f%n", cacheType, hitRate(createCache(cacheType)));
+        }
+        Options options = new OptionsBuilder()
+                .include(TinyLfuCacheBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * Replay the trace once, putting every missed key.
+     */
+    private static double hitRate(CacheAdapter cache) {
+        long hits = 0;
+        for (Integer key : TRACE) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return (double) hits / TRACE.length;
+    }
+
+    private static CacheAdapter createCache(String cacheType) {
+        if ("tinyLfu".equals(cacheType)) {
+            TinyLfuCache cache = new TinyLfuCache("benchmark", MAXIMUM_SIZE, false);
+            return new CacheAdapter() {
+                @Override
+                public Object get(Object key) {
+                    return cache.lookup(key);
+                }
+                @Override
+                public void put(Object key, Object value) {
+                    cache.put(key, value);
+                }
+            };
+        }
+        if ("caffeine".equals(cacheType)) {
+            Cache<Object, Object> cache = Caffeine.newBuilder().maximumSize(MAXIMUM_SIZE).build();
+            return new CacheAdapter() {
+                @Override
+                public Object get(Object key) {
+                    return cache.getIfPresent(key);
+                }
+                @Override
+                public void put(Object key, Object value) {
+                    cache.put(key, value);
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown cache type: " + cacheType);
+    }
+
+    /**
+     * Draw keys from a Zipf distribution over {@link #KEY_SPACE} ranks, the
+     * ranks scrambled so that popular keys do not share hash buckets.
+     */
+    private static Integer[] zipfTrace(Random random) {
+        double[] cumulative = new double[KEY_SPACE];
+        double sum = 0;
+        for (int rank = 0; rank < KEY_SPACE; rank++) {
+            sum += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+            cumulative[rank] = sum;
+        }
+        Integer[] trace = new Integer[TRACE_SIZE];
+        for (int i = 0; i < TRACE_SIZE; i++) {
+            double target = random.nextDouble() * sum;
+            int low = 0;
+            int high = KEY_SPACE - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (cumulative[middle] < target) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            trace[i] = FrequencySketch.spread(low);
+        }
+        return trace;
+    }
+
+
+    private interface CacheAdapter {
+
+        Object get(Object key);
+
+        void put(Object key, Object value);
+    }
+}
@@ -0,0 +1,31 @@
+package io.geewit.cache.support;
+
+/**
+ * Strategy deciding whether a value found in a lower tier of a
+ * {@link CompositeCache} may be promoted into its first tier (L1).
+ *
+ * <p>Implementations are called concurrently from every reading thread and
+ * must therefore be thread-safe and cheap.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see CompositeCache#setAdmissionPolicy
+ * @see TinyLfuAdmissionPolicy
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * Record an access to the given key, hit or miss.
+     * @param key the key being looked up
+     */
+    void record(Object key);
+
+    /**
+     * Decide whether the given key, just found in a lower tier, should be
+     * copied into the first tier.
+     * @param key the key being promoted
+     * @return {@code true} to promote, {@code false} to leave the first tier as is
+     */
+    boolean admit(Object key);
+
+}
@@ -0,0 +1,27 @@
+package io.geewit.cache.support;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Optional interface for delegate caches that can read without blocking the
+ * calling thread, e.g. on top of an asynchronous Redis client.
+ *
+ * <p>Used by {@link CompositeCache} for tiers with a
+ * {@link CacheTierConfig#setReadTimeout read timeout}; other delegates are
+ * read on the tier's {@link CacheTierConfig#setReadExecutor read executor}
+ * instead.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public interface AsyncCacheReader {
+
+    /**
+     * Read the raw store value for the given key.
+     * @param key the key whose associated value is to be returned
+     * @return a future completed with the store value, {@code null} on a miss,
+     * or completed exceptionally if the read failed
+     */
+    CompletableFuture<Object> readAsync(Object key);
+
+}
@@ -0,0 +1,40 @@
+package io.geewit.cache.support;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Optional interface for delegate caches that can read and write many keys
+ * in one round trip, e.g. through Redis {@code MGET} and pipelined writes.
+ *
+ * <p>Used by the bulk operations of {@link CompositeCache}; other delegates
+ * are called once per key instead.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see CompositeCache#getAll
+ */
+public interface BatchCache {
+
+    /**
+     * Read the raw store values for the given keys.
+     * @param keys the keys whose associated values are to be returned
+     * @return the store values of the keys present, as a
+     * {@link org.springframework.cache.support.AbstractValueAdaptingCache#lookup lookup}
+     * would return them; missing keys are absent from the map
+     */
+    Map<Object, Object> getAll(Collection<?> keys);
+
+    /**
+     * Associate each of the given values with its key.
+     * @param entries the keys and their values
+     */
+    void putAll(Map<?, ?> entries);
+
+    /**
+     * Evict the mappings of the given keys, if present.
+     * @param keys the keys whose mappings are to be removed
+     */
+    void evictAll(Collection<?> keys);
+
+}
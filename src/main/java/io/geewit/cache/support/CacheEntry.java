@@ -0,0 +1,82 @@
+package io.geewit.cache.support;
+
+import org.springframework.lang.Nullable;
+
+import java.io.Serializable;
+
+/**
+ * A value stored by a {@link CompositeCache} in its tiers together with the
+ * time it was written and when it goes stale and expires.
+ *
+ * <p>Used once a {@link CompositeCache#setSoftTimeToLive soft time-to-live}
+ * is configured. Times are wall-clock milliseconds, so that entries keep their
+ * meaning in tiers shared between processes.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public final class CacheEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @Nullable
+    private final Object value;
+
+    private final long writeTime;
+
+    private final long staleTime;
+
+    private final long expireTime;
+
+
+    /**
+     * Create a new entry.
+     * @param value the store value
+     * @param writeTime the time the value was written, in epoch milliseconds
+     * @param staleTime the time from which on the value is served only while it is being refreshed
+     * @param expireTime the time from which on the value is not served at all
+     */
+    public CacheEntry(@Nullable Object value, long writeTime, long staleTime, long expireTime) {
+        this.value = value;
+        this.writeTime = writeTime;
+        this.staleTime = staleTime;
+        this.expireTime = expireTime;
+    }
+
+
+    @Nullable
+    public Object getValue() {
+        return this.value;
+    }
+
+    public long getWriteTime() {
+        return this.writeTime;
+    }
+
+    public long getStaleTime() {
+        return this.staleTime;
+    }
+
+    public long getExpireTime() {
+        return this.expireTime;
+    }
+
+    /**
+     * Return whether the entry is past its soft time-to-live at the given time.
+     */
+    public boolean isStale(long now) {
+        return now >= this.staleTime;
+    }
+
+    /**
+     * Return whether the entry is past its hard time-to-live at the given time.
+     */
+    public boolean isExpired(long now) {
+        return now >= this.expireTime;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheEntry[" + this.value + ", written " + this.writeTime + "]";
+    }
+}
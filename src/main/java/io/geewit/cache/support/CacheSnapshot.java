@@ -0,0 +1,139 @@
+package io.geewit.cache.support;
+
+import org.springframework.lang.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary file of the hottest first-tier keys of a {@link CompositeCacheManager}'s
+ * caches, and optionally their values, written on shutdown and read on startup.
+ *
+ * <p>The file holds a magic number, then per cache its name, its number of
+ * entries and the entries as length-prefixed {@link Serialization serialized}
+ * keys and {@link ValueCodecs encoded} store values, a value length of
+ * {@code -1} standing for a key without value. A zero byte ends the sections
+ * and a CRC-32 of all preceding bytes ends the file; it is written to a
+ * temporary file first and renamed into place, so that a crash never leaves a
+ * partial snapshot behind.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+final class CacheSnapshot {
+
+    private static final int MAGIC = 0x67777331;
+
+    private static final int NO_VALUE = -1;
+
+    private CacheSnapshot() {
+    }
+
+
+    /**
+     * Write the given entries, per cache name, to the given file.
+     */
+    static void write(File file, Map<String, List<Entry>> entriesByCacheName) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (OutputStream stream = Files.newOutputStream(tempFile.toPath());
+             DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(stream), crc))) {
+            out.writeInt(MAGIC);
+            for (Map.Entry<String, List<Entry>> section : entriesByCacheName.entrySet()) {
+                out.writeByte(1);
+                out.writeUTF(section.getKey());
+                out.writeInt(section.getValue().size());
+                for (Entry entry : section.getValue()) {
+                    out.writeInt(entry.key.length);
+                    out.write(entry.key);
+                    if (entry.value != null) {
+                        out.writeInt(entry.value.length);
+                        out.write(entry.value);
+                    } else {
+                        out.writeInt(NO_VALUE);
+                    }
+                }
+            }
+            out.writeByte(0);
+            out.writeLong(crc.getValue());
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the entries, per cache name, of the given file.
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    static Map<String, List<Entry>> read(File file) throws IOException {
+        Map<String, List<Entry>> entriesByCacheName = new LinkedHashMap<>();
+        CRC32 crc = new CRC32();
+        try (InputStream stream = Files.newInputStream(file.toPath());
+             DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(stream), crc))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+            while (in.readByte() != 0) {
+                String name = in.readUTF();
+                int count = in.readInt();
+                if (count < 0) {
+                    throw new IOException("Corrupt cache snapshot: " + file);
+                }
+                List<Entry> entries = new ArrayList<>(Math.min(count, 1 << 16));
+                for (int i = 0; i < count; i++) {
+                    byte[] key = readBytes(in, in.readInt(), file);
+                    int valueLength = in.readInt();
+                    byte[] value = (valueLength != NO_VALUE ? readBytes(in, valueLength, file) : null);
+                    entries.add(new Entry(key, value));
+                }
+                entriesByCacheName.put(name, entries);
+            }
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Corrupt cache snapshot: " + file);
+            }
+        }
+        return entriesByCacheName;
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length, File file) throws IOException {
+        // a corrupt length must not allocate beyond the file
+        if (length < 0 || length > file.length()) {
+            throw new IOException("Corrupt cache snapshot: " + file);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+
+    /**
+     * A serialized key and, optionally, its encoded store value.
+     */
+    static final class Entry {
+
+        final byte[] key;
+
+        @Nullable
+        final byte[] value;
+
+        Entry(byte[] key, @Nullable byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,1065 @@
+package io.geewit.cache.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+import org.springframework.cache.support.NoOpCache;
+import org.springframework.cache.support.NullValue;
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One delegate {@link Cache} of a {@link CompositeCache}, together with the
+ * way it is read, resolved once when the composite is built.
+ *
+ * <p>{@link AbstractValueAdaptingCache} delegates are read through
+ * {@link AbstractValueAdaptingCache#lookup lookup}, which returns the raw store
+ * value without wrapping it. Any other {@link Cache} is read through
+ * {@link Cache#get(Object)}, unwrapping the delegate's own wrapper rather than
+ * allocating another one; a cached {@code null} comes back as
+ * {@link NullValue#INSTANCE}, as it would from a {@code lookup}. A
+ * {@link NoOpCache} can never hit and is not read at all. A {@link CacheEntry}
+ * past its hard time-to-live is read as a miss.
+ *
+ * <p>Writes either go straight to the delegate or, for a
+ * {@link CacheTierConfig.WriteMode#WRITE_BEHIND write-behind} tier, through a
+ * queue of pending writes that reads of the tier consult first.
+ *
+ * <p>Failures of the delegate are caught here, counted, logged at debug level
+ * and reported to the tier's {@link CircuitBreaker}, if enabled: a failed read
+ * counts as a miss, a failed put evicts the key instead, so that the tier does
+ * not go on serving the value the put superseded. While the breaker is open,
+ * reads do not reach the delegate at all, and puts are turned into evictions.
+ *
+ * <p>A tier with a {@link CacheTierConfig#setReadTimeout read timeout} can also
+ * be read {@link #readAsync asynchronously}: through the delegate itself if it
+ * implements {@link AsyncCacheReader}, otherwise by running the blocking read
+ * on the tier's read executor. The latencies of {@link #isHedged() hedged}
+ * tiers are recorded in a {@link LatencyHistogram}, from which the delay after
+ * which a read is hedged is re-estimated once per second.
+ *
+ * <p>Bulk reads and writes go to the delegate in one call if it implements
+ * {@link BatchCache}, and fall back to one call per key otherwise. With
+ * {@link CacheTierConfig#setReadBatching read batching}, concurrent
+ * single-key reads of a {@code BatchCache} are gathered into multi-gets by a
+ * {@link ReadBatcher}.
+ *
+ * <p>With a {@link CacheTierConfig#setMembershipFilterEnabled membership filter},
+ * a {@link ScannableCache} delegate is scanned periodically into a
+ * {@link CountingBloomFilter}, which the writes of this tier keep up to date in
+ * between. Once built, reads of keys the filter proves absent are answered as
+ * misses without reaching the delegate. A key is added to the filter before it
+ * is written, and to a filter being rebuilt after, so that neither can miss it.
+ *
+ * <p>Hits and misses are counted per tier; together with the
+ * {@link #getReadMode() read mode} they show which tiers actually serve reads.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see CompositeCache#getTiers()
+ */
+public final class CacheTier {
+
+    private static final Log logger = LogFactory.getLog(CacheTier.class);
+
+    private static final long HEDGE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final long HEDGE_MINIMUM_SAMPLES = 100;
+
+    /**
+     * How a tier is read.
+     */
+    public enum ReadMode {
+
+        /**
+         * Read through {@link AbstractValueAdaptingCache#lookup}.
+         */
+        LOOKUP,
+
+        /**
+         * Read through {@link Cache#get(Object)}, unwrapping the result.
+         */
+        GET,
+
+        /**
+         * Never read; the tier is only written to.
+         */
+        NONE
+    }
+
+    private enum Operation {
+        PUT, EVICT, CLEAR
+    }
+
+
+    private final int index;
+
+    private final Cache cache;
+
+    private final ReadMode readMode;
+
+    private final CacheTierConfig.WriteMode writeMode;
+
+    @Nullable
+    private final WriteBehindQueue writeBehindQueue;
+
+    @Nullable
+    private final CircuitBreaker circuitBreaker;
+
+    @Nullable
+    private final ReadBatcher readBatcher;
+
+    private final long readTimeoutNanos;
+
+    @Nullable
+    private final Executor readExecutor;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    @Nullable
+    private final LatencyHistogram latencyHistogram;
+
+    private final double hedgePercentile;
+
+    private final double maxHedgeRatio;
+
+    private volatile long hedgeDelayNanos = -1L;
+
+    private final AtomicLong hedgeWindowStart = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong hedgeableReads = new AtomicLong();
+
+    private final AtomicLong windowHedges = new AtomicLong();
+
+    private final LongAdder hedges = new LongAdder();
+
+    private final boolean membershipFiltered;
+
+    private final long membershipFilterExpectedKeys;
+
+    private final double membershipFilterFalsePositiveRate;
+
+    private final long membershipFilterRebuildMillis;
+
+    @Nullable
+    private volatile CountingBloomFilter membershipFilter;
+
+    @Nullable
+    private volatile CountingBloomFilter rebuildingFilter;
+
+    private final Object membershipFilterMonitor = new Object();
+
+    @Nullable
+    private ScheduledFuture<?> membershipFilterRebuild;
+
+    private final LongAdder filteredReads = new LongAdder();
+
+
+    CacheTier(int index, Cache cache, CacheTierConfig config) {
+        this.index = index;
+        this.cache = cache;
+        this.readMode = resolveReadMode(cache);
+        this.writeMode = config.getWriteMode();
+        this.writeBehindQueue = (this.writeMode == CacheTierConfig.WriteMode.WRITE_BEHIND ?
+                new WriteBehindQueue(this, config) : null);
+        this.circuitBreaker = (config.isCircuitBreakerEnabled() ?
+                new CircuitBreaker(cache.getName() + "[" + index + "]", config) : null);
+        this.readBatcher = (config.isReadBatching() && cache instanceof BatchCache ?
+                new ReadBatcher(this, config) : null);
+        this.readTimeoutNanos = (config.getReadTimeout() != null ? config.getReadTimeout().toNanos() : 0L);
+        this.latencyHistogram = (config.isHedgedReads() ? new LatencyHistogram() : null);
+        this.hedgePercentile = config.getHedgePercentile();
+        this.maxHedgeRatio = config.getMaxHedgeRatio();
+        this.readExecutor = (config.isHedgedReads() ||
+                (this.readTimeoutNanos > 0 && !(cache instanceof AsyncCacheReader)) ?
+                config.obtainReadExecutor() : null);
+        this.membershipFiltered = (config.isMembershipFilterEnabled() && cache instanceof ScannableCache &&
+                this.readMode != ReadMode.NONE);
+        this.membershipFilterExpectedKeys = config.getMembershipFilterExpectedKeys();
+        this.membershipFilterFalsePositiveRate = config.getMembershipFilterFalsePositiveRate();
+        this.membershipFilterRebuildMillis = config.getMembershipFilterRebuildInterval().toMillis();
+    }
+
+    private static ReadMode resolveReadMode(Cache cache) {
+        if (cache instanceof AbstractValueAdaptingCache) {
+            return ReadMode.LOOKUP;
+        }
+        if (cache instanceof NoOpCache) {
+            return ReadMode.NONE;
+        }
+        return ReadMode.GET;
+    }
+
+
+    /**
+     * Read the raw store value for the given key from this tier.
+     * @return the store value, or {@code null} on a miss or if the tier is not read
+     */
+    @Nullable
+    Object read(Object key) {
+        Object value;
+        Object pending = (this.writeBehindQueue != null ? this.writeBehindQueue.pending(key) : null);
+        if (pending != null) {
+            value = (pending != WriteBehindQueue.EVICTED ? toStoreValue(pending) : null);
+        } else {
+            if (this.readMode == ReadMode.NONE) {
+                return null;
+            }
+            if (isFilteredOut(key)) {
+                this.misses.increment();
+                return null;
+            }
+            if (this.readBatcher != null) {
+                return counted(readBatched(key));
+            }
+            CircuitBreaker breaker = this.circuitBreaker;
+            long permit = (breaker != null ? breaker.tryAcquire() : CircuitBreaker.NO_PERMIT);
+            if (breaker != null && permit == CircuitBreaker.NO_PERMIT) {
+                return null;
+            }
+            LatencyHistogram histogram = this.latencyHistogram;
+            long start = (breaker != null || histogram != null ? System.nanoTime() : 0L);
+            try {
+                if (this.readMode == ReadMode.LOOKUP) {
+                    value = ((AbstractValueAdaptingCache) this.cache).lookup(key);
+                } else {
+                    Cache.ValueWrapper wrapper = this.cache.get(key);
+                    value = (wrapper != null ? toStoreValue(wrapper.get()) : null);
+                }
+            } catch (RuntimeException ex) {
+                failed(breaker, permit, start, "read", key, ex);
+                this.misses.increment();
+                return null;
+            }
+            if (breaker != null || histogram != null) {
+                succeeded(breaker, permit, histogram, System.nanoTime() - start);
+            }
+        }
+        return counted(unlessExpired(value));
+    }
+
+    /**
+     * Read the raw store value for the given key from this tier as
+     * {@link #read} does, but without counting a hit or a miss and without
+     * going through the membership filter, read batcher or circuit breaker.
+     * @return the store value, or {@code null} on a miss, a failure or if the
+     * tier is not read
+     */
+    @Nullable
+    Object peek(Object key) {
+        Object pending = (this.writeBehindQueue != null ? this.writeBehindQueue.pending(key) : null);
+        if (pending != null) {
+            return (pending != WriteBehindQueue.EVICTED ? toStoreValue(pending) : null);
+        }
+        Object value;
+        try {
+            if (this.readMode == ReadMode.LOOKUP) {
+                value = ((AbstractValueAdaptingCache) this.cache).lookup(key);
+            } else if (this.readMode == ReadMode.GET) {
+                Cache.ValueWrapper wrapper = this.cache.get(key);
+                value = (wrapper != null ? toStoreValue(wrapper.get()) : null);
+            } else {
+                return null;
+            }
+        } catch (RuntimeException ex) {
+            failed(null, CircuitBreaker.NO_PERMIT, 0L, "read", key, ex);
+            return null;
+        }
+        return unlessExpired(value);
+    }
+
+    /**
+     * Read through the {@link ReadBatcher}, which applies the circuit breaker
+     * per multi-get; the wait for the batch counts towards the latency.
+     */
+    @Nullable
+    private Object readBatched(Object key) {
+        LatencyHistogram histogram = this.latencyHistogram;
+        long start = (histogram != null ? System.nanoTime() : 0L);
+        Object value = this.readBatcher.read(key);
+        if (histogram != null) {
+            histogram.record(System.nanoTime() - start);
+        }
+        return value;
+    }
+
+    /**
+     * Return whether the membership filter proves the given key absent from
+     * the delegate, counting the read it saves.
+     */
+    private boolean isFilteredOut(Object key) {
+        CountingBloomFilter filter = this.membershipFilter;
+        if (filter == null || filter.mightContain(key)) {
+            return false;
+        }
+        this.filteredReads.increment();
+        return true;
+    }
+
+    @Nullable
+    private Object counted(@Nullable Object value) {
+        if (value != null) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Read the raw store value for the given key from this tier without
+     * blocking the caller. Only available for tiers with a read timeout or
+     * hedged reads.
+     * @return a future completed with the store value, or with {@code null} on
+     * a miss, a failure, an open circuit breaker or a saturated read executor
+     */
+    CompletableFuture<Object> readAsync(Object key) {
+        if (this.readMode == ReadMode.NONE ||
+                (this.writeBehindQueue != null && this.writeBehindQueue.pending(key) != null)) {
+            return CompletableFuture.completedFuture(read(key));
+        }
+        if (isFilteredOut(key)) {
+            this.misses.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!(this.cache instanceof AsyncCacheReader)) {
+            try {
+                return CompletableFuture.supplyAsync(() -> read(key), this.readExecutor);
+            } catch (RejectedExecutionException ex) {
+                onReadTimeout();
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+        CircuitBreaker breaker = this.circuitBreaker;
+        long permit = (breaker != null ? breaker.tryAcquire() : CircuitBreaker.NO_PERMIT);
+        if (breaker != null && permit == CircuitBreaker.NO_PERMIT) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Object> future;
+        try {
+            future = ((AsyncCacheReader) this.cache).readAsync(key);
+        } catch (RuntimeException ex) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+        }
+        return future.handle((value, ex) -> {
+            if (ex != null) {
+                failed(breaker, permit, start, "read", key, (ex instanceof CompletionException && ex.getCause() != null ?
+                        ex.getCause() : ex));
+                this.misses.increment();
+                return null;
+            }
+            succeeded(breaker, permit, this.latencyHistogram, System.nanoTime() - start);
+            Object storeValue = unlessExpired(value);
+            if (storeValue != null) {
+                this.hits.increment();
+            } else {
+                this.misses.increment();
+            }
+            return storeValue;
+        });
+    }
+
+    /**
+     * Return the given store value, or {@code null} if it is a {@link CacheEntry}
+     * past its hard time-to-live, which the tier may still hold.
+     */
+    @Nullable
+    private static Object unlessExpired(@Nullable Object storeValue) {
+        if (storeValue instanceof CacheEntry && ((CacheEntry) storeValue).isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return storeValue;
+    }
+
+    /**
+     * Read the raw store values for the given keys from this tier, in one
+     * call if the delegate is a {@link BatchCache}.
+     * @return the store values of the keys that hit, keyed by key
+     */
+    Map<Object, Object> readAll(Collection<?> keys) {
+        if (!(this.cache instanceof BatchCache)) {
+            Map<Object, Object> values = new HashMap<>();
+            for (Object key : keys) {
+                Object value = read(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            return values;
+        }
+        Map<Object, Object> values = new HashMap<>();
+        Collection<?> toRead = keys;
+        if (this.writeBehindQueue != null || this.membershipFilter != null) {
+            List<Object> unqueued = new ArrayList<>(keys.size());
+            for (Object key : keys) {
+                Object pending = (this.writeBehindQueue != null ? this.writeBehindQueue.pending(key) : null);
+                if (pending == null) {
+                    if (!isFilteredOut(key)) {
+                        unqueued.add(key);
+                    }
+                } else if (pending != WriteBehindQueue.EVICTED) {
+                    values.put(key, toStoreValue(pending));
+                }
+            }
+            toRead = unqueued;
+        }
+        if (!toRead.isEmpty()) {
+            multiGet(toRead, values);
+        }
+        this.hits.add(values.size());
+        this.misses.add(keys.size() - values.size());
+        return values;
+    }
+
+    /**
+     * Read the given keys from the {@link BatchCache} delegate in one call,
+     * through the circuit breaker, and add the live store values found to
+     * the given map. Hits and misses are left for the caller to count.
+     */
+    void multiGet(Collection<?> keys, Map<Object, Object> into) {
+        CircuitBreaker breaker = this.circuitBreaker;
+        long permit = (breaker != null ? breaker.tryAcquire() : CircuitBreaker.NO_PERMIT);
+        if (breaker != null && permit == CircuitBreaker.NO_PERMIT) {
+            return;
+        }
+        long start = (breaker != null ? System.nanoTime() : 0L);
+        Map<Object, Object> read;
+        try {
+            read = ((BatchCache) this.cache).getAll(keys);
+        } catch (RuntimeException ex) {
+            failed(breaker, permit, start, "read", null, ex);
+            return;
+        }
+        if (breaker != null) {
+            breaker.onSuccess(permit, System.nanoTime() - start);
+        }
+        for (Map.Entry<Object, Object> entry : read.entrySet()) {
+            Object value = unlessExpired(entry.getValue());
+            if (value != null) {
+                into.put(entry.getKey(), value);
+            }
+        }
+    }
+
+    private static void succeeded(@Nullable CircuitBreaker breaker, long permit,
+                                  @Nullable LatencyHistogram histogram, long durationNanos) {
+        if (breaker != null) {
+            breaker.onSuccess(permit, durationNanos);
+        }
+        if (histogram != null) {
+            histogram.record(durationNanos);
+        }
+    }
+
+    /**
+     * Lease the byte array value for the given key from the delegate, without
+     * copying it. A key with a write pending in the write-behind queue is not
+     * leased, the delegate not holding its latest value yet.
+     * @return the lease, or {@code null} on a miss, a value that is not a byte
+     * array, a failure, an open circuit breaker or a delegate that cannot lease
+     * @see #isLeasable()
+     */
+    @Nullable
+    ValueLease lease(Object key) {
+        if (!isLeasable() || (this.writeBehindQueue != null && this.writeBehindQueue.pending(key) != null) ||
+                isFilteredOut(key)) {
+            return null;
+        }
+        CircuitBreaker breaker = this.circuitBreaker;
+        long permit = (breaker != null ? breaker.tryAcquire() : CircuitBreaker.NO_PERMIT);
+        if (breaker != null && permit == CircuitBreaker.NO_PERMIT) {
+            return null;
+        }
+        long start = (breaker != null ? System.nanoTime() : 0L);
+        ValueLease lease;
+        try {
+            lease = ((LeasingCache) this.cache).lease(key);
+        } catch (RuntimeException ex) {
+            failed(breaker, permit, start, "lease", key, ex);
+            return null;
+        }
+        if (breaker != null) {
+            breaker.onSuccess(permit, System.nanoTime() - start);
+        }
+        return lease;
+    }
+
+    /**
+     * Return whether reads of this tier are hedged.
+     */
+    boolean isHedged() {
+        return this.latencyHistogram != null;
+    }
+
+    /**
+     * Return the delay after which a read of this tier should be hedged, or
+     * {@code -1} while too few reads have been recorded to tell.
+     * Also counts the read towards the hedge ratio.
+     */
+    long startHedgeableRead() {
+        LatencyHistogram histogram = this.latencyHistogram;
+        if (histogram == null) {
+            return -1L;
+        }
+        long now = System.nanoTime();
+        long windowStart = this.hedgeWindowStart.get();
+        if (now - windowStart >= HEDGE_WINDOW_NANOS && this.hedgeWindowStart.compareAndSet(windowStart, now)) {
+            this.hedgeDelayNanos = (histogram.getCount() >= HEDGE_MINIMUM_SAMPLES ?
+                    histogram.percentile(this.hedgePercentile) : -1L);
+            histogram.decay();
+            this.hedgeableReads.set(0);
+            this.windowHedges.set(0);
+        }
+        this.hedgeableReads.incrementAndGet();
+        return this.hedgeDelayNanos;
+    }
+
+    /**
+     * Claim a hedge, unless that would exceed the maximum hedge ratio of the current window.
+     */
+    boolean tryHedge() {
+        if (this.windowHedges.get() + 1 > this.hedgeableReads.get() * this.maxHedgeRatio) {
+            return false;
+        }
+        this.windowHedges.incrementAndGet();
+        this.hedges.increment();
+        return true;
+    }
+
+    /**
+     * Return the executor for asynchronous reads and hedges of this tier.
+     */
+    @Nullable
+    Executor getReadExecutor() {
+        return this.readExecutor;
+    }
+
+    /**
+     * Return whether reads of this tier have a time budget.
+     */
+    boolean hasReadTimeout() {
+        return this.readTimeoutNanos > 0;
+    }
+
+    long getReadTimeoutNanos() {
+        return this.readTimeoutNanos;
+    }
+
+    /**
+     * Record a read that exceeded the time budget.
+     */
+    void onReadTimeout() {
+        this.timeouts.increment();
+    }
+
+    private static Object toStoreValue(@Nullable Object userValue) {
+        return (userValue != null ? userValue : NullValue.INSTANCE);
+    }
+
+    void put(Object key, @Nullable Object value) {
+        addToMembershipFilter(key, this.membershipFilter);
+        if (this.writeBehindQueue != null) {
+            this.writeBehindQueue.put(key, value);
+        } else {
+            write(Operation.PUT, key, value);
+        }
+        addToMembershipFilter(key, this.rebuildingFilter);
+    }
+
+    /**
+     * Write the given store value, handing the delegate its encoded bytes if it
+     * is an {@link EncodingCache}, so that tiers sharing codecs encode it once.
+     * A write-behind tier queues the store value, encoded when flushed.
+     */
+    void put(Object key, EncodedValue value) {
+        if (!isEncoding()) {
+            put(key, value.getStoreValue());
+            return;
+        }
+        addToMembershipFilter(key, this.membershipFilter);
+        write(Operation.PUT, key, value);
+        addToMembershipFilter(key, this.rebuildingFilter);
+    }
+
+    void evict(Object key) {
+        if (this.writeBehindQueue != null) {
+            this.writeBehindQueue.evict(key);
+        } else {
+            evictNow(key);
+        }
+    }
+
+    void clear() {
+        if (this.writeBehindQueue != null) {
+            this.writeBehindQueue.clear();
+        } else {
+            write(Operation.CLEAR, null, null);
+        }
+        if (this.membershipFilter != null) {
+            this.membershipFilter = newMembershipFilter();
+        }
+    }
+
+    /**
+     * Write the given store values, in one call if the delegate is a {@link BatchCache}.
+     */
+    void putAll(Map<?, ?> entries) {
+        if (this.writeBehindQueue != null || !(this.cache instanceof BatchCache)) {
+            for (Map.Entry<?, ?> entry : entries.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        CountingBloomFilter filter = this.membershipFilter;
+        for (Object key : entries.keySet()) {
+            addToMembershipFilter(key, filter);
+        }
+        try {
+            putAllNow(entries);
+        } finally {
+            CountingBloomFilter rebuilding = this.rebuildingFilter;
+            for (Object key : entries.keySet()) {
+                addToMembershipFilter(key, rebuilding);
+            }
+        }
+    }
+
+    /**
+     * Put into the delegate right away, bypassing any write-behind queue, in
+     * one call if the delegate is a {@link BatchCache}.
+     */
+    void putAllNow(Map<?, ?> entries) {
+        if (!(this.cache instanceof BatchCache)) {
+            for (Map.Entry<?, ?> entry : entries.entrySet()) {
+                putNow(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        CircuitBreaker breaker = this.circuitBreaker;
+        long permit = (breaker != null ? breaker.tryAcquire() : CircuitBreaker.NO_PERMIT);
+        if (breaker != null && permit == CircuitBreaker.NO_PERMIT) {
+            batchEvict(entries.keySet());
+            return;
+        }
+        long start = (breaker != null ? System.nanoTime() : 0L);
+        try {
+            ((BatchCache) this.cache).putAll(entries);
+        } catch (RuntimeException ex) {
+            failed(breaker, permit, start, "put", null, ex);
+            batchEvict(entries.keySet());
+            return;
+        }
+        if (breaker != null) {
+            breaker.onSuccess(permit, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Evict the given keys, in one call if the delegate is a {@link BatchCache}.
+     */
+    void evictAll(Collection<?> keys) {
+        if (this.writeBehindQueue != null || !(this.cache instanceof BatchCache)) {
+            for (Object key : keys) {
+                evict(key);
+            }
+            return;
+        }
+        // the keys stay in the membership filter until it is rebuilt, the
+        // delegate not telling which of them it held
+        batchEvict(keys);
+    }
+
+    /**
+     * Evict from the delegate right away, bypassing any write-behind queue, in
+     * one call if the delegate is a {@link BatchCache}.
+     */
+    void evictAllNow(Collection<?> keys) {
+        if (!(this.cache instanceof BatchCache)) {
+            for (Object key : keys) {
+                evictNow(key);
+            }
+            return;
+        }
+        batchEvict(keys);
+    }
+
+    /**
+     * Evict the given keys from the {@link BatchCache} delegate in one call,
+     * whatever the state of the circuit breaker.
+     * @return whether the call succeeded
+     */
+    private boolean batchEvict(Collection<?> keys) {
+        CircuitBreaker breaker = this.circuitBreaker;
+        long start = (breaker != null ? System.nanoTime() : 0L);
+        try {
+            ((BatchCache) this.cache).evictAll(keys);
+        } catch (RuntimeException ex) {
+            failed(breaker, CircuitBreaker.NO_PERMIT, start, "evict", null, ex);
+            return false;
+        }
+        if (breaker != null) {
+            breaker.onUnguardedSuccess(System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    private static void addToMembershipFilter(Object key, @Nullable CountingBloomFilter filter) {
+        if (filter != null) {
+            filter.add(key);
+        }
+    }
+
+    /**
+     * Remove a key the delegate held from the membership filter. Not from a
+     * filter being rebuilt, which may not have scanned the key yet: removing a
+     * key a filter does not hold may hide others.
+     */
+    private void removeFromMembershipFilter(Object key) {
+        CountingBloomFilter filter = this.membershipFilter;
+        if (filter != null) {
+            filter.remove(key);
+        }
+    }
+
+    private CountingBloomFilter newMembershipFilter() {
+        return new CountingBloomFilter(this.membershipFilterExpectedKeys, this.membershipFilterFalsePositiveRate);
+    }
+
+    /**
+     * Put into the delegate right away, bypassing any write-behind queue.
+     */
+    void putNow(Object key, @Nullable Object value) {
+        write(Operation.PUT, key, value);
+    }
+
+    /**
+     * Evict from the delegate right away, bypassing any write-behind queue.
+     * The key leaves the membership filter only if the delegate held it.
+     */
+    void evictNow(Object key) {
+        if (write(Operation.EVICT, key, null)) {
+            removeFromMembershipFilter(key);
+        }
+    }
+
+    /**
+     * Clear the delegate right away, bypassing any write-behind queue.
+     */
+    void clearNow() {
+        write(Operation.CLEAR, null, null);
+    }
+
+    /**
+     * Apply the given write to the delegate.
+     * @return whether it succeeded, for an eviction whether the delegate
+     * {@link Cache#evictIfPresent held the key}
+     */
+    private boolean write(Operation operation, @Nullable Object key, @Nullable Object value) {
+        CircuitBreaker breaker = this.circuitBreaker;
+        // evictions are attempted regardless, a recovering tier must not serve invalidated entries,
+        // but being no probes they are only counted while the breaker is closed; a put that is
+        // refused or fails evicts the key instead, as its old value is just as invalid
+        boolean guarded = (operation == Operation.PUT);
+        long permit = (breaker != null && guarded ? breaker.tryAcquire() : CircuitBreaker.NO_PERMIT);
+        if (breaker != null && guarded && permit == CircuitBreaker.NO_PERMIT) {
+            write(Operation.EVICT, key, null);
+            return false;
+        }
+        long start = (breaker != null ? System.nanoTime() : 0L);
+        boolean written = true;
+        try {
+            switch (operation) {
+                case PUT:
+                    if (value instanceof EncodedValue) {
+                        // encoding failures count as failures of the tier, as those of put do
+                        EncodingCache encodingCache = (EncodingCache) this.cache;
+                        encodingCache.putEncoded(key, ((EncodedValue) value).encode(encodingCache.getValueCodecs()));
+                    } else {
+                        this.cache.put(key, value);
+                    }
+                    break;
+                case EVICT:
+                    written = this.cache.evictIfPresent(key);
+                    break;
+                default:
+                    this.cache.clear();
+            }
+        } catch (RuntimeException ex) {
+            failed(breaker, permit, start, operation.name().toLowerCase(), key, ex);
+            if (guarded) {
+                write(Operation.EVICT, key, null);
+            }
+            return false;
+        }
+        if (breaker != null) {
+            if (guarded) {
+                breaker.onSuccess(permit, System.nanoTime() - start);
+            } else {
+                breaker.onUnguardedSuccess(System.nanoTime() - start);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Count a failed call to the delegate.
+     * @param permit the permit of the circuit breaker the call was made with,
+     * or {@link CircuitBreaker#NO_PERMIT} for a call made without one
+     */
+    private void failed(@Nullable CircuitBreaker breaker, long permit, long start, String operation,
+                        @Nullable Object key, Throwable ex) {
+        if (breaker != null) {
+            if (permit != CircuitBreaker.NO_PERMIT) {
+                breaker.onError(permit, System.nanoTime() - start);
+            } else {
+                breaker.onUnguardedError(System.nanoTime() - start);
+            }
+        }
+        this.errors.increment();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Failed to " + operation + (key != null ? " key '" + key + "'" : "") + " in " + this, ex);
+        }
+    }
+
+    /**
+     * Start flushing queued writes on the given scheduler; a no-op unless
+     * this is a write-behind tier.
+     */
+    void startWriteBehind(ScheduledExecutorService scheduler) {
+        if (this.writeBehindQueue != null) {
+            this.writeBehindQueue.start(scheduler);
+        }
+    }
+
+    /**
+     * Rebuild the membership filter right away, then every rebuild interval,
+     * on the given scheduler; a no-op unless a membership filter applies to
+     * this tier.
+     */
+    synchronized void startMembershipFilter(ScheduledExecutorService scheduler) {
+        if (!this.membershipFiltered) {
+            return;
+        }
+        if (this.membershipFilterRebuild != null) {
+            this.membershipFilterRebuild.cancel(false);
+        }
+        this.membershipFilterRebuild = scheduler.scheduleWithFixedDelay(this::rebuildMembershipFilter,
+                0L, this.membershipFilterRebuildMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Build a new membership filter from a scan of the delegate's keys and the
+     * keys of pending puts, and start guarding reads with it; a no-op unless a
+     * membership filter applies to this tier. If the scan fails, the previous
+     * filter stays in place.
+     * @return whether a new filter is in place
+     */
+    boolean rebuildMembershipFilter() {
+        if (!this.membershipFiltered) {
+            return false;
+        }
+        synchronized (this.membershipFilterMonitor) {
+            CountingBloomFilter filter = newMembershipFilter();
+            this.rebuildingFilter = filter;
+            try {
+                if (this.writeBehindQueue != null) {
+                    this.writeBehindQueue.forEachPendingPut(filter::add);
+                }
+                ((ScannableCache) this.cache).scanKeys(filter::add);
+                this.membershipFilter = filter;
+                return true;
+            } catch (RuntimeException ex) {
+                failed(null, CircuitBreaker.NO_PERMIT, 0L, "scan keys", null, ex);
+                return false;
+            } finally {
+                this.rebuildingFilter = null;
+            }
+        }
+    }
+
+    /**
+     * Write all queued writes to the delegate; a no-op unless this is a
+     * write-behind tier.
+     */
+    void flush() {
+        if (this.writeBehindQueue != null) {
+            this.writeBehindQueue.drain();
+        }
+    }
+
+    /**
+     * Return whether this tier is read at all.
+     */
+    public boolean isReadable() {
+        return this.readMode != ReadMode.NONE;
+    }
+
+    /**
+     * Return whether this tier is read and its delegate can lease values
+     * without copying them.
+     * @see LeasingCache
+     */
+    public boolean isLeasable() {
+        return (this.readMode != ReadMode.NONE && this.cache instanceof LeasingCache);
+    }
+
+    /**
+     * Return whether puts reach an {@link EncodingCache} delegate directly,
+     * rather than through a write-behind queue.
+     */
+    boolean isEncoding() {
+        return (this.writeBehindQueue == null && this.cache instanceof EncodingCache);
+    }
+
+    /**
+     * Return the position of this tier in its composite, {@code 0} being the nearest.
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Return the delegate cache.
+     */
+    public Cache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Return how this tier is read.
+     */
+    public ReadMode getReadMode() {
+        return this.readMode;
+    }
+
+    /**
+     * Return how writes reach this tier.
+     */
+    public CacheTierConfig.WriteMode getWriteMode() {
+        return this.writeMode;
+    }
+
+    /**
+     * Return the number of writes queued for this tier; always {@code 0}
+     * unless this is a write-behind tier.
+     */
+    public int getPendingWriteCount() {
+        return (this.writeBehindQueue != null ? this.writeBehindQueue.size() : 0);
+    }
+
+    /**
+     * Return the circuit breaker guarding this tier, or {@code null} if none is enabled.
+     */
+    @Nullable
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Return the number of calls to the delegate that failed.
+     */
+    public long getErrorCount() {
+        return this.errors.sum();
+    }
+
+    /**
+     * Return the number of reads that exceeded the time budget of the tier,
+     * including reads refused by a saturated read executor.
+     */
+    public long getTimeoutCount() {
+        return this.timeouts.sum();
+    }
+
+    /**
+     * Return the histogram of read latencies, or {@code null} unless reads
+     * of this tier are hedged.
+     */
+    @Nullable
+    public LatencyHistogram getLatencyHistogram() {
+        return this.latencyHistogram;
+    }
+
+    /**
+     * Return the number of reads of this tier that were hedged.
+     */
+    public long getHedgeCount() {
+        return this.hedges.sum();
+    }
+
+    /**
+     * Return the number of multi-gets sent for batched single-key reads;
+     * always {@code 0} unless read batching applies to this tier.
+     */
+    public long getReadBatchCount() {
+        return (this.readBatcher != null ? this.readBatcher.getBatchCount() : 0L);
+    }
+
+    /**
+     * Return the number of single-key reads answered by multi-gets.
+     */
+    public long getBatchedReadCount() {
+        return (this.readBatcher != null ? this.readBatcher.getBatchedReadCount() : 0L);
+    }
+
+    /**
+     * Return the membership filter guarding reads of this tier, or
+     * {@code null} if none applies or it has not been built yet.
+     */
+    @Nullable
+    public CountingBloomFilter getMembershipFilter() {
+        return this.membershipFilter;
+    }
+
+    /**
+     * Return the number of reads the membership filter answered as misses
+     * without reaching the delegate; these are counted as misses too.
+     */
+    public long getFilteredReadCount() {
+        return this.filteredReads.sum();
+    }
+
+    /**
+     * Return the number of reads this tier answered with a value.
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Return the number of reads this tier could not answer.
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheTier[" + this.index + "] " + this.cache.getClass().getName() +
+                " (" + this.readMode + ", " + this.writeMode + ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() + ", errors=" + getErrorCount() +
+                (this.circuitBreaker != null ? ", " + this.circuitBreaker.getState() : "") + ")";
+    }
+}
@@ -0,0 +1,458 @@
+package io.geewit.cache.support;
+
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings for one tier of a {@link CompositeCache}.
+ *
+ * <p>Registered per delegate {@link org.springframework.cache.CacheManager}
+ * through {@link CompositeCacheManager#setTierConfig}, and applied to the tier
+ * that manager contributes to every composite. Tiers without a config use the
+ * defaults of a new instance.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class CacheTierConfig {
+
+    /**
+     * How writes reach a tier.
+     */
+    public enum WriteMode {
+
+        /**
+         * Write in the caller's thread, before the operation returns.
+         */
+        WRITE_THROUGH,
+
+        /**
+         * Queue the write and apply it later in batches, merging repeated
+         * writes to the same key.
+         */
+        WRITE_BEHIND
+    }
+
+
+    private WriteMode writeMode = WriteMode.WRITE_THROUGH;
+
+    private int writeBehindBatchSize = 100;
+
+    private int writeBehindMaxPending = 10_000;
+
+    private Duration writeBehindFlushInterval = Duration.ofSeconds(1);
+
+    private boolean circuitBreakerEnabled = false;
+
+    private double failureRateThreshold = 0.5;
+
+    private Duration slowCallDuration = Duration.ofSeconds(1);
+
+    private double slowCallRateThreshold = 0.5;
+
+    private int minimumCalls = 20;
+
+    private Duration circuitBreakerWindow = Duration.ofSeconds(10);
+
+    private Duration openDuration = Duration.ofSeconds(5);
+
+    private int halfOpenCalls = 5;
+
+    @Nullable
+    private Duration readTimeout;
+
+    @Nullable
+    private Executor readExecutor;
+
+    private int readThreads = 16;
+
+    private boolean hedgedReads = false;
+
+    private double hedgePercentile = 0.95;
+
+    private double maxHedgeRatio = 0.1;
+
+    private boolean readBatching = false;
+
+    private int readBatchMaxSize = 64;
+
+    private int maxConcurrentReadBatches = 4;
+
+    private boolean membershipFilterEnabled = false;
+
+    private long membershipFilterExpectedKeys = 1_000_000L;
+
+    private double membershipFilterFalsePositiveRate = 0.01;
+
+    private Duration membershipFilterRebuildInterval = Duration.ofMinutes(10);
+
+
+    /**
+     * Specify how writes reach the tier. Default is {@link WriteMode#WRITE_THROUGH}.
+     */
+    public void setWriteMode(WriteMode writeMode) {
+        Assert.notNull(writeMode, "WriteMode must not be null");
+        this.writeMode = writeMode;
+    }
+
+    public WriteMode getWriteMode() {
+        return this.writeMode;
+    }
+
+    /**
+     * Specify the number of pending keys that triggers a write-behind flush,
+     * and the number of keys written per flush run. Default is 100.
+     */
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        Assert.isTrue(writeBehindBatchSize > 0, "writeBehindBatchSize must be positive");
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    public int getWriteBehindBatchSize() {
+        return this.writeBehindBatchSize;
+    }
+
+    /**
+     * Specify the maximum number of pending keys. Writes of further keys go
+     * straight to the tier until the queue has been flushed. Default is 10000.
+     */
+    public void setWriteBehindMaxPending(int writeBehindMaxPending) {
+        Assert.isTrue(writeBehindMaxPending > 0, "writeBehindMaxPending must be positive");
+        this.writeBehindMaxPending = writeBehindMaxPending;
+    }
+
+    public int getWriteBehindMaxPending() {
+        return this.writeBehindMaxPending;
+    }
+
+    /**
+     * Specify the maximum time a write stays queued before it is flushed.
+     * Default is one second.
+     */
+    public void setWriteBehindFlushInterval(Duration writeBehindFlushInterval) {
+        Assert.isTrue(writeBehindFlushInterval != null && !writeBehindFlushInterval.isNegative() &&
+                !writeBehindFlushInterval.isZero(), "writeBehindFlushInterval must be positive");
+        this.writeBehindFlushInterval = writeBehindFlushInterval;
+    }
+
+    public Duration getWriteBehindFlushInterval() {
+        return this.writeBehindFlushInterval;
+    }
+
+    /**
+     * Specify whether calls to the tier go through a {@link CircuitBreaker},
+     * which skips reads and writes of the tier while it is failing or slow.
+     * Evictions are always attempted, so that a recovering tier does not keep
+     * serving invalidated entries. Default is {@code false}; enable it for
+     * remote tiers, where a failing call costs a timeout.
+     */
+    public void setCircuitBreakerEnabled(boolean circuitBreakerEnabled) {
+        this.circuitBreakerEnabled = circuitBreakerEnabled;
+    }
+
+    public boolean isCircuitBreakerEnabled() {
+        return this.circuitBreakerEnabled;
+    }
+
+    /**
+     * Specify the share of failed calls in a window that opens the circuit
+     * breaker. Default is 0.5.
+     */
+    public void setFailureRateThreshold(double failureRateThreshold) {
+        Assert.isTrue(failureRateThreshold > 0 && failureRateThreshold <= 1,
+                "failureRateThreshold must be in (0, 1]");
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    public double getFailureRateThreshold() {
+        return this.failureRateThreshold;
+    }
+
+    /**
+     * Specify the duration from which on a call counts as slow. Default is one second.
+     */
+    public void setSlowCallDuration(Duration slowCallDuration) {
+        Assert.isTrue(slowCallDuration != null && !slowCallDuration.isNegative() && !slowCallDuration.isZero(),
+                "slowCallDuration must be positive");
+        this.slowCallDuration = slowCallDuration;
+    }
+
+    public Duration getSlowCallDuration() {
+        return this.slowCallDuration;
+    }
+
+    /**
+     * Specify the share of slow calls in a window that opens the circuit
+     * breaker. Default is 0.5.
+     */
+    public void setSlowCallRateThreshold(double slowCallRateThreshold) {
+        Assert.isTrue(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1,
+                "slowCallRateThreshold must be in (0, 1]");
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    public double getSlowCallRateThreshold() {
+        return this.slowCallRateThreshold;
+    }
+
+    /**
+     * Specify the number of calls a window needs before the circuit breaker
+     * may open. Default is 20.
+     */
+    public void setMinimumCalls(int minimumCalls) {
+        Assert.isTrue(minimumCalls > 0, "minimumCalls must be positive");
+        this.minimumCalls = minimumCalls;
+    }
+
+    public int getMinimumCalls() {
+        return this.minimumCalls;
+    }
+
+    /**
+     * Specify the length of the window over which the circuit breaker counts
+     * calls. Default is ten seconds.
+     */
+    public void setCircuitBreakerWindow(Duration circuitBreakerWindow) {
+        Assert.isTrue(circuitBreakerWindow != null && !circuitBreakerWindow.isNegative() &&
+                !circuitBreakerWindow.isZero(), "circuitBreakerWindow must be positive");
+        this.circuitBreakerWindow = circuitBreakerWindow;
+    }
+
+    public Duration getCircuitBreakerWindow() {
+        return this.circuitBreakerWindow;
+    }
+
+    /**
+     * Specify how long an open circuit breaker refuses calls before letting
+     * probe calls through. Default is five seconds.
+     */
+    public void setOpenDuration(Duration openDuration) {
+        Assert.isTrue(openDuration != null && !openDuration.isNegative(), "openDuration must not be negative");
+        this.openDuration = openDuration;
+    }
+
+    public Duration getOpenDuration() {
+        return this.openDuration;
+    }
+
+    /**
+     * Specify the number of probe calls a half-open circuit breaker lets
+     * through, all of which must succeed for it to close. Default is 5.
+     */
+    public void setHalfOpenCalls(int halfOpenCalls) {
+        Assert.isTrue(halfOpenCalls > 0, "halfOpenCalls must be positive");
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    public int getHalfOpenCalls() {
+        return this.halfOpenCalls;
+    }
+
+    /**
+     * Specify the time budget for a read of the tier. A read taking longer is
+     * not waited for: the lookup moves on to the next tier or the loader, and
+     * the late result, once it arrives, is copied into the tiers above. Default
+     * is none, reading the tier in the caller's thread.
+     * @see AsyncCacheReader
+     */
+    public void setReadTimeout(@Nullable Duration readTimeout) {
+        Assert.isTrue(readTimeout == null || !readTimeout.isNegative(), "readTimeout must not be negative");
+        this.readTimeout = readTimeout;
+    }
+
+    @Nullable
+    public Duration getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    /**
+     * Specify the executor running reads of a tier with a
+     * {@link #setReadTimeout read timeout} or {@link #setHedgedReads hedged
+     * reads} whose delegate does not implement {@link AsyncCacheReader}, as
+     * well as the hedges themselves. It should reject work when saturated; a
+     * rejected read counts as a timeout. By default, a pool of up to
+     * {@link #setReadThreads readThreads} daemon threads is created on first use.
+     */
+    public void setReadExecutor(@Nullable Executor readExecutor) {
+        this.readExecutor = readExecutor;
+    }
+
+    /**
+     * Specify the maximum number of threads of the default read executor. Default is 16.
+     */
+    public void setReadThreads(int readThreads) {
+        Assert.isTrue(readThreads > 0, "readThreads must be positive");
+        this.readThreads = readThreads;
+    }
+
+    public int getReadThreads() {
+        return this.readThreads;
+    }
+
+    /**
+     * Specify whether reads of the tier are hedged: a read that has not been
+     * answered within the tier's observed {@link #setHedgePercentile hedge
+     * percentile} latency is raced against the rest of the lookup (the next
+     * tiers, and the loader of {@code get(key, Callable)}), and the first value
+     * wins. Hedges run on the tier's {@link #setReadExecutor read executor}.
+     * Default is {@code false}.
+     */
+    public void setHedgedReads(boolean hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    public boolean isHedgedReads() {
+        return this.hedgedReads;
+    }
+
+    /**
+     * Specify the latency percentile of the tier after which a read is
+     * hedged. Default is 0.95.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        Assert.isTrue(hedgePercentile > 0 && hedgePercentile < 1, "hedgePercentile must be in (0, 1)");
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public double getHedgePercentile() {
+        return this.hedgePercentile;
+    }
+
+    /**
+     * Specify the maximum share of reads of the tier that may be hedged,
+     * bounding the extra load hedging puts on the next tiers. Default is 0.1.
+     */
+    public void setMaxHedgeRatio(double maxHedgeRatio) {
+        Assert.isTrue(maxHedgeRatio >= 0 && maxHedgeRatio <= 1, "maxHedgeRatio must be in [0, 1]");
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    public double getMaxHedgeRatio() {
+        return this.maxHedgeRatio;
+    }
+
+    /**
+     * Specify whether concurrent single-key reads of the tier are gathered
+     * into multi-gets. Only applies if the delegate implements
+     * {@link BatchCache}. Reads are sent right away while fewer than
+     * {@link #setMaxConcurrentReadBatches maxConcurrentReadBatches} multi-gets
+     * are running, and queue up for the next one otherwise, so batching only
+     * sets in under load. Default is {@code false}.
+     */
+    public void setReadBatching(boolean readBatching) {
+        this.readBatching = readBatching;
+    }
+
+    public boolean isReadBatching() {
+        return this.readBatching;
+    }
+
+    /**
+     * Specify the maximum number of keys per multi-get; a full batch is sent
+     * without waiting for a running one. Default is 64.
+     */
+    public void setReadBatchMaxSize(int readBatchMaxSize) {
+        Assert.isTrue(readBatchMaxSize > 0, "readBatchMaxSize must be positive");
+        this.readBatchMaxSize = readBatchMaxSize;
+    }
+
+    public int getReadBatchMaxSize() {
+        return this.readBatchMaxSize;
+    }
+
+    /**
+     * Specify the number of multi-gets that may run at once before reads
+     * start queuing up. Default is 4.
+     */
+    public void setMaxConcurrentReadBatches(int maxConcurrentReadBatches) {
+        Assert.isTrue(maxConcurrentReadBatches > 0, "maxConcurrentReadBatches must be positive");
+        this.maxConcurrentReadBatches = maxConcurrentReadBatches;
+    }
+
+    public int getMaxConcurrentReadBatches() {
+        return this.maxConcurrentReadBatches;
+    }
+
+    /**
+     * Specify whether reads of the tier are guarded by a
+     * {@link CountingBloomFilter} of its keys, so that keys the filter proves
+     * absent are not read from the delegate at all. Only applies if the
+     * delegate implements {@link ScannableCache}: the filter is built from a
+     * scan of its keys, and only guards reads once the first scan completed.
+     * It is then kept up to date by the writes going through the composite and
+     * rebuilt every {@link #setMembershipFilterRebuildInterval rebuild interval}.
+     * <p>Keys written to the delegate by anything else than this composite
+     * are missed until the next rebuild, so this suits tiers whose keys are
+     * all written through the composite, or change slowly. Default is
+     * {@code false}.
+     */
+    public void setMembershipFilterEnabled(boolean membershipFilterEnabled) {
+        this.membershipFilterEnabled = membershipFilterEnabled;
+    }
+
+    public boolean isMembershipFilterEnabled() {
+        return this.membershipFilterEnabled;
+    }
+
+    /**
+     * Specify the number of keys the tier is expected to hold, which the
+     * membership filter is sized for. Default is 1000000.
+     */
+    public void setMembershipFilterExpectedKeys(long membershipFilterExpectedKeys) {
+        Assert.isTrue(membershipFilterExpectedKeys > 0, "membershipFilterExpectedKeys must be positive");
+        this.membershipFilterExpectedKeys = membershipFilterExpectedKeys;
+    }
+
+    public long getMembershipFilterExpectedKeys() {
+        return this.membershipFilterExpectedKeys;
+    }
+
+    /**
+     * Specify the share of absent keys the membership filter may let through
+     * at the expected number of keys. Default is 0.01.
+     */
+    public void setMembershipFilterFalsePositiveRate(double membershipFilterFalsePositiveRate) {
+        Assert.isTrue(membershipFilterFalsePositiveRate > 0 && membershipFilterFalsePositiveRate < 1,
+                "membershipFilterFalsePositiveRate must be in (0, 1)");
+        this.membershipFilterFalsePositiveRate = membershipFilterFalsePositiveRate;
+    }
+
+    public double getMembershipFilterFalsePositiveRate() {
+        return this.membershipFilterFalsePositiveRate;
+    }
+
+    /**
+     * Specify how often the membership filter is rebuilt from a key scan.
+     * Default is ten minutes.
+     */
+    public void setMembershipFilterRebuildInterval(Duration membershipFilterRebuildInterval) {
+        Assert.isTrue(membershipFilterRebuildInterval != null && !membershipFilterRebuildInterval.isNegative() &&
+                !membershipFilterRebuildInterval.isZero(), "membershipFilterRebuildInterval must be positive");
+        this.membershipFilterRebuildInterval = membershipFilterRebuildInterval;
+    }
+
+    public Duration getMembershipFilterRebuildInterval() {
+        return this.membershipFilterRebuildInterval;
+    }
+
+    /**
+     * Return the executor for timed and hedged reads, creating the default one if none was specified.
+     */
+    public synchronized Executor obtainReadExecutor() {
+        if (this.readExecutor == null) {
+            this.readExecutor = new ThreadPoolExecutor(0, this.readThreads, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "composite-cache-read");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        return this.readExecutor;
+    }
+}
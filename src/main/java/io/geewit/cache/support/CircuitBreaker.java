@@ -0,0 +1,344 @@
+package io.geewit.cache.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.lang.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker guarding one tier of a {@link CompositeCache}.
+ *
+ * <p>While {@link State#CLOSED closed}, calls are counted per time window and
+ * the breaker opens once at least {@code minimumCalls} calls in the current
+ * window failed or were slow at the configured rates. While
+ * {@link State#OPEN open}, {@link #tryAcquire()} refuses calls, which costs a
+ * volatile read and a clock read, until {@code openDuration} has passed. The
+ * breaker then turns {@link State#HALF_OPEN half-open} and lets
+ * {@code halfOpenCalls} probe calls through: all of them succeeding closes it,
+ * any of them failing or being slow opens it again, and so does a probe not
+ * reporting within {@code openDuration} of the last probe let through.
+ *
+ * <p>Each change of state starts a new generation, and the permit returned by
+ * {@link #tryAcquire()} is the generation it was granted in: the outcome of a
+ * call is only counted if the breaker is still in that generation, so that a
+ * call let through while closed and completing after the breaker opened is
+ * not taken for a probe, nor a late probe for a call of the next window.
+ *
+ * <p>All state is kept in atomics; there is no locking on any path.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see CacheTierConfig#setCircuitBreakerEnabled
+ */
+public class CircuitBreaker {
+
+    private static final Log logger = LogFactory.getLog(CircuitBreaker.class);
+
+    /**
+     * The state of a circuit breaker.
+     */
+    public enum State {
+
+        /**
+         * Calls go through and are counted.
+         */
+        CLOSED,
+
+        /**
+         * Calls are refused.
+         */
+        OPEN,
+
+        /**
+         * A limited number of probe calls go through.
+         */
+        HALF_OPEN
+    }
+
+
+    /**
+     * Returned by {@link #tryAcquire()} for a refused call.
+     */
+    public static final long NO_PERMIT = -1L;
+
+
+    private final String name;
+
+    private final double failureRateThreshold;
+
+    private final long slowCallNanos;
+
+    private final double slowCallRateThreshold;
+
+    private final int minimumCalls;
+
+    private final long windowNanos;
+
+    private final long openNanos;
+
+    private final int halfOpenCalls;
+
+    private final AtomicReference<Phase> phase = new AtomicReference<>(new Phase(State.CLOSED, 0L, 0L, 0));
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+    private final LongAdder calls = new LongAdder();
+
+    private final LongAdder failedCalls = new LongAdder();
+
+    private final LongAdder slowCalls = new LongAdder();
+
+    private final LongAdder rejectedCalls = new LongAdder();
+
+
+    /**
+     * Create a circuit breaker with the thresholds of the given tier settings.
+     * @param name the name used in log messages
+     * @param config the tier settings
+     */
+    public CircuitBreaker(String name, CacheTierConfig config) {
+        this.name = name;
+        this.failureRateThreshold = config.getFailureRateThreshold();
+        this.slowCallNanos = config.getSlowCallDuration().toNanos();
+        this.slowCallRateThreshold = config.getSlowCallRateThreshold();
+        this.minimumCalls = config.getMinimumCalls();
+        this.windowNanos = config.getCircuitBreakerWindow().toNanos();
+        this.openNanos = config.getOpenDuration().toNanos();
+        this.halfOpenCalls = config.getHalfOpenCalls();
+    }
+
+
+    /**
+     * Return a permit for a call to go through now, to be passed to
+     * {@link #onSuccess} or {@link #onError} once it completed.
+     * @return the permit, or {@link #NO_PERMIT} if the call is refused
+     */
+    public long tryAcquire() {
+        for (;;) {
+            Phase phase = this.phase.get();
+            if (phase.state == State.CLOSED) {
+                return phase.generation;
+            }
+            long now = System.nanoTime();
+            if (phase.state == State.OPEN) {
+                if (now - phase.since < this.openNanos) {
+                    this.rejectedCalls.increment();
+                    return NO_PERMIT;
+                }
+                transition(phase, State.HALF_OPEN, now, "after " + this.openNanos / 1_000_000L + " ms open");
+                continue;
+            }
+            if (phase.outstandingProbes.get() > 0 && now - phase.lastProbeAt >= this.openNanos) {
+                transition(phase, State.OPEN, now, "probe calls did not complete in time");
+                continue;
+            }
+            if (phase.takePermit(now)) {
+                return phase.generation;
+            }
+            this.rejectedCalls.increment();
+            return NO_PERMIT;
+        }
+    }
+
+    /**
+     * Record a call let through with the given permit that completed normally
+     * after the given time.
+     */
+    public void onSuccess(long permit, long durationNanos) {
+        onResult(permit, false, durationNanos >= this.slowCallNanos);
+    }
+
+    /**
+     * Record a call let through with the given permit that failed after the
+     * given time.
+     */
+    public void onError(long permit, long durationNanos) {
+        onResult(permit, true, durationNanos >= this.slowCallNanos);
+    }
+
+    /**
+     * Record a call made without {@link #tryAcquire()}, such as an eviction,
+     * that completed normally after the given time. Only counted while the
+     * breaker is closed: such a call is no probe of a half-open breaker.
+     */
+    public void onUnguardedSuccess(long durationNanos) {
+        Phase phase = this.phase.get();
+        if (phase.state == State.CLOSED) {
+            count(phase, false, durationNanos >= this.slowCallNanos);
+        }
+    }
+
+    /**
+     * Record a call made without {@link #tryAcquire()} that failed after the
+     * given time. Only counted while the breaker is closed.
+     */
+    public void onUnguardedError(long durationNanos) {
+        Phase phase = this.phase.get();
+        if (phase.state == State.CLOSED) {
+            count(phase, true, durationNanos >= this.slowCallNanos);
+        }
+    }
+
+    private void onResult(long permit, boolean failed, boolean slow) {
+        Phase phase = this.phase.get();
+        if (phase.generation != permit) {
+            // let through before the last change of state
+            return;
+        }
+        if (phase.state == State.CLOSED) {
+            count(phase, failed, slow);
+            return;
+        }
+        phase.outstandingProbes.decrementAndGet();
+        if (failed || slow) {
+            transition(phase, State.OPEN, System.nanoTime(), "probe call " + (failed ? "failed" : "was slow"));
+        } else if (phase.probeSuccesses.incrementAndGet() >= this.halfOpenCalls) {
+            transition(phase, State.CLOSED, System.nanoTime(), null);
+        }
+    }
+
+    private void count(Phase phase, boolean failed, boolean slow) {
+        long now = System.nanoTime();
+        long windowStart = this.windowStart.get();
+        if (now - windowStart >= this.windowNanos && this.windowStart.compareAndSet(windowStart, now)) {
+            resetWindow();
+        }
+        this.calls.increment();
+        if (failed) {
+            this.failedCalls.increment();
+        }
+        if (slow) {
+            this.slowCalls.increment();
+        }
+        if (failed || slow) {
+            long calls = this.calls.sum();
+            if (calls >= this.minimumCalls &&
+                    (this.failedCalls.sum() >= calls * this.failureRateThreshold ||
+                            this.slowCalls.sum() >= calls * this.slowCallRateThreshold)) {
+                transition(phase, State.OPEN, now, this.failedCalls.sum() + " failed and " +
+                        this.slowCalls.sum() + " slow of " + calls + " calls");
+            }
+        }
+    }
+
+    /**
+     * Move from the given phase to the given state, unless another thread
+     * moved on from it first.
+     */
+    private void transition(Phase expected, State state, long now, @Nullable String reason) {
+        Phase next = new Phase(state, expected.generation + 1, now, (state == State.HALF_OPEN ? this.halfOpenCalls : 0));
+        if (!this.phase.compareAndSet(expected, next)) {
+            return;
+        }
+        if (state == State.CLOSED) {
+            this.windowStart.set(now);
+            resetWindow();
+            if (logger.isInfoEnabled()) {
+                logger.info("Circuit breaker for " + this.name + " closed");
+            }
+        } else if (state == State.OPEN) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("Circuit breaker for " + this.name + " opened (" + reason + ")");
+            }
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Circuit breaker for " + this.name + " half-open (" + reason + ")");
+        }
+    }
+
+    private void resetWindow() {
+        this.calls.reset();
+        this.failedCalls.reset();
+        this.slowCalls.reset();
+    }
+
+    /**
+     * Return the current state.
+     */
+    public State getState() {
+        return this.phase.get().state;
+    }
+
+    /**
+     * Return the number of calls refused since this breaker was created.
+     */
+    public long getRejectedCallCount() {
+        return this.rejectedCalls.sum();
+    }
+
+    /**
+     * Return the number of failed calls in the current window.
+     */
+    public long getFailedCallCount() {
+        return this.failedCalls.sum();
+    }
+
+    /**
+     * Return the number of slow calls in the current window.
+     */
+    public long getSlowCallCount() {
+        return this.slowCalls.sum();
+    }
+
+    /**
+     * Return the number of calls in the current window.
+     */
+    public long getCallCount() {
+        return this.calls.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker[" + this.name + "] " + getState();
+    }
+
+
+    /**
+     * A generation of the breaker: its state, when it was entered and, while
+     * half-open, the probe calls let through.
+     */
+    private static final class Phase {
+
+        final State state;
+
+        final long generation;
+
+        final long since;
+
+        private final AtomicInteger probePermits;
+
+        final AtomicInteger outstandingProbes = new AtomicInteger();
+
+        final AtomicInteger probeSuccesses = new AtomicInteger();
+
+        volatile long lastProbeAt;
+
+        Phase(State state, long generation, long since, int probePermits) {
+            this.state = state;
+            this.generation = generation;
+            this.since = since;
+            this.probePermits = new AtomicInteger(probePermits);
+            this.lastProbeAt = since;
+        }
+
+        /**
+         * Take one of the probe permits left, if any.
+         */
+        boolean takePermit(long now) {
+            for (;;) {
+                int permits = this.probePermits.get();
+                if (permits <= 0) {
+                    return false;
+                }
+                if (this.probePermits.compareAndSet(permits, permits - 1)) {
+                    this.outstandingProbes.incrementAndGet();
+                    this.lastProbeAt = now;
+                    return true;
+                }
+            }
+        }
+    }
+}
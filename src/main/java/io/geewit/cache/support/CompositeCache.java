@@ -1,14 +1,43 @@
 package io.geewit.cache.support;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.cache.Cache;
 import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
 import org.springframework.cache.support.AbstractValueAdaptingCache;
+import org.springframework.cache.support.NullValue;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
-import java.util.Stack;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * Simple {@link org.springframework.cache.Cache} implementation based on the
@@ -29,49 +58,917 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class CompositeCache extends AbstractValueAdaptingCache {
 
+    private static final Log logger = LogFactory.getLog(CompositeCache.class);
+
+    private static final CacheTierConfig DEFAULT_TIER_CONFIG = new CacheTierConfig();
+
+    /**
+     * Marker for a read that did not complete in time.
+     */
+    private static final Object TIMED_OUT = new Object();
+
+    /**
+     * Marker for a walk that has not taken a {@link KeyGenerations} stamp yet.
+     */
+    private static final long UNSTAMPED = -1L;
+
+    private static final long REFRESH_AHEAD_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
     private final String name;
 
-    private final List<Cache> caches;
+    /**
+     * The delegate tiers, ordered from the nearest (L1) to the farthest.
+     * Never contains {@code null} and is never modified after construction.
+     */
+    private final CacheTier[] tiers;
+
+    /**
+     * Whether several tiers store encoded values, which are then encoded once per write.
+     */
+    private final boolean sharedEncoding;
+
+    /**
+     * Loads currently running through {@link #get(Object, Callable)}, one per key.
+     */
+    private final ConcurrentMap<Object, CompletableFuture<Object>> loadsInFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Keys with a backfill queued or running on the {@link #backfillExecutor}.
+     */
+    private final ConcurrentMap<Object, Boolean> backfillsInFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder droppedBackfills = new LongAdder();
+
+    private final KeyGenerations generations = new KeyGenerations();
+
+    /**
+     * The stamps of all keys when warming from a snapshot became possible,
+     * which warmed values must still be current with.
+     */
+    private volatile long[] warmStamps = this.generations.stampAll();
+
+    private final LongAdder staleBackfills = new LongAdder();
+
+    /**
+     * Keys with a background reload of a stale entry queued or running.
+     */
+    private final ConcurrentMap<Object, Boolean> refreshesInFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder staleHits = new LongAdder();
+
+    private final LongAdder negativeHits = new LongAdder();
+
+    private final LongAdder negativePuts = new LongAdder();
+
+    private final LongAdder refreshFailures = new LongAdder();
+
+    private final AtomicInteger refreshesRunning = new AtomicInteger();
+
+    private final LongAdder skippedRefreshes = new LongAdder();
+
+    /**
+     * Keys read through {@link #get(Object, Callable)} with a refresh-ahead
+     * timer pending, one per key.
+     */
+    private final ConcurrentMap<Object, RefreshAhead> refreshesAhead = new ConcurrentHashMap<>();
+
+    private final TimerWheel<RefreshAhead> refreshAheadTimers = new TimerWheel<>(REFRESH_AHEAD_TICK_NANOS);
+
+    private final LongAdder refreshesAheadStarted = new LongAdder();
+
+    private final LongAdder hintedReads = new LongAdder();
+
+    private final LongAdder missedHints = new LongAdder();
+
+    @Nullable
+    private volatile LocationHints locationHints;
+
+    @Nullable
+    private Executor backfillExecutor;
+
+    @Nullable
+    private AdmissionPolicy admissionPolicy;
+
+    private long softTimeToLiveMillis = 0L;
+
+    private long hardTimeToLiveMillis = 0L;
+
+    private long negativeTimeToLiveMillis = 0L;
+
+    private boolean negativeEntriesInFirstTier = false;
+
+    private Executor refreshExecutor = ForkJoinPool.commonPool();
+
+    private int maxConcurrentRefreshes = 16;
+
+    private long refreshAheadMillis = 0L;
+
+    private int refreshAheadMinimumHits = 2;
+
+    @Nullable
+    private ScheduledExecutorService refreshAheadScheduler;
+
+    @Nullable
+    private volatile ScheduledFuture<?> refreshAheadTicker;
 
     /**
-     * Create a new ConcurrentMapCache with the specified name.
+     * Create a new CompositeCache with the specified name.
      * @param name the name of the cache
+     * @param caches the delegate caches, nearest tier first ({@code null} elements are skipped)
+     * @param allowNullValues whether to accept and convert {@code null} values for this cache
      */
     public CompositeCache(String name, List<Cache> caches, boolean allowNullValues) {
+        this(name, caches, Collections.emptyList(), allowNullValues);
+    }
+
+    /**
+     * Create a new CompositeCache with the specified name and tier settings.
+     * @param name the name of the cache
+     * @param caches the delegate caches, nearest tier first ({@code null} elements are skipped)
+     * @param tierConfigs the settings of the tier at the same position in {@code caches};
+     * missing or {@code null} elements stand for the default settings
+     * @param allowNullValues whether to accept and convert {@code null} values for this cache
+     */
+    public CompositeCache(String name, List<Cache> caches, List<CacheTierConfig> tierConfigs, boolean allowNullValues) {
         super(allowNullValues);
         this.name = name;
-        this.caches = caches;
+        List<CacheTier> tiers = new ArrayList<>(caches.size());
+        for (int i = 0; i < caches.size(); i++) {
+            Cache cache = caches.get(i);
+            if (cache != null) {
+                CacheTierConfig config = (i < tierConfigs.size() ? tierConfigs.get(i) : null);
+                tiers.add(new CacheTier(tiers.size(), cache, config != null ? config : DEFAULT_TIER_CONFIG));
+            }
+        }
+        this.tiers = tiers.toArray(new CacheTier[0]);
+        int encodingTiers = 0;
+        for (CacheTier tier : this.tiers) {
+            if (tier.isEncoding()) {
+                encodingTiers++;
+            }
+        }
+        this.sharedEncoding = (encodingTiers > 1);
+    }
+
+
+    /**
+     * Set the executor that copies lower-tier hits into the tiers above them.
+     * <p>By default (or when set to {@code null}) the backfill runs in the
+     * caller's thread. With an executor, backfills are coalesced per key, so a
+     * burst of hits on one key promotes it once. The executor is expected to be
+     * bounded and to reject work when saturated, e.g. a
+     * {@link java.util.concurrent.ThreadPoolExecutor} with a bounded queue and
+     * the default abort policy; rejected backfills are dropped and counted in
+     * {@link #getDroppedBackfillCount()}.
+     */
+    public void setBackfillExecutor(@Nullable Executor backfillExecutor) {
+        this.backfillExecutor = backfillExecutor;
+    }
+
+    /**
+     * Set the policy deciding whether lower-tier hits are promoted into the
+     * first tier. By default every hit is promoted into every tier above it;
+     * with a policy, tiers below the first one are still backfilled but the
+     * first tier only receives the keys the policy admits, which keeps
+     * one-off scans from displacing its hot set.
+     * @see TinyLfuAdmissionPolicy
+     */
+    public void setAdmissionPolicy(@Nullable AdmissionPolicy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy;
+    }
+
+    /**
+     * Set the time after which an entry written by this composite turns stale.
+     * <p>A stale entry is still returned by {@link #get(Object, Callable)},
+     * which reloads it in the background through the given loader, once per
+     * key at a time. A plain {@link #get(Object)} has no loader to refresh with
+     * and treats a stale entry as a miss, so that the caller loads and puts it.
+     * <p>With a soft or {@link #setHardTimeToLive hard} time-to-live, values
+     * are stored in the tiers as {@link CacheEntry} instances carrying their
+     * write time, which tiers shared with other applications must be able to
+     * hold. The delegates' own expiration should not be shorter than the hard
+     * time-to-live. Default is none.
+     */
+    public void setSoftTimeToLive(@Nullable Duration softTimeToLive) {
+        Assert.isTrue(softTimeToLive == null || !softTimeToLive.isNegative(), "softTimeToLive must not be negative");
+        this.softTimeToLiveMillis = (softTimeToLive != null ? softTimeToLive.toMillis() : 0L);
     }
 
+    /**
+     * Set the time after which an entry written by this composite is no
+     * longer returned at all, stale or not. Default is none, leaving
+     * expiration to the delegates.
+     * @see #setSoftTimeToLive
+     */
+    public void setHardTimeToLive(@Nullable Duration hardTimeToLive) {
+        Assert.isTrue(hardTimeToLive == null || !hardTimeToLive.isNegative(), "hardTimeToLive must not be negative");
+        this.hardTimeToLiveMillis = (hardTimeToLive != null ? hardTimeToLive.toMillis() : 0L);
+    }
 
+    /**
+     * Set the time after which a cached {@code null} expires, usually shorter
+     * than that of values. Negative entries have no stale phase. Default is
+     * none, applying the time-to-live of values.
+     * <p>{@code null} values are only cached if the composite was created to
+     * {@link #isAllowNullValues() allow} them; they are stored in the tiers as
+     * {@link NullValue#INSTANCE}, which any delegate can hold.
+     */
+    public void setNegativeTimeToLive(@Nullable Duration negativeTimeToLive) {
+        Assert.isTrue(negativeTimeToLive == null || !negativeTimeToLive.isNegative(),
+                "negativeTimeToLive must not be negative");
+        this.negativeTimeToLiveMillis = (negativeTimeToLive != null ? negativeTimeToLive.toMillis() : 0L);
+    }
+
+    /**
+     * Set whether cached {@code null} values are also kept in the first tier.
+     * By default they are only kept in the tiers below it, leaving the first
+     * tier to actual values; a {@code null} put evicts the key from the first
+     * tier instead.
+     */
+    public void setNegativeEntriesInFirstTier(boolean negativeEntriesInFirstTier) {
+        this.negativeEntriesInFirstTier = negativeEntriesInFirstTier;
+    }
+
+    /**
+     * Set the executor reloading stale entries. Default is the
+     * {@link ForkJoinPool#commonPool() common pool}; loaders that block on I/O
+     * should rather get a dedicated executor. A rejected reload is skipped and
+     * attempted again on the next stale hit.
+     */
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        Assert.notNull(refreshExecutor, "refreshExecutor must not be null");
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Set the maximum number of background reloads of this cache running at
+     * once, stale or {@link #setRefreshAheadTime ahead of time}. Reloads beyond
+     * it are skipped, so that one cache cannot take over the refresh executor.
+     * Default is 16.
+     */
+    public void setMaxConcurrentRefreshes(int maxConcurrentRefreshes) {
+        Assert.isTrue(maxConcurrentRefreshes > 0, "maxConcurrentRefreshes must be positive");
+        this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+    }
+
+    /**
+     * Set how long before an entry turns stale it is reloaded, if it is hot.
+     * <p>The first {@link #get(Object, Callable)} of an entry schedules a
+     * timer at that point in time, and later calls count hits on it. When the
+     * timer fires and the entry has had at least
+     * {@link #setRefreshAheadMinimumHits minimum hits}, it is reloaded in the
+     * background through the loader of the first call, so that hot keys do not
+     * expire under traffic, while cold keys are left to expire. Timers are kept
+     * in a hierarchical {@link TimerWheel} advanced every 100 milliseconds by the
+     * {@link #setRefreshAheadScheduler refresh-ahead scheduler}. Requires a
+     * {@link #setSoftTimeToLive soft} or {@link #setHardTimeToLive hard}
+     * time-to-live. Default is none.
+     */
+    public void setRefreshAheadTime(@Nullable Duration refreshAheadTime) {
+        Assert.isTrue(refreshAheadTime == null || !refreshAheadTime.isNegative(),
+                "refreshAheadTime must not be negative");
+        this.refreshAheadMillis = (refreshAheadTime != null ? refreshAheadTime.toMillis() : 0L);
+    }
+
+    /**
+     * Set the number of reads through {@link #get(Object, Callable)} an entry
+     * needs before its refresh-ahead timer fires to be reloaded. Default is 2.
+     */
+    public void setRefreshAheadMinimumHits(int refreshAheadMinimumHits) {
+        Assert.isTrue(refreshAheadMinimumHits > 0, "refreshAheadMinimumHits must be positive");
+        this.refreshAheadMinimumHits = refreshAheadMinimumHits;
+    }
+
+    /**
+     * Set the scheduler advancing the refresh-ahead timers, which it does from
+     * the first timer on. Without a scheduler, entries are not refreshed ahead
+     * of time.
+     * @see #setRefreshAheadTime
+     */
+    public void setRefreshAheadScheduler(@Nullable ScheduledExecutorService refreshAheadScheduler) {
+        this.refreshAheadScheduler = refreshAheadScheduler;
+    }
+
+    /**
+     * Set the number of keys below the first tier whose location is kept as
+     * a hint, so that {@link #lookup} and {@link #get(Object, Callable)} go
+     * straight to the tier holding them instead of probing the tiers above.
+     * <p>Hints are recorded for keys that are placed below the first tier on
+     * purpose: hits the {@link #setAdmissionPolicy admission policy} keeps out
+     * of the first tier and cached {@code null} values, unless
+     * {@link #setNegativeEntriesInFirstTier kept there}. Puts, evictions and
+     * promotions into the first tier drop them. They are kept in a
+     * {@link LocationHints} table of eight bytes per key, which overwrites
+     * older hints once full. A hinted tier that misses is taken as a wrong
+     * hint: it is dropped and the skipped tiers are read after all. Bulk reads
+     * do not use hints. Default is 0, for none.
+     */
+    public void setLocationHintCapacity(int locationHintCapacity) {
+        Assert.isTrue(locationHintCapacity >= 0, "locationHintCapacity must not be negative");
+        this.locationHints = (locationHintCapacity > 0 ? new LocationHints(locationHintCapacity) : null);
+    }
+
+    /**
+     * Set the scheduler flushing the queued writes of
+     * {@link CacheTierConfig.WriteMode#WRITE_BEHIND write-behind} tiers, both
+     * periodically and whenever a batch is full. Without a scheduler, a full
+     * batch is flushed by the writing thread and the rest waits for
+     * {@link #flush()}.
+     */
+    public void setWriteBehindScheduler(ScheduledExecutorService writeBehindScheduler) {
+        for (CacheTier tier : this.tiers) {
+            tier.startWriteBehind(writeBehindScheduler);
+        }
+    }
+
+    /**
+     * Set the scheduler rebuilding the
+     * {@link CacheTierConfig#setMembershipFilterEnabled membership filters} of
+     * the tiers from key scans, right away and then every rebuild interval.
+     * Scans run on the scheduler's threads. Without a scheduler, filters are
+     * only built by {@link #rebuildMembershipFilters()}.
+     */
+    public void setMembershipFilterScheduler(ScheduledExecutorService membershipFilterScheduler) {
+        for (CacheTier tier : this.tiers) {
+            tier.startMembershipFilter(membershipFilterScheduler);
+        }
+    }
+
+    /**
+     * Rebuild the membership filters of the tiers from key scans, in the
+     * calling thread.
+     */
+    public void rebuildMembershipFilters() {
+        for (CacheTier tier : this.tiers) {
+            tier.rebuildMembershipFilter();
+        }
+    }
+
+    /**
+     * Write all queued writes of write-behind tiers to their delegates.
+     */
+    public void flush() {
+        for (CacheTier tier : this.tiers) {
+            tier.flush();
+        }
+    }
+
+    /**
+     * Return up to the given number of keys of the first tier: hottest first
+     * if its delegate is a {@link HotKeysCache} or the
+     * {@link #setAdmissionPolicy admission policy} a {@link TinyLfuAdmissionPolicy},
+     * in no particular order otherwise. Empty if the delegate can neither be
+     * {@link ScannableCache scanned} nor has a {@link Map} as native cache.
+     */
+    List<Object> hottestKeys(int limit) {
+        Cache cache = this.tiers[0].getCache();
+        if (cache instanceof HotKeysCache) {
+            return ((HotKeysCache) cache).hottestKeys(limit);
+        }
+        List<Object> keys = new ArrayList<>();
+        if (cache instanceof ScannableCache) {
+            ((ScannableCache) cache).scanKeys(keys::add);
+        } else if (cache.getNativeCache() instanceof Map) {
+            keys.addAll(((Map<?, ?>) cache.getNativeCache()).keySet());
+        }
+        AdmissionPolicy admissionPolicy = this.admissionPolicy;
+        if (admissionPolicy instanceof TinyLfuAdmissionPolicy) {
+            return ((TinyLfuAdmissionPolicy) admissionPolicy).getSketch().mostFrequent(keys, limit);
+        }
+        return (keys.size() > limit ? new ArrayList<>(keys.subList(0, limit)) : keys);
+    }
+
+    /**
+     * Return the store value of the given key in the first tier, without
+     * counting a hit or a miss.
+     */
+    @Nullable
+    Object peekFirstTier(Object key) {
+        return this.tiers[0].peek(key);
+    }
+
+    /**
+     * Take the stamps snapshot values warmed afterwards must still be current
+     * with; otherwise those taken when this composite was created apply.
+     * To be called before the composite serves any write that a warmed value
+     * must not overwrite.
+     */
+    void prepareWarming() {
+        this.warmStamps = this.generations.stampAll();
+    }
+
+    /**
+     * Bring the given key, restored from a snapshot, back into the first tier:
+     * with the given store value, unless the key has been written or evicted
+     * since {@link #prepareWarming()}, or else by reading it from the lower
+     * tiers, which backfills it as a lookup would.
+     * @param storeValue the store value from the snapshot, if any
+     */
+    void warm(Object key, @Nullable Object storeValue) {
+        if (storeValue == null) {
+            walkFrom(key, 1, null, 1);
+            return;
+        }
+        if ((storeValue instanceof CacheEntry && ((CacheEntry) storeValue).isExpired(System.currentTimeMillis())) ||
+                (isNegative(storeValue) && !this.negativeEntriesInFirstTier)) {
+            return;
+        }
+        promote(key, storeValue, 1, 0, this.generations.stamp(this.warmStamps, key), 1);
+    }
+
+    /**
+     * Return the tiers of this composite, nearest first, with their read mode
+     * and hit statistics.
+     */
+    public List<CacheTier> getTiers() {
+        return Collections.unmodifiableList(Arrays.asList(this.tiers));
+    }
+
+    /**
+     * Return the number of asynchronous backfills dropped because the
+     * {@link #setBackfillExecutor backfill executor} was saturated.
+     */
+    public long getDroppedBackfillCount() {
+        return this.droppedBackfills.sum();
+    }
+
+    /**
+     * Return the number of backfills dropped or undone because their key was
+     * written or evicted after the lookup that found the value had started.
+     */
+    public long getStaleBackfillCount() {
+        return this.staleBackfills.sum();
+    }
+
+    /**
+     * Return the number of lookups answered by the tier their
+     * {@link #setLocationHintCapacity location hint} pointed to.
+     */
+    public long getHintedReadCount() {
+        return this.hintedReads.sum();
+    }
+
+    /**
+     * Return the number of location hints found wrong on a lookup.
+     */
+    public long getMissedHintCount() {
+        return this.missedHints.sum();
+    }
+
+    /**
+     * Return the number of lookups answered with a cached {@code null}.
+     */
+    public long getNegativeHitCount() {
+        return this.negativeHits.sum();
+    }
+
+    /**
+     * Return the number of {@code null} values written to the tiers.
+     */
+    public long getNegativePutCount() {
+        return this.negativePuts.sum();
+    }
+
+    /**
+     * Return the number of stale entries returned by {@link #get(Object, Callable)}.
+     */
+    public long getStaleHitCount() {
+        return this.staleHits.sum();
+    }
+
+    /**
+     * Return the number of background reloads of stale entries that failed.
+     */
+    public long getRefreshFailureCount() {
+        return this.refreshFailures.sum();
+    }
+
+    /**
+     * Return the number of background reloads skipped because
+     * {@link #setMaxConcurrentRefreshes maxConcurrentRefreshes} were running or
+     * the refresh executor rejected them.
+     */
+    public long getSkippedRefreshCount() {
+        return this.skippedRefreshes.sum();
+    }
+
+    /**
+     * Return the number of reloads of hot entries started ahead of time.
+     */
+    public long getRefreshAheadCount() {
+        return this.refreshesAheadStarted.sum();
+    }
+
+    /**
+     * Walk the tiers in order and return the first hit.
+     * <p>A hit in the first tier returns straight away without any allocation;
+     * {@link #get(Object)} adds the allocation of its value wrapper.
+     * A hit in a lower tier backfills the tiers above it; since every readable
+     * tier above the hit index has missed, they are addressed by index rather
+     * than collected on the way down.
+     * <p>Before a lower tier is read, the key's write generation is stamped;
+     * a backfill whose key has been written or evicted since is dropped, so
+     * that it cannot bring back an invalidated value.
+     * <p>A stale {@link CacheEntry} is reported as a miss, there being no
+     * loader to refresh it with.
+     */
     @Override
     public Object lookup(Object key) {
-        Stack<Cache> noCacheStack = new Stack<>();
-        for(Cache cache : this.caches) {
-            if(cache == null) {
-                continue;
+        AdmissionPolicy admissionPolicy = this.admissionPolicy;
+        if (admissionPolicy != null) {
+            admissionPolicy.record(key);
+        }
+        Object storeValue = walk(key, null);
+        if (storeValue instanceof CacheEntry && ((CacheEntry) storeValue).isStale(System.currentTimeMillis())) {
+            return null;
+        }
+        if (isNegative(storeValue)) {
+            this.negativeHits.increment();
+        }
+        return storeValue;
+    }
+
+    /**
+     * Lease the byte array value for the given key straight from the storage
+     * of the first {@link CacheTier#isLeasable() leasable} tier, such as a
+     * {@link DiskCache}, without copying or deserializing it; its buffer can
+     * be written to a channel or handed to a parser as is.
+     * <p>The tiers above are not read, and neither hits nor the admission
+     * policy record the read: this is meant for large values the upper tiers
+     * do not hold anyway. Values stored with a time-to-live are wrapped in a
+     * {@link CacheEntry}, and are therefore never leased.
+     * @param key the key whose associated value is to be returned
+     * @return the lease, which the caller must close once done with its buffer,
+     * or {@code null} if there is no such value to lease, in which case
+     * {@link #get(Object)} still applies
+     */
+    @Nullable
+    public ValueLease lease(Object key) {
+        for (CacheTier tier : this.tiers) {
+            if (tier.isLeasable()) {
+                return tier.lease(key);
             }
-            if(cache instanceof AbstractValueAdaptingCache) {
-                Object value = ((AbstractValueAdaptingCache)cache).lookup(key);
-                if(value != null) {
-                    while (!noCacheStack.isEmpty()) {
-                        Cache noCache = noCacheStack.pop();
-                        if(noCache != null) {
-                            try {
-                                noCache.put(key, value);
-                            } catch (Exception ignored) {
-                            }
-                        }
-                    }
+        }
+        return null;
+    }
+
+    /**
+     * Walk the tiers and return the first hit.
+     * <p>The walk starts at the tier of the key's
+     * {@link #setLocationHintCapacity location hint}, if any; if that part of
+     * the walk misses, the hint is dropped and the tiers above are read. A
+     * value found from the hint is not copied over a value of the tiers the
+     * hint skipped.
+     * @param valueLoader the loader of a {@link #get(Object, Callable)} call,
+     * which hedged reads may race against; {@code null} for a plain lookup
+     */
+    @Nullable
+    private Object walk(Object key, @Nullable Callable<?> valueLoader) {
+        LocationHints locationHints = this.locationHints;
+        if (locationHints != null) {
+            int hintedIndex = locationHints.get(key);
+            if (hintedIndex > 0 && hintedIndex < this.tiers.length) {
+                Object value = walkFrom(key, hintedIndex, valueLoader, hintedIndex);
+                if (value != null) {
+                    this.hintedReads.increment();
                     return value;
-                } else {
-                    noCacheStack.push(cache);
                 }
+                this.missedHints.increment();
+                locationHints.remove(key);
+                return walkAbove(key, hintedIndex);
+            }
+        }
+        return walkFrom(key, 0, valueLoader, 0);
+    }
+
+    /**
+     * Walk the tiers from {@code fromIndex} on and return the first hit.
+     * @param readFrom the first tier read for this lookup: the ones above it
+     * were skipped rather than found to miss
+     */
+    @Nullable
+    private Object walkFrom(Object key, int fromIndex, @Nullable Callable<?> valueLoader, int readFrom) {
+        CacheTier[] tiers = this.tiers;
+        long stamp = UNSTAMPED;
+        for (int i = fromIndex; i < tiers.length; i++) {
+            CacheTier tier = tiers[i];
+            if (i > 0 && stamp == UNSTAMPED) {
+                stamp = this.generations.stamp(key);
+            }
+            if (tier.isHedged()) {
+                return readHedged(tier, key, i, valueLoader, stamp, readFrom);
+            }
+            Object value = (tier.hasReadTimeout() ? readWithinBudget(tier, key, i, stamp, readFrom) : tier.read(key));
+            if (value != null) {
+                if (i > 0) {
+                    backfill(key, value, i, stamp, readFrom);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Walk the tiers above {@code toIndex} that a wrong location hint
+     * skipped, without hedging.
+     */
+    @Nullable
+    private Object walkAbove(Object key, int toIndex) {
+        long stamp = UNSTAMPED;
+        for (int i = 0; i < toIndex; i++) {
+            CacheTier tier = this.tiers[i];
+            if (i > 0 && stamp == UNSTAMPED) {
+                stamp = this.generations.stamp(key);
+            }
+            Object value = (tier.hasReadTimeout() ? readWithinBudget(tier, key, i, stamp, 0) : tier.read(key));
+            if (value != null) {
+                if (i > 0) {
+                    backfill(key, value, i, stamp, 0);
+                }
+                return value;
             }
         }
         return null;
     }
 
+    /**
+     * Read a tier with a read timeout, giving up once the budget is spent.
+     * A value arriving late is still copied into the tiers above.
+     */
+    @Nullable
+    private Object readWithinBudget(CacheTier tier, Object key, int index, long stamp, int readFrom) {
+        CompletableFuture<Object> future = tier.readAsync(key);
+        Object value = await(future, tier.getReadTimeoutNanos());
+        if (value == TIMED_OUT) {
+            backfillWhenDone(tier, key, index, future, stamp, readFrom);
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * Read a hedged tier and finish the walk from there.
+     * <p>If the tier has not answered after its hedge delay, the rest of the
+     * walk, including the loader if any, is started on the tier's read
+     * executor, and the first value of either wins. Once the read timeout of
+     * the tier (if any) is spent, a running hedge is left to complete on its
+     * own, otherwise the walk continues with the next tier.
+     */
+    @Nullable
+    private Object readHedged(CacheTier tier, Object key, int index, @Nullable Callable<?> valueLoader,
+                              long stamp, int readFrom) {
+        long start = System.nanoTime();
+        long budget = (tier.hasReadTimeout() ? tier.getReadTimeoutNanos() : Long.MAX_VALUE);
+        long hedgeDelay = tier.startHedgeableRead();
+        boolean hedgeable = (hedgeDelay >= 0 && hedgeDelay < budget &&
+                (index + 1 < this.tiers.length || valueLoader != null));
+        CompletableFuture<Object> primary = tier.readAsync(key);
+        Object value = await(primary, hedgeable ? hedgeDelay : budget);
+        CompletableFuture<Object> hedge = null;
+        if (value == TIMED_OUT && hedgeable) {
+            if (tier.tryHedge()) {
+                try {
+                    hedge = CompletableFuture.supplyAsync(() -> hedge(key, index + 1, valueLoader, readFrom),
+                            tier.getReadExecutor());
+                } catch (RejectedExecutionException ignored) {
+                }
+            }
+            long remaining = (budget == Long.MAX_VALUE ? budget : budget - (System.nanoTime() - start));
+            value = await(hedge != null ? firstNonNull(primary, hedge) : primary, remaining);
+        }
+        if (value == TIMED_OUT) {
+            backfillWhenDone(tier, key, index, primary, stamp, readFrom);
+            return (hedge != null ? null : walkFrom(key, index + 1, valueLoader, readFrom));
+        }
+        if (value == null) {
+            return (hedge != null ? null : walkFrom(key, index + 1, valueLoader, readFrom));
+        }
+        if (index > 0 && primary.getNow(null) == value) {
+            backfill(key, value, index, stamp, readFrom);
+        }
+        return value;
+    }
+
+    /**
+     * Finish a walk as a hedge: the remaining tiers, then the loader if any.
+     * @return the store value, {@link NullValue#INSTANCE} for a loaded {@code null}
+     */
+    @Nullable
+    private Object hedge(Object key, int fromIndex, @Nullable Callable<?> valueLoader, int readFrom) {
+        Object value = walkFrom(key, fromIndex, valueLoader, readFrom);
+        if (value == null && valueLoader != null) {
+            Object loaded = load(key, valueLoader, false);
+            value = (loaded != null ? loaded : NullValue.INSTANCE);
+        }
+        return value;
+    }
+
+    private void backfillWhenDone(CacheTier tier, Object key, int index, CompletableFuture<Object> future,
+                                  long stamp, int readFrom) {
+        tier.onReadTimeout();
+        if (index > 0) {
+            future.thenAccept(value -> {
+                if (value != null) {
+                    backfill(key, value, index, stamp, readFrom);
+                }
+            });
+        }
+    }
+
+    /**
+     * Wait for the given future for at most the given time.
+     * @return its value, or {@link #TIMED_OUT}
+     */
+    @Nullable
+    private static Object await(CompletableFuture<Object> future, long timeoutNanos) {
+        try {
+            return (timeoutNanos == Long.MAX_VALUE ? future.get() : future.get(timeoutNanos, TimeUnit.NANOSECONDS));
+        } catch (TimeoutException ex) {
+            return TIMED_OUT;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            // tier failures are handled by the tier, so this is a hedged load failing
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Return a future completed with the first non-null value of the given
+     * futures, or with {@code null} (respectively the failure of either) once
+     * both are done without a value.
+     */
+    private static CompletableFuture<Object> firstNonNull(CompletableFuture<Object> first,
+                                                          CompletableFuture<Object> second) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(2);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        BiConsumer<Object, Throwable> action = (value, ex) -> {
+            if (value != null) {
+                result.complete(value);
+                return;
+            }
+            if (ex != null) {
+                failure.compareAndSet(null, ex);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                Throwable cause = failure.get();
+                if (cause != null) {
+                    result.completeExceptionally(cause instanceof CompletionException && cause.getCause() != null ?
+                            cause.getCause() : cause);
+                } else {
+                    result.complete(null);
+                }
+            }
+        };
+        first.whenComplete(action);
+        second.whenComplete(action);
+        return result;
+    }
+
+    /**
+     * Copy a value found in tier {@code hitIndex} into every readable tier
+     * above it, either right away or through the backfill executor.
+     * @param stamp the generation stamp of the key taken before the tier was read
+     * @param readFrom the first tier read for the lookup
+     */
+    private void backfill(Object key, Object value, int hitIndex, long stamp, int readFrom) {
+        AdmissionPolicy admissionPolicy = this.admissionPolicy;
+        int topIndex = ((isNegative(value) && !this.negativeEntriesInFirstTier) ||
+                (admissionPolicy != null && !admissionPolicy.admit(key)) ? 1 : 0);
+        if (topIndex >= hitIndex) {
+            if (this.locationHints != null && this.generations.isCurrent(key, stamp)) {
+                this.locationHints.set(key, hitIndex);
+            }
+            return;
+        }
+        Executor executor = this.backfillExecutor;
+        if (executor == null) {
+            promote(key, value, hitIndex, topIndex, stamp, readFrom);
+            return;
+        }
+        if (this.backfillsInFlight.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    promote(key, value, hitIndex, topIndex, stamp, readFrom);
+                } finally {
+                    this.backfillsInFlight.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            this.backfillsInFlight.remove(key);
+            this.droppedBackfills.increment();
+        }
+    }
+
+    /**
+     * Write a value found in tier {@code hitIndex} into every readable tier
+     * from {@code topIndex} up to the one above it, nearest to the hit first.
+     * <p>Nothing is written if the key has been written or evicted since the
+     * stamp was taken. A write or eviction starting while the value is being
+     * written may have missed it, so in that case it is evicted again.
+     * A tier above {@code readFrom}, which the lookup did not read, is written
+     * only if it does not hold the key: a location hint of another key of the
+     * same fingerprint may have skipped it, and its value stands, as do those
+     * of the tiers above it. Otherwise the location hint of the key is moved
+     * to the nearest tier holding it.
+     */
+    private void promote(Object key, Object value, int hitIndex, int topIndex, long stamp, int readFrom) {
+        if (!this.generations.isCurrent(key, stamp)) {
+            this.staleBackfills.increment();
+            return;
+        }
+        EncodedValue encoded = (this.sharedEncoding ? new EncodedValue(value) : null);
+        int nearestIndex = topIndex;
+        int writtenIndex = hitIndex;
+        for (int i = hitIndex - 1; i >= topIndex; i--) {
+            CacheTier tier = this.tiers[i];
+            if (tier.isReadable()) {
+                if (i < readFrom && tier.peek(key) != null) {
+                    nearestIndex = i;
+                    break;
+                }
+                if (encoded != null) {
+                    tier.put(key, encoded);
+                } else {
+                    tier.put(key, value);
+                }
+                writtenIndex = i;
+            }
+        }
+        LocationHints locationHints = this.locationHints;
+        if (locationHints != null) {
+            locationHints.set(key, nearestIndex);
+        }
+        if (!this.generations.isCurrent(key, stamp)) {
+            this.staleBackfills.increment();
+            for (int i = hitIndex - 1; i >= writtenIndex; i--) {
+                CacheTier tier = this.tiers[i];
+                if (tier.isReadable()) {
+                    tier.evict(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unwrap a {@link CacheEntry} and convert {@link NullValue#INSTANCE} to
+     * {@code null} whichever tier it comes from, so that neither ever reaches
+     * the caller.
+     */
+    @Override
+    @Nullable
+    protected Object fromStoreValue(@Nullable Object storeValue) {
+        if (storeValue instanceof CacheEntry) {
+            storeValue = ((CacheEntry) storeValue).getValue();
+        }
+        return (storeValue != NullValue.INSTANCE ? storeValue : null);
+    }
+
+    /**
+     * Wrap a value in a {@link CacheEntry} stamped with the current time, if a
+     * time-to-live is set.
+     */
+    private Object toEntry(Object value) {
+        long softTtl = this.softTimeToLiveMillis;
+        long hardTtl = this.hardTimeToLiveMillis;
+        if (value == NullValue.INSTANCE && this.negativeTimeToLiveMillis > 0) {
+            softTtl = 0L;
+            hardTtl = this.negativeTimeToLiveMillis;
+        }
+        if (softTtl <= 0 && hardTtl <= 0) {
+            return value;
+        }
+        long now = System.currentTimeMillis();
+        long expireTime = (hardTtl > 0 ? saturatedAdd(now, hardTtl) : Long.MAX_VALUE);
+        long staleTime = (softTtl > 0 ? Math.min(saturatedAdd(now, softTtl), expireTime) : expireTime);
+        return new CacheEntry(value, now, staleTime, expireTime);
+    }
+
+    /**
+     * Return whether the given store value is a cached {@code null}.
+     */
+    private static boolean isNegative(@Nullable Object storeValue) {
+        if (storeValue instanceof CacheEntry) {
+            storeValue = ((CacheEntry) storeValue).getValue();
+        }
+        return storeValue == NullValue.INSTANCE;
+    }
+
+    private static long saturatedAdd(long time, long duration) {
+        long sum = time + duration;
+        return (sum < time ? Long.MAX_VALUE : sum);
+    }
+
     @Override
     public String getName() {
         return this.name;
@@ -82,51 +979,540 @@ public class CompositeCache extends AbstractValueAdaptingCache {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Return the value from the first tier that holds it, otherwise load it.
+     * <p>Every tier is checked before the loader runs. The loader then runs at
+     * most once per key at a time within this composite: concurrent callers for
+     * the same key wait on the same {@link CompletableFuture} and share its
+     * outcome. A loaded value is written to all tiers; a {@code null} result is
+     * only cached, as a negative entry, if null values are allowed. Loader
+     * failures are rethrown to every waiting caller as
+     * {@link ValueRetrievalException}.
+     * <p>A {@link #setSoftTimeToLive stale} entry is returned right away, and
+     * one reload of it through the loader is started on the
+     * {@link #setRefreshExecutor refresh executor}.
+     */
     @Override
+    @SuppressWarnings("unchecked")
+    @Nullable
     public <T> T get(Object key, Callable<T> valueLoader) {
-        for (Cache cache : this.caches) {
-            if (cache != null) {
+        AdmissionPolicy admissionPolicy = this.admissionPolicy;
+        if (admissionPolicy != null) {
+            admissionPolicy.record(key);
+        }
+        Object storeValue = walk(key, valueLoader);
+        if (storeValue != null) {
+            if (storeValue instanceof CacheEntry) {
+                CacheEntry entry = (CacheEntry) storeValue;
+                long now = System.currentTimeMillis();
+                if (entry.isStale(now)) {
+                    this.staleHits.increment();
+                    refresh(key, valueLoader);
+                } else if (this.refreshAheadMillis > 0) {
+                    hitRefreshAhead(key, entry, valueLoader, now);
+                }
+            }
+            if (isNegative(storeValue)) {
+                this.negativeHits.increment();
+            }
+            return (T) fromStoreValue(storeValue);
+        }
+        return (T) load(key, valueLoader, true);
+    }
+
+    /**
+     * Reload an entry on the refresh executor, unless a reload of the key is
+     * already queued or running, or {@link #setMaxConcurrentRefreshes
+     * maxConcurrentRefreshes} are. The reload shares a load running for the
+     * key, if any. A failed reload leaves the entry in place until its hard
+     * time-to-live; a reload returning {@code null} evicts it, unless null
+     * values are cached.
+     * @return whether a reload was started
+     */
+    private boolean refresh(Object key, Callable<?> valueLoader) {
+        if (this.refreshesInFlight.putIfAbsent(key, Boolean.TRUE) != null) {
+            return false;
+        }
+        if (this.refreshesRunning.incrementAndGet() > this.maxConcurrentRefreshes) {
+            this.refreshesRunning.decrementAndGet();
+            this.refreshesInFlight.remove(key);
+            this.skippedRefreshes.increment();
+            return false;
+        }
+        try {
+            this.refreshExecutor.execute(() -> {
                 try {
-                    T value = cache.get(key, valueLoader);
-                    if (value != null) {
-                        return value;
+                    if (load(key, valueLoader, false) == null && !isAllowNullValues()) {
+                        evict(key);
+                    }
+                } catch (RuntimeException ex) {
+                    this.refreshFailures.increment();
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Failed to refresh key '" + key + "' in cache '" + this.name + "'", ex);
                     }
-                } catch (Exception ignored) {
+                } finally {
+                    this.refreshesRunning.decrementAndGet();
+                    this.refreshesInFlight.remove(key);
                 }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            this.refreshesRunning.decrementAndGet();
+            this.refreshesInFlight.remove(key);
+            this.skippedRefreshes.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Count a hit on the refresh-ahead timer of a fresh entry, scheduling the
+     * timer on the first hit.
+     */
+    private void hitRefreshAhead(Object key, CacheEntry entry, Callable<?> valueLoader, long now) {
+        RefreshAhead refreshAhead = this.refreshesAhead.get(key);
+        if (refreshAhead != null) {
+            refreshAhead.hits.incrementAndGet();
+            return;
+        }
+        ScheduledExecutorService scheduler = this.refreshAheadScheduler;
+        if (scheduler == null || entry.getStaleTime() == Long.MAX_VALUE) {
+            return;
+        }
+        refreshAhead = new RefreshAhead(key, valueLoader);
+        if (this.refreshesAhead.putIfAbsent(key, refreshAhead) != null) {
+            return;
+        }
+        long delayMillis = Math.max(entry.getStaleTime() - this.refreshAheadMillis - now, 0L);
+        refreshAhead.timer = this.refreshAheadTimers.schedule(refreshAhead,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        if (this.refreshAheadTicker == null) {
+            startRefreshAhead(scheduler);
+        }
+    }
+
+    private synchronized void startRefreshAhead(ScheduledExecutorService scheduler) {
+        if (this.refreshAheadTicker == null) {
+            try {
+                this.refreshAheadTicker = scheduler.scheduleAtFixedRate(this::advanceRefreshAhead,
+                        REFRESH_AHEAD_TICK_NANOS, REFRESH_AHEAD_TICK_NANOS, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                // the scheduler is shut down, refresh-ahead stops with it
+                this.refreshAheadScheduler = null;
+                this.refreshesAhead.clear();
+                this.refreshAheadTimers.clear();
+            }
+        }
+    }
+
+    /**
+     * Fire the refresh-ahead timers that fell due, reloading the entries that
+     * had enough hits.
+     */
+    private void advanceRefreshAhead() {
+        for (RefreshAhead refreshAhead : this.refreshAheadTimers.advance(System.nanoTime())) {
+            // an evicted key has lost its timer already
+            if (this.refreshesAhead.remove(refreshAhead.key, refreshAhead) &&
+                    refreshAhead.hits.get() >= this.refreshAheadMinimumHits &&
+                    refresh(refreshAhead.key, refreshAhead.valueLoader)) {
+                this.refreshesAheadStarted.increment();
+            }
+        }
+    }
+
+    private void cancelRefreshAhead(Object key) {
+        RefreshAhead refreshAhead = this.refreshesAhead.remove(key);
+        if (refreshAhead != null && refreshAhead.timer != null) {
+            this.refreshAheadTimers.cancel(refreshAhead.timer);
+        }
+    }
+
+    /**
+     * Run the loader once for all concurrent callers and write its result to all tiers.
+     * @param recheck whether to walk the tiers again once the load is claimed
+     */
+    @Nullable
+    private Object load(Object key, Callable<?> valueLoader, boolean recheck) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = this.loadsInFlight.putIfAbsent(key, future);
+        if (inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException ex) {
+                throw new ValueRetrievalException(key, valueLoader, ex.getCause());
+            }
+        }
+        try {
+            // a load for this key may have finished between our miss and claiming the key
+            Object storeValue = (recheck ? walk(key, null) : null);
+            Object value;
+            if (storeValue != null) {
+                value = fromStoreValue(storeValue);
+            } else {
+                value = valueLoader.call();
+                put(key, value);
+            }
+            future.complete(value);
+            return value;
+        } catch (Throwable ex) {
+            future.completeExceptionally(ex);
+            throw new ValueRetrievalException(key, valueLoader, ex);
+        } finally {
+            this.loadsInFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Return the values held by any tier for the given keys, without loading
+     * the missing ones.
+     * @see #getAll(Collection, Function)
+     */
+    public Map<Object, Object> getAll(Collection<?> keys) {
+        return getAll(keys, null);
+    }
+
+    /**
+     * Return the values of the given keys, loading the missing ones in bulk.
+     * <p>All keys are looked up in the first tier, and only the keys still
+     * missing go on to each next tier, in one multi-get if its delegate is a
+     * {@link BatchCache}. The hits of a lower tier are backfilled into the
+     * tiers above in one batch, subject to the admission policy and dropped
+     * for keys written or evicted meanwhile, as for a single lookup. The bulk
+     * loader, if any, is called once with the keys missing from all tiers,
+     * and the values it returns are written to all tiers in one batch. Its
+     * failures propagate as they are.
+     * <p>Stale entries are returned and reloaded in the background, one key
+     * at a time through the bulk loader; without a loader they count as
+     * misses. Bulk reads do not apply read timeouts or hedging, and bulk loads
+     * are not coalesced with concurrent loads of the same keys.
+     * @param keys the keys to look up
+     * @param bulkLoader the loader of the keys missing from all tiers, returning
+     * their values keyed by key, or {@code null} to only look up
+     * @return the values found or loaded, in the order of {@code keys}; keys
+     * without a value are absent, a cached {@code null} maps to {@code null}.
+     * If null values are allowed, keys the loader returns no value for are
+     * cached as {@code null} and map to {@code null} as well
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Map<Object, T> getAll(Collection<?> keys,
+                                     @Nullable Function<? super Set<Object>, ? extends Map<?, ? extends T>> bulkLoader) {
+        AdmissionPolicy admissionPolicy = this.admissionPolicy;
+        Set<Object> remaining = new LinkedHashSet<>(keys);
+        if (admissionPolicy != null) {
+            for (Object key : remaining) {
+                admissionPolicy.record(key);
+            }
+        }
+        Map<Object, Object> found = new HashMap<>();
+        Map<Object, Long> stamps = null;
+        long now = System.currentTimeMillis();
+        CacheTier[] tiers = this.tiers;
+        for (int i = 0; i < tiers.length && !remaining.isEmpty(); i++) {
+            CacheTier tier = tiers[i];
+            if (!tier.isReadable()) {
+                continue;
+            }
+            if (i > 0 && stamps == null) {
+                stamps = new HashMap<>();
+                for (Object key : remaining) {
+                    stamps.put(key, this.generations.stamp(key));
+                }
+            }
+            Map<Object, Object> hits = tier.readAll(remaining);
+            if (hits.isEmpty()) {
+                continue;
+            }
+            for (Map.Entry<Object, Object> hit : hits.entrySet()) {
+                Object key = hit.getKey();
+                Object storeValue = hit.getValue();
+                if (storeValue instanceof CacheEntry && ((CacheEntry) storeValue).isStale(now)) {
+                    if (bulkLoader == null) {
+                        continue;
+                    }
+                    this.staleHits.increment();
+                    refresh(key, () -> {
+                        Map<?, ? extends T> loaded = bulkLoader.apply(Collections.singleton(key));
+                        return (loaded != null ? loaded.get(key) : null);
+                    });
+                }
+                remaining.remove(key);
+                if (isNegative(storeValue)) {
+                    this.negativeHits.increment();
+                }
+                found.put(key, fromStoreValue(storeValue));
+            }
+            if (i > 0) {
+                backfillAll(hits, i, stamps);
+            }
+        }
+        if (bulkLoader != null && !remaining.isEmpty()) {
+            Map<?, ? extends T> loaded = bulkLoader.apply(Collections.unmodifiableSet(remaining));
+            Map<Object, Object> toPut = new HashMap<>();
+            for (Object key : remaining) {
+                Object value = (loaded != null ? loaded.get(key) : null);
+                // keys the loader has no value for are cached as null, if allowed
+                if (value != null || isAllowNullValues() || (loaded != null && loaded.containsKey(key))) {
+                    found.put(key, value);
+                    toPut.put(key, value);
+                }
+            }
+            putAll(toPut);
+        }
+        Map<Object, T> result = new LinkedHashMap<>(found.size() * 4 / 3 + 1);
+        for (Object key : keys) {
+            if (found.containsKey(key)) {
+                result.put(key, (T) found.get(key));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy the values found in tier {@code hitIndex} into every readable tier
+     * above it as one batch, either right away or through the backfill executor.
+     */
+    private void backfillAll(Map<Object, Object> hits, int hitIndex, Map<Object, Long> stamps) {
+        Executor executor = this.backfillExecutor;
+        if (executor == null) {
+            promoteAll(hits, hitIndex, stamps);
+            return;
+        }
+        try {
+            executor.execute(() -> promoteAll(hits, hitIndex, stamps));
+        } catch (RejectedExecutionException ex) {
+            this.droppedBackfills.add(hits.size());
+        }
+    }
+
+    /**
+     * Batch counterpart of {@link #promote}: write the values whose keys have
+     * not been written or evicted since they were stamped into every readable
+     * tier above {@code hitIndex}, the first tier only receiving the keys the
+     * admission policy admits.
+     */
+    private void promoteAll(Map<Object, Object> hits, int hitIndex, Map<Object, Long> stamps) {
+        Map<Object, Object> current = new HashMap<>();
+        for (Map.Entry<Object, Object> hit : hits.entrySet()) {
+            if (this.generations.isCurrent(hit.getKey(), stamps.get(hit.getKey()))) {
+                current.put(hit.getKey(), hit.getValue());
+            } else {
+                this.staleBackfills.increment();
+            }
+        }
+        if (current.isEmpty()) {
+            return;
+        }
+        Map<Object, Object> admitted = current;
+        AdmissionPolicy admissionPolicy = this.admissionPolicy;
+        if (admissionPolicy != null || !this.negativeEntriesInFirstTier) {
+            admitted = new HashMap<>();
+            for (Map.Entry<Object, Object> entry : current.entrySet()) {
+                if ((this.negativeEntriesInFirstTier || !isNegative(entry.getValue())) &&
+                        (admissionPolicy == null || admissionPolicy.admit(entry.getKey()))) {
+                    admitted.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        for (int i = hitIndex - 1; i >= 0; i--) {
+            CacheTier tier = this.tiers[i];
+            Map<Object, Object> entries = (i == 0 ? admitted : current);
+            if (tier.isReadable() && !entries.isEmpty()) {
+                tier.putAll(entries);
+            }
+        }
+        List<Object> raced = new ArrayList<>();
+        for (Object key : current.keySet()) {
+            if (!this.generations.isCurrent(key, stamps.get(key))) {
+                raced.add(key);
+            }
+        }
+        LocationHints locationHints = this.locationHints;
+        if (locationHints != null) {
+            for (Object key : current.keySet()) {
+                locationHints.set(key, admitted.containsKey(key) ? 0 : 1);
+            }
+        }
+        if (!raced.isEmpty()) {
+            this.staleBackfills.add(raced.size());
+            for (int i = hitIndex - 1; i >= 0; i--) {
+                CacheTier tier = this.tiers[i];
+                if (tier.isReadable()) {
+                    tier.evictAll(raced);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the given values to all tiers, in one batch per {@link BatchCache}
+     * delegate. {@code null} values are skipped unless null values are allowed,
+     * as for {@link #put}.
+     */
+    public void putAll(Map<?, ?> entries) {
+        Map<Object, Object> storeValues = new HashMap<>();
+        List<Object> negativeKeys = new ArrayList<>();
+        for (Map.Entry<?, ?> entry : entries.entrySet()) {
+            Object value = entry.getValue();
+            if (value != null || isAllowNullValues()) {
+                storeValues.put(entry.getKey(), toEntry(toStoreValue(value)));
+                if (value == null) {
+                    negativeKeys.add(entry.getKey());
+                }
+            }
+        }
+        if (storeValues.isEmpty()) {
+            return;
+        }
+        this.negativePuts.add(negativeKeys.size());
+        for (Object key : storeValues.keySet()) {
+            this.generations.beginWrite(key);
+        }
+        try {
+            CacheTier[] tiers = this.tiers;
+            for (int i = 0; i < tiers.length; i++) {
+                if (i == 0 && !negativeKeys.isEmpty() && !this.negativeEntriesInFirstTier) {
+                    Map<Object, Object> values = new HashMap<>(storeValues);
+                    values.keySet().removeAll(negativeKeys);
+                    tiers[i].putAll(values);
+                    tiers[i].evictAll(negativeKeys);
+                } else {
+                    tiers[i].putAll(storeValues);
+                }
+            }
+            LocationHints locationHints = this.locationHints;
+            if (locationHints != null) {
+                for (Map.Entry<Object, Object> entry : storeValues.entrySet()) {
+                    locationHints.set(entry.getKey(),
+                            isNegative(entry.getValue()) && !this.negativeEntriesInFirstTier ? 1 : 0);
+                }
+            }
+        } finally {
+            for (Object key : storeValues.keySet()) {
+                this.generations.endWrite(key);
+            }
+        }
+    }
+
+    /**
+     * Evict the given keys from all tiers, in one batch per {@link BatchCache} delegate.
+     */
+    public void evictAll(Collection<?> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (this.refreshAheadMillis > 0) {
+            for (Object key : keys) {
+                cancelRefreshAhead(key);
+            }
+        }
+        for (Object key : keys) {
+            this.generations.beginWrite(key);
+        }
+        try {
+            for (CacheTier tier : this.tiers) {
+                tier.evictAll(keys);
+            }
+            LocationHints locationHints = this.locationHints;
+            if (locationHints != null) {
+                for (Object key : keys) {
+                    locationHints.remove(key);
+                }
+            }
+        } finally {
+            for (Object key : keys) {
+                this.generations.endWrite(key);
             }
         }
-        return null;
     }
 
     @Override
-    public void put(Object key, Object value) {
-        if(value != null) {
-            this.caches.stream().filter(Objects::nonNull).forEachOrdered(cache -> {
-                try {
-                    cache.put(key, value);
-                } catch (Exception ignored) {
+    public void put(Object key, @Nullable Object value) {
+        if (value == null && !isAllowNullValues()) {
+            return;
+        }
+        Object storeValue = toEntry(toStoreValue(value));
+        boolean negative = (value == null);
+        if (negative) {
+            this.negativePuts.increment();
+        }
+        EncodedValue encoded = (this.sharedEncoding ? new EncodedValue(storeValue) : null);
+        this.generations.beginWrite(key);
+        try {
+            CacheTier[] tiers = this.tiers;
+            for (int i = 0; i < tiers.length; i++) {
+                if (i == 0 && negative && !this.negativeEntriesInFirstTier) {
+                    tiers[i].evict(key);
+                } else if (encoded != null) {
+                    tiers[i].put(key, encoded);
+                } else {
+                    tiers[i].put(key, storeValue);
                 }
-            });
+            }
+            LocationHints locationHints = this.locationHints;
+            if (locationHints != null) {
+                locationHints.set(key, negative && !this.negativeEntriesInFirstTier ? 1 : 0);
+            }
+        } finally {
+            this.generations.endWrite(key);
         }
     }
 
     @Override
     public void evict(Object key) {
-        this.caches.stream().filter(Objects::nonNull).forEachOrdered(cache -> {
-            try {
-                cache.evict(key);
-            } catch (Exception ignored) {
+        if (this.refreshAheadMillis > 0) {
+            cancelRefreshAhead(key);
+        }
+        this.generations.beginWrite(key);
+        try {
+            for (CacheTier tier : this.tiers) {
+                tier.evict(key);
             }
-        });
+            LocationHints locationHints = this.locationHints;
+            if (locationHints != null) {
+                locationHints.remove(key);
+            }
+        } finally {
+            this.generations.endWrite(key);
+        }
     }
 
     @Override
     public void clear() {
-        this.caches.stream().filter(Objects::nonNull).forEachOrdered(cache -> {
-            try {
-                cache.clear();
-            } catch (Exception ignored) {
+        if (this.refreshAheadMillis > 0) {
+            this.refreshesAhead.clear();
+            this.refreshAheadTimers.clear();
+        }
+        this.generations.beginWriteAll();
+        try {
+            for (CacheTier tier : this.tiers) {
+                tier.clear();
+            }
+            LocationHints locationHints = this.locationHints;
+            if (locationHints != null) {
+                locationHints.clear();
             }
-        });
+        } finally {
+            this.generations.endWriteAll();
+        }
+    }
+
+
+    /**
+     * A pending refresh-ahead of one key.
+     */
+    private static final class RefreshAhead {
+
+        final Object key;
+
+        final Callable<?> valueLoader;
+
+        final AtomicInteger hits = new AtomicInteger(1);
+
+        @Nullable
+        volatile TimerWheel.Node<RefreshAhead> timer;
+
+        RefreshAhead(Object key, Callable<?> valueLoader) {
+            this.key = key;
+            this.valueLoader = valueLoader;
+        }
     }
 }
@@ -1,12 +1,28 @@
 package io.geewit.cache.support;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.support.NoOpCacheManager;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
 
 /**
  * Composite {@link CacheManager} implementation that iterates over
@@ -24,18 +40,97 @@ import java.util.*;
  * of named caches once requested; check out the specific configuration details
  * for a 'static' mode with fixed cache names, if available.
  *
+ * <p>Per-tier settings such as {@link CacheTierConfig.WriteMode#WRITE_BEHIND
+ * write-behind} are registered per delegate through {@link #setTierConfig}.
+ * As a {@link SmartLifecycle}, this manager flushes all queued write-behind
+ * writes when the application context shuts down.
+ *
+ * <p>With a {@link #setSnapshotFile snapshot file}, the hottest keys of the
+ * first tier of each cache, and optionally their values, are written to it on
+ * shutdown. On startup, they are brought back into the first tiers in the
+ * background, either from the snapshot values or by reading the keys from the
+ * lower tiers, so that a restarted node does not fall back on its remote tier
+ * for its whole working set at once.
+ *
  * @author geewit
  * @author Juergen Hoeller
  * @since 2020-07-22
  * @see #setFallbackToNoOpCache
  * @see org.springframework.cache.concurrent.ConcurrentMapCacheManager#setCacheNames
  */
-public class CompositeCacheManager implements CacheManager, InitializingBean {
+public class CompositeCacheManager implements CacheManager, InitializingBean, SmartLifecycle {
+
+    private static final Log logger = LogFactory.getLog(CompositeCacheManager.class);
 
     private final List<CacheManager> cacheManagers = new ArrayList<>();
 
+    private final Map<CacheManager, CacheTierConfig> tierConfigs = new IdentityHashMap<>();
+
+    private final ConcurrentMap<String, CompositeCache> cacheMap = new ConcurrentHashMap<>(16);
+
     private boolean fallbackToNoOpCache = false;
 
+    private boolean allowNullValues = false;
+
+    private final Map<String, Boolean> allowNullValuesByCacheName = new HashMap<>();
+
+    @Nullable
+    private Duration negativeTimeToLive;
+
+    private boolean negativeEntriesInFirstTier = false;
+
+    private int locationHintCapacity = 0;
+
+    @Nullable
+    private Executor backfillExecutor;
+
+    @Nullable
+    private Function<String, ? extends AdmissionPolicy> admissionPolicyFactory;
+
+    @Nullable
+    private Duration softTimeToLive;
+
+    @Nullable
+    private Duration hardTimeToLive;
+
+    @Nullable
+    private Executor refreshExecutor;
+
+    private int maxConcurrentRefreshes = 16;
+
+    @Nullable
+    private Duration refreshAheadTime;
+
+    private int refreshAheadMinimumHits = 2;
+
+    @Nullable
+    private ScheduledExecutorService writeBehindScheduler;
+
+    @Nullable
+    private ScheduledExecutorService membershipFilterScheduler;
+
+    @Nullable
+    private ScheduledExecutorService refreshAheadScheduler;
+
+    @Nullable
+    private ScheduledExecutorService internalScheduler;
+
+    @Nullable
+    private File snapshotFile;
+
+    private int snapshotKeyLimit = 10_000;
+
+    private boolean snapshotValues = false;
+
+    private int snapshotLoadConcurrency = 4;
+
+    private ValueCodecs valueCodecs = ValueCodecs.getSharedInstance();
+
+    @Nullable
+    private ExecutorService snapshotLoader;
+
+    private volatile boolean running = false;
+
 
     /**
      * Construct an empty CompositeCacheManager, with delegate CacheManagers to
@@ -69,6 +164,216 @@ public class CompositeCacheManager implements CacheManager, InitializingBean {
         this.fallbackToNoOpCache = fallbackToNoOpCache;
     }
 
+    /**
+     * Specify whether composite caches accept and cache {@code null} values,
+     * unless {@link #setAllowNullValuesByCacheName overridden} for their name.
+     * Default is {@code false}.
+     * @see CompositeCache#setNegativeTimeToLive
+     */
+    public void setAllowNullValues(boolean allowNullValues) {
+        this.allowNullValues = allowNullValues;
+    }
+
+    /**
+     * Specify per cache name whether {@code null} values are cached,
+     * overriding {@link #setAllowNullValues allowNullValues}.
+     */
+    public void setAllowNullValuesByCacheName(Map<String, Boolean> allowNullValuesByCacheName) {
+        this.allowNullValuesByCacheName.putAll(allowNullValuesByCacheName);
+    }
+
+    /**
+     * Return whether the composite cache of the given name caches {@code null} values.
+     */
+    public boolean isAllowNullValues(String name) {
+        Boolean allowNullValues = this.allowNullValuesByCacheName.get(name);
+        return (allowNullValues != null ? allowNullValues : this.allowNullValues);
+    }
+
+    /**
+     * Specify the time after which cached {@code null} values expire.
+     * @see CompositeCache#setNegativeTimeToLive
+     */
+    public void setNegativeTimeToLive(@Nullable Duration negativeTimeToLive) {
+        this.negativeTimeToLive = negativeTimeToLive;
+    }
+
+    /**
+     * Specify whether cached {@code null} values are also kept in the first tier.
+     * @see CompositeCache#setNegativeEntriesInFirstTier
+     */
+    public void setNegativeEntriesInFirstTier(boolean negativeEntriesInFirstTier) {
+        this.negativeEntriesInFirstTier = negativeEntriesInFirstTier;
+    }
+
+    /**
+     * Specify the number of keys below the first tier whose location each
+     * composite keeps as a hint. Default is 0, for none.
+     * @see CompositeCache#setLocationHintCapacity
+     */
+    public void setLocationHintCapacity(int locationHintCapacity) {
+        this.locationHintCapacity = locationHintCapacity;
+    }
+
+    /**
+     * Specify a bounded executor for copying lower-tier hits into the tiers
+     * above them, instead of doing so in the caller's thread.
+     * @see CompositeCache#setBackfillExecutor
+     */
+    public void setBackfillExecutor(@Nullable Executor backfillExecutor) {
+        this.backfillExecutor = backfillExecutor;
+    }
+
+    /**
+     * Specify a factory for the {@link AdmissionPolicy} of each composite cache,
+     * called once per cache name, e.g. {@code name -> new TinyLfuAdmissionPolicy(10_000)}.
+     * @see CompositeCache#setAdmissionPolicy
+     */
+    public void setAdmissionPolicyFactory(@Nullable Function<String, ? extends AdmissionPolicy> admissionPolicyFactory) {
+        this.admissionPolicyFactory = admissionPolicyFactory;
+    }
+
+    /**
+     * Specify the time after which entries turn stale and are served while
+     * being reloaded in the background.
+     * @see CompositeCache#setSoftTimeToLive
+     */
+    public void setSoftTimeToLive(@Nullable Duration softTimeToLive) {
+        this.softTimeToLive = softTimeToLive;
+    }
+
+    /**
+     * Specify the time after which entries are no longer served at all.
+     * @see CompositeCache#setHardTimeToLive
+     */
+    public void setHardTimeToLive(@Nullable Duration hardTimeToLive) {
+        this.hardTimeToLive = hardTimeToLive;
+    }
+
+    /**
+     * Specify the executor reloading stale entries, instead of the common pool.
+     * @see CompositeCache#setRefreshExecutor
+     */
+    public void setRefreshExecutor(@Nullable Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Specify the maximum number of background reloads running at once per
+     * cache name. Default is 16.
+     * @see CompositeCache#setMaxConcurrentRefreshes
+     */
+    public void setMaxConcurrentRefreshes(int maxConcurrentRefreshes) {
+        this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+    }
+
+    /**
+     * Specify how long before they turn stale hot entries are reloaded.
+     * @see CompositeCache#setRefreshAheadTime
+     */
+    public void setRefreshAheadTime(@Nullable Duration refreshAheadTime) {
+        this.refreshAheadTime = refreshAheadTime;
+    }
+
+    /**
+     * Specify the number of reads that makes an entry hot enough to be
+     * reloaded ahead of time. Default is 2.
+     * @see CompositeCache#setRefreshAheadMinimumHits
+     */
+    public void setRefreshAheadMinimumHits(int refreshAheadMinimumHits) {
+        this.refreshAheadMinimumHits = refreshAheadMinimumHits;
+    }
+
+    /**
+     * Specify the settings of the tier that the given delegate CacheManager
+     * contributes to each composite cache.
+     * @param cacheManager one of the CacheManagers to delegate to
+     * @param tierConfig the settings for its tier
+     */
+    public void setTierConfig(CacheManager cacheManager, CacheTierConfig tierConfig) {
+        this.tierConfigs.put(cacheManager, tierConfig);
+    }
+
+    /**
+     * Specify the scheduler flushing write-behind tiers. By default, a single
+     * daemon thread is started on first use and shut down by {@link #stop()}.
+     * @see CompositeCache#setWriteBehindScheduler
+     */
+    public void setWriteBehindScheduler(@Nullable ScheduledExecutorService writeBehindScheduler) {
+        this.writeBehindScheduler = writeBehindScheduler;
+    }
+
+    /**
+     * Specify the scheduler rebuilding membership filters from key scans. By
+     * default, the daemon thread also flushing write-behind tiers is used,
+     * which a long scan holds up; specify a separate scheduler for tiers with
+     * many keys.
+     * @see CompositeCache#setMembershipFilterScheduler
+     * @see CacheTierConfig#setMembershipFilterEnabled
+     */
+    public void setMembershipFilterScheduler(@Nullable ScheduledExecutorService membershipFilterScheduler) {
+        this.membershipFilterScheduler = membershipFilterScheduler;
+    }
+
+    /**
+     * Specify the scheduler advancing refresh-ahead timers. By default, the
+     * daemon thread also flushing write-behind tiers is used.
+     * @see CompositeCache#setRefreshAheadScheduler
+     */
+    public void setRefreshAheadScheduler(@Nullable ScheduledExecutorService refreshAheadScheduler) {
+        this.refreshAheadScheduler = refreshAheadScheduler;
+    }
+
+    /**
+     * Specify the file to write a snapshot of the first tiers to on
+     * {@link #stop()}, and to warm them from on {@link #start()}. The file is
+     * deleted once read, so that a crash never leads to an outdated snapshot
+     * being loaded. Default is none.
+     */
+    public void setSnapshotFile(@Nullable File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Specify the maximum number of keys per cache in the snapshot, the
+     * hottest ones if the first tier can rank them. Default is 10000.
+     * @see HotKeysCache
+     */
+    public void setSnapshotKeyLimit(int snapshotKeyLimit) {
+        Assert.isTrue(snapshotKeyLimit > 0, "snapshotKeyLimit must be positive");
+        this.snapshotKeyLimit = snapshotKeyLimit;
+    }
+
+    /**
+     * Specify whether the snapshot holds the values of its keys, which are
+     * then restored as they were at shutdown, possibly outdated by writes of
+     * other nodes since, instead of being read again from the lower tiers.
+     * Entries whose values cannot be encoded are restored from the lower
+     * tiers regardless. Default is {@code false}.
+     * @see #setValueCodecs
+     */
+    public void setSnapshotValues(boolean snapshotValues) {
+        this.snapshotValues = snapshotValues;
+    }
+
+    /**
+     * Specify the codecs encoding the values of the snapshot. Default is the
+     * {@link ValueCodecs#getSharedInstance() shared instance}.
+     */
+    public void setValueCodecs(ValueCodecs valueCodecs) {
+        Assert.notNull(valueCodecs, "ValueCodecs must not be null");
+        this.valueCodecs = valueCodecs;
+    }
+
+    /**
+     * Specify the number of keys warmed from a snapshot at a time, which bounds
+     * the load put on the lower tiers on startup. Default is 4.
+     */
+    public void setSnapshotLoadConcurrency(int snapshotLoadConcurrency) {
+        Assert.isTrue(snapshotLoadConcurrency > 0, "snapshotLoadConcurrency must be positive");
+        this.snapshotLoadConcurrency = snapshotLoadConcurrency;
+    }
+
     @Override
     public void afterPropertiesSet() {
         if (this.fallbackToNoOpCache) {
@@ -76,20 +381,91 @@ public class CompositeCacheManager implements CacheManager, InitializingBean {
         }
     }
 
+    /**
+     * Return the composite for the given name, resolving its tiers from the
+     * delegate CacheManagers on first access only.
+     * <p>A name that none of the delegates know yet is not memoized, so that
+     * delegates creating their caches later are picked up.
+     */
     @Override
     @Nullable
     public CompositeCache getCache(String name) {
-        List<Cache> caches = new ArrayList<>();
+        CompositeCache compositeCache = this.cacheMap.get(name);
+        if (compositeCache != null) {
+            return compositeCache;
+        }
+        List<Cache> caches = new ArrayList<>(this.cacheManagers.size());
+        boolean found = false;
         for (CacheManager manager : this.cacheManagers) {
             Cache cache = manager.getCache(name);
-            if(cache != null) {
-                caches.add(manager.getCache(name));
-            }
+            caches.add(cache);
+            found |= (cache != null);
+        }
+        if (!found) {
+            return createCompositeCache(name, caches);
+        }
+        return this.cacheMap.computeIfAbsent(name, key -> createCompositeCache(key, caches));
+    }
+
+    /**
+     * Create a new CompositeCache instance for the specified cache name.
+     * @param name the name of the cache
+     * @param caches the caches of the delegate CacheManagers, one per delegate
+     * in order, {@code null} where a delegate does not know the name
+     * @return the CompositeCache (or a subclass thereof)
+     */
+    protected CompositeCache createCompositeCache(String name, List<Cache> caches) {
+        List<CacheTierConfig> configs = new ArrayList<>(this.cacheManagers.size());
+        boolean writeBehind = false;
+        boolean membershipFiltered = false;
+        for (CacheManager manager : this.cacheManagers) {
+            CacheTierConfig config = this.tierConfigs.get(manager);
+            configs.add(config);
+            writeBehind |= (config != null && config.getWriteMode() == CacheTierConfig.WriteMode.WRITE_BEHIND);
+            membershipFiltered |= (config != null && config.isMembershipFilterEnabled());
+        }
+        CompositeCache compositeCache = new CompositeCache(name, caches, configs, isAllowNullValues(name));
+        compositeCache.setBackfillExecutor(this.backfillExecutor);
+        compositeCache.setSoftTimeToLive(this.softTimeToLive);
+        compositeCache.setHardTimeToLive(this.hardTimeToLive);
+        compositeCache.setNegativeTimeToLive(this.negativeTimeToLive);
+        compositeCache.setNegativeEntriesInFirstTier(this.negativeEntriesInFirstTier);
+        compositeCache.setLocationHintCapacity(this.locationHintCapacity);
+        if (this.refreshExecutor != null) {
+            compositeCache.setRefreshExecutor(this.refreshExecutor);
+        }
+        compositeCache.setMaxConcurrentRefreshes(this.maxConcurrentRefreshes);
+        if (this.refreshAheadTime != null) {
+            compositeCache.setRefreshAheadTime(this.refreshAheadTime);
+            compositeCache.setRefreshAheadMinimumHits(this.refreshAheadMinimumHits);
+            compositeCache.setRefreshAheadScheduler(this.refreshAheadScheduler != null ?
+                    this.refreshAheadScheduler : obtainInternalScheduler());
+        }
+        if (this.admissionPolicyFactory != null) {
+            compositeCache.setAdmissionPolicy(this.admissionPolicyFactory.apply(name));
+        }
+        if (writeBehind) {
+            compositeCache.setWriteBehindScheduler(this.writeBehindScheduler != null ?
+                    this.writeBehindScheduler : obtainInternalScheduler());
+        }
+        if (membershipFiltered) {
+            compositeCache.setMembershipFilterScheduler(this.membershipFilterScheduler != null ?
+                    this.membershipFilterScheduler : obtainInternalScheduler());
         }
-        CompositeCache compositeCache = new CompositeCache(name, caches, false);
         return compositeCache;
     }
 
+    private synchronized ScheduledExecutorService obtainInternalScheduler() {
+        if (this.internalScheduler == null) {
+            this.internalScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "composite-cache-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.internalScheduler;
+    }
+
     @Override
     public Collection<String> getCacheNames() {
         Set<String> names = new LinkedHashSet<>();
@@ -99,4 +475,162 @@ public class CompositeCacheManager implements CacheManager, InitializingBean {
         return Collections.unmodifiableSet(names);
     }
 
+    /**
+     * Start warming the first tiers from the snapshot file, if any, in the
+     * background.
+     */
+    @Override
+    public void start() {
+        this.running = true;
+        File snapshotFile = this.snapshotFile;
+        if (snapshotFile != null && snapshotFile.isFile()) {
+            // values warmed in the background must not overwrite the writes served from now on
+            for (CompositeCache compositeCache : this.cacheMap.values()) {
+                compositeCache.prepareWarming();
+            }
+            loadSnapshot(snapshotFile);
+        }
+    }
+
+    /**
+     * Flush the queued writes of all write-behind tiers and write the snapshot
+     * file, if any, then shut down the internal scheduler, if any. Writes
+     * arriving afterwards are flushed by the writing threads, and entries are
+     * no longer refreshed ahead of time.
+     */
+    @Override
+    public void stop() {
+        this.running = false;
+        synchronized (this) {
+            if (this.snapshotLoader != null) {
+                this.snapshotLoader.shutdownNow();
+                this.snapshotLoader = null;
+            }
+        }
+        for (CompositeCache compositeCache : this.cacheMap.values()) {
+            compositeCache.flush();
+        }
+        if (this.snapshotFile != null) {
+            saveSnapshot(this.snapshotFile);
+        }
+        synchronized (this) {
+            if (this.internalScheduler != null) {
+                this.internalScheduler.shutdown();
+                this.internalScheduler = null;
+            }
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    private void saveSnapshot(File file) {
+        Map<String, List<CacheSnapshot.Entry>> snapshot = new LinkedHashMap<>();
+        int count = 0;
+        for (Map.Entry<String, CompositeCache> entry : this.cacheMap.entrySet()) {
+            CompositeCache compositeCache = entry.getValue();
+            List<CacheSnapshot.Entry> entries = new ArrayList<>();
+            try {
+                for (Object key : compositeCache.hottestKeys(this.snapshotKeyLimit)) {
+                    byte[] keyBytes;
+                    try {
+                        keyBytes = Serialization.serializeKey(key);
+                    } catch (IllegalArgumentException ex) {
+                        continue;
+                    }
+                    byte[] valueBytes = null;
+                    Object storeValue = (this.snapshotValues ? compositeCache.peekFirstTier(key) : null);
+                    if (storeValue != null) {
+                        try {
+                            valueBytes = this.valueCodecs.encode(storeValue);
+                        } catch (IllegalArgumentException ex) {
+                            // restored from the lower tiers instead
+                        }
+                    }
+                    entries.add(new CacheSnapshot.Entry(keyBytes, valueBytes));
+                }
+            } catch (RuntimeException ex) {
+                logger.warn("Failed to list the keys of cache '" + entry.getKey() + "' for a snapshot", ex);
+            }
+            if (!entries.isEmpty()) {
+                snapshot.put(entry.getKey(), entries);
+                count += entries.size();
+            }
+        }
+        try {
+            CacheSnapshot.write(file, snapshot);
+        } catch (IOException ex) {
+            logger.warn("Failed to write cache snapshot " + file, ex);
+            return;
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Wrote " + count + " keys of " + snapshot.size() + " caches to snapshot " + file);
+        }
+    }
+
+    /**
+     * Read the snapshot file and warm the first tiers from it, all on a pool
+     * of {@link #setSnapshotLoadConcurrency} daemon threads shut down once done.
+     */
+    private synchronized void loadSnapshot(File file) {
+        ExecutorService loader = Executors.newFixedThreadPool(this.snapshotLoadConcurrency, runnable -> {
+            Thread thread = new Thread(runnable, "composite-cache-warmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.snapshotLoader = loader;
+        loader.execute(() -> {
+            Map<String, List<CacheSnapshot.Entry>> snapshot;
+            try {
+                snapshot = CacheSnapshot.read(file);
+                Files.delete(file.toPath());
+            } catch (IOException ex) {
+                logger.warn("Failed to read cache snapshot " + file, ex);
+                loader.shutdown();
+                return;
+            }
+            int count = 0;
+            try {
+                for (Map.Entry<String, List<CacheSnapshot.Entry>> section : snapshot.entrySet()) {
+                    CompositeCache compositeCache = getCache(section.getKey());
+                    if (compositeCache == null) {
+                        continue;
+                    }
+                    for (CacheSnapshot.Entry entry : section.getValue()) {
+                        loader.execute(() -> warm(compositeCache, entry));
+                        count++;
+                    }
+                }
+            } catch (RejectedExecutionException ex) {
+                // stopped meanwhile
+                return;
+            }
+            loader.shutdown();
+            if (logger.isInfoEnabled()) {
+                logger.info("Warming " + count + " keys of " + snapshot.size() + " caches from snapshot " + file);
+            }
+        });
+    }
+
+    private void warm(CompositeCache compositeCache, CacheSnapshot.Entry entry) {
+        Object key;
+        Object storeValue = null;
+        try {
+            key = Serialization.deserializeKey(entry.key);
+        } catch (RuntimeException ex) {
+            logger.debug("Failed to restore a key of cache '" + compositeCache.getName() + "' from a snapshot", ex);
+            return;
+        }
+        if (entry.value != null) {
+            try {
+                storeValue = this.valueCodecs.decode(entry.value);
+            } catch (RuntimeException ex) {
+                // read from the lower tiers instead
+            }
+        }
+        compositeCache.warm(key, storeValue);
+    }
+
 }
\ No newline at end of file
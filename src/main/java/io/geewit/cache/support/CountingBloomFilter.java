@@ -0,0 +1,154 @@
+package io.geewit.cache.support;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counting Bloom filter, telling for sure that a key is absent from
+ * a tier.
+ *
+ * <p>Sized from the expected number of keys and the target false-positive
+ * rate: {@code m = -n ln(p) / ln(2)^2} counters and {@code k = m/n ln(2)}
+ * hash functions, derived from the key's hash code by double hashing.
+ * Counters are four bits wide, sixteen to an {@code AtomicLong}; a counter
+ * that reaches 15 stays there, so that removing a recorded key can never
+ * cause a false negative, only leave a false positive behind. Removing a key
+ * that was never recorded but happens to match may turn other keys into false
+ * negatives, which callers must tolerate until the filter is rebuilt.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see CacheTierConfig#setMembershipFilterEnabled
+ */
+public class CountingBloomFilter {
+
+    private static final long SATURATED = 15L;
+
+    private final AtomicLongArray counters;
+
+    private final long counterCount;
+
+    private final int hashCount;
+
+
+    /**
+     * Create a filter for the given number of keys.
+     * @param expectedKeys the number of keys the filter is expected to hold
+     * @param falsePositiveRate the share of absent keys the filter may report
+     * as present at that number of keys
+     */
+    public CountingBloomFilter(long expectedKeys, double falsePositiveRate) {
+        Assert.isTrue(expectedKeys > 0, "expectedKeys must be positive");
+        Assert.isTrue(falsePositiveRate > 0 && falsePositiveRate < 1, "falsePositiveRate must be in (0, 1)");
+        double ln2 = Math.log(2);
+        long counters = Math.max(64L, (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2)));
+        int words = (int) Math.min((counters + 15) / 16, Integer.MAX_VALUE - 8);
+        this.counters = new AtomicLongArray(words);
+        this.counterCount = words * 16L;
+        this.hashCount = Math.max(1, (int) Math.round((double) this.counterCount / expectedKeys * ln2));
+    }
+
+
+    /**
+     * Record the given key.
+     */
+    public void add(Object key) {
+        long hash = mix(key.hashCode());
+        for (int i = 0; i < this.hashCount; i++) {
+            increment(indexOf(hash, i));
+        }
+    }
+
+    /**
+     * Forget one recording of the given key; a no-op if it is absent.
+     */
+    public void remove(Object key) {
+        long hash = mix(key.hashCode());
+        if (!contains(hash)) {
+            return;
+        }
+        for (int i = 0; i < this.hashCount; i++) {
+            decrement(indexOf(hash, i));
+        }
+    }
+
+    /**
+     * Return {@code false} if the given key was certainly never recorded
+     * (or has been removed since), {@code true} if it may have been.
+     */
+    public boolean mightContain(Object key) {
+        return contains(mix(key.hashCode()));
+    }
+
+    /**
+     * Return the number of counters.
+     */
+    public long getCounterCount() {
+        return this.counterCount;
+    }
+
+    /**
+     * Return the number of counters per key.
+     */
+    public int getHashCount() {
+        return this.hashCount;
+    }
+
+    private boolean contains(long hash) {
+        for (int i = 0; i < this.hashCount; i++) {
+            long index = indexOf(hash, i);
+            if (counterAt(this.counters.get((int) (index >>> 4)), index) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long indexOf(long hash, int i) {
+        long combined = (int) hash + (long) i * (int) (hash >>> 32);
+        return (combined & Long.MAX_VALUE) % this.counterCount;
+    }
+
+    private static long counterAt(long word, long index) {
+        return (word >>> ((index & 15) << 2)) & 0xfL;
+    }
+
+    private void increment(long index) {
+        int word = (int) (index >>> 4);
+        long shift = (index & 15) << 2;
+        while (true) {
+            long current = this.counters.get(word);
+            long count = (current >>> shift) & 0xfL;
+            if (count == SATURATED || this.counters.compareAndSet(word, current, current + (1L << shift))) {
+                return;
+            }
+        }
+    }
+
+    private void decrement(long index) {
+        int word = (int) (index >>> 4);
+        long shift = (index & 15) << 2;
+        while (true) {
+            long current = this.counters.get(word);
+            long count = (current >>> shift) & 0xfL;
+            if (count == 0 || count == SATURATED ||
+                    this.counters.compareAndSet(word, current, current - (1L << shift))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Spread all bits of a hash code over 64 bits (the MurmurHash3 finalizer).
+     */
+    private static long mix(int hashCode) {
+        long hash = hashCode;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53a87c5L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
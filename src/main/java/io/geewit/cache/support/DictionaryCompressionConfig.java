@@ -0,0 +1,122 @@
+package io.geewit.cache.support;
+
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.io.File;
+import java.util.zip.Deflater;
+
+/**
+ * Settings for the compression of encoded values with a preset dictionary
+ * trained per cache name.
+ *
+ * <p>Registered through {@link ValueCodecs#setCompression}. Small values share
+ * most of their bytes with each other, field names and common values alike,
+ * while having too few bytes of their own for plain compression to find
+ * repetitions in; a dictionary of these shared bytes lets each value refer
+ * to them instead.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class DictionaryCompressionConfig {
+
+    private int minimumSize = 64;
+
+    private int sampleCount = 1000;
+
+    private int dictionarySize = 16 * 1024;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    private int maximumDictionaries = 4;
+
+    @Nullable
+    private File dictionaryDirectory;
+
+
+    /**
+     * Specify the size of the smallest encoded values to compress; smaller
+     * values are neither compressed nor sampled. Default is 64 bytes.
+     */
+    public void setMinimumSize(int minimumSize) {
+        Assert.isTrue(minimumSize > 0, "minimumSize must be positive");
+        this.minimumSize = minimumSize;
+    }
+
+    public int getMinimumSize() {
+        return this.minimumSize;
+    }
+
+    /**
+     * Specify the number of values sampled to train a dictionary. Values are
+     * stored uncompressed until the first dictionary of their cache has been
+     * trained. Default is 1000.
+     */
+    public void setSampleCount(int sampleCount) {
+        Assert.isTrue(sampleCount > 0, "sampleCount must be positive");
+        this.sampleCount = sampleCount;
+    }
+
+    public int getSampleCount() {
+        return this.sampleCount;
+    }
+
+    /**
+     * Specify the maximum size of a dictionary, at most the 32 KB window of
+     * the deflate format. Default is 16 KB.
+     */
+    public void setDictionarySize(int dictionarySize) {
+        Assert.isTrue(dictionarySize > 0 && dictionarySize <= 32 * 1024, "dictionarySize must be between 1 and 32768");
+        this.dictionarySize = dictionarySize;
+    }
+
+    public int getDictionarySize() {
+        return this.dictionarySize;
+    }
+
+    /**
+     * Specify the {@link Deflater} compression level, from 0 to 9.
+     * Default is {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public void setLevel(int level) {
+        Assert.isTrue(level == Deflater.DEFAULT_COMPRESSION || level >= 0 && level <= 9,
+                "level must be between 0 and 9");
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Specify the number of dictionary versions kept per cache once
+     * {@link ValueCodecs#retrainDictionary retrained}; values compressed with
+     * an older version no longer decode and are evicted when read, as misses.
+     * Default is 4.
+     */
+    public void setMaximumDictionaries(int maximumDictionaries) {
+        Assert.isTrue(maximumDictionaries > 0, "maximumDictionaries must be positive");
+        this.maximumDictionaries = maximumDictionaries;
+    }
+
+    public int getMaximumDictionaries() {
+        return this.maximumDictionaries;
+    }
+
+    /**
+     * Specify the directory the trained dictionaries are written to and read
+     * back from when their caches are created again, which a {@link DiskCache}
+     * needs to read its compressed values after a restart: it refuses codecs
+     * compressing without one. A dictionary that fails to be written is not
+     * used. Default is none: dictionaries only live as long as the process.
+     */
+    public void setDictionaryDirectory(@Nullable File dictionaryDirectory) {
+        this.dictionaryDirectory = dictionaryDirectory;
+    }
+
+    @Nullable
+    public File getDictionaryDirectory() {
+        return this.dictionaryDirectory;
+    }
+}
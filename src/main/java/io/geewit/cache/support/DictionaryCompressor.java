@@ -0,0 +1,551 @@
+package io.geewit.cache.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the encoded values of one cache with a preset dictionary
+ * trained from a sample of them.
+ *
+ * <p>The first {@link DictionaryCompressionConfig#getSampleCount()} values of
+ * at least the minimum size are sampled and stored uncompressed; a dictionary
+ * is then trained from the samples in the background, and values compressed
+ * with it from then on. A compressed value is written as
+ * {@code [tag][dictionary id][uncompressed length][raw deflate data]}, the id
+ * taking two bytes and the length a variable-length integer, so that the
+ * value decodes with the dictionary it was compressed with even after
+ * {@link #retrain() retraining}. Values that would not shrink are stored as
+ * they are.
+ *
+ * <p>Training counts the 8-byte sequences of the samples per number of samples
+ * they occur in, keeps the runs of sequences occurring in at least 1% of the
+ * samples as candidate segments, and picks segments greedily by the count of
+ * their sequences not covered yet. The most valuable segments go last, the
+ * end of the dictionary being the cheapest for the values to refer to.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+final class DictionaryCompressor {
+
+    private static final Log logger = LogFactory.getLog(DictionaryCompressor.class);
+
+    private static final int MAXIMUM_SAMPLE_SIZE = 16 * 1024;
+
+    private static final int GRAM_SIZE = 8;
+
+    private static final int COUNT_TABLE_BITS = 20;
+
+    private static final int MAXIMUM_SEGMENT_SIZE = 256;
+
+    private static final int HEADER_SIZE = 3;
+
+    private static final String DICTIONARY_SUFFIX = ".dict";
+
+    /**
+     * Deflaters per thread by compression level, shared by the compressors of
+     * all caches: each one is reset and given its dictionary per value anyway,
+     * so that a thread holds the native memory of one deflater rather than one
+     * per cache it has written to.
+     */
+    private static final ThreadLocal<Deflater[]> deflaters =
+            ThreadLocal.withInitial(() -> new Deflater[Deflater.BEST_COMPRESSION + 2]);
+
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final String cacheName;
+
+    private final int minimumSize;
+
+    private final int sampleCount;
+
+    private final int dictionarySize;
+
+    private final int maximumDictionaries;
+
+    @Nullable
+    private final File dictionaryDirectory;
+
+    private final int level;
+
+    private final Map<Integer, Dictionary> dictionariesById = new ConcurrentHashMap<>();
+
+    private final Deque<Dictionary> dictionaries = new ArrayDeque<>();
+
+    @Nullable
+    private volatile Dictionary current;
+
+    private int nextVersion = 1;
+
+    private final List<byte[]> samples = new ArrayList<>();
+
+    private volatile boolean sampling = true;
+
+    private final LongAdder uncompressedBytes = new LongAdder();
+
+    private final LongAdder compressedBytes = new LongAdder();
+
+
+    DictionaryCompressor(String cacheName, DictionaryCompressionConfig config) {
+        this.cacheName = cacheName;
+        this.minimumSize = config.getMinimumSize();
+        this.sampleCount = config.getSampleCount();
+        this.dictionarySize = config.getDictionarySize();
+        this.maximumDictionaries = config.getMaximumDictionaries();
+        this.dictionaryDirectory = config.getDictionaryDirectory();
+        this.level = config.getLevel();
+        if (this.dictionaryDirectory != null) {
+            loadDictionaries(this.dictionaryDirectory);
+        }
+    }
+
+
+    /**
+     * Compress the given encoded value, if it is large enough and there is a
+     * dictionary to compress it with.
+     * @return the compressed value, or the given value as it is
+     */
+    byte[] compress(byte[] encoded) {
+        // too small to shrink below a header of up to 8 bytes
+        if (encoded.length < this.minimumSize || encoded.length <= HEADER_SIZE + 5) {
+            return encoded;
+        }
+        if (this.sampling) {
+            sample(encoded);
+        }
+        Dictionary dictionary = this.current;
+        if (dictionary == null) {
+            return encoded;
+        }
+        Deflater deflater = deflater(this.level);
+        deflater.reset();
+        deflater.setDictionary(dictionary.bytes);
+        deflater.setInput(encoded);
+        deflater.finish();
+        // a result no smaller than the value is not worth keeping
+        byte[] out = new byte[encoded.length];
+        out[0] = ValueCodecs.COMPRESSED;
+        out[1] = (byte) (dictionary.id >>> 8);
+        out[2] = (byte) dictionary.id;
+        int length = putVarInt(out, HEADER_SIZE, encoded.length);
+        while (!deflater.finished() && length < out.length) {
+            int written = deflater.deflate(out, length, out.length - length);
+            if (written == 0) {
+                break;
+            }
+            length += written;
+        }
+        if (!deflater.finished()) {
+            return encoded;
+        }
+        this.uncompressedBytes.add(encoded.length);
+        this.compressedBytes.add(length);
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Decompress a value written by {@link #compress}.
+     * @return the encoded value
+     * @throws IllegalArgumentException if the value is corrupt or its
+     * dictionary is no longer known
+     */
+    byte[] decompress(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        Assert.isTrue(length > HEADER_SIZE, "Compressed value too short");
+        int id = ((bytes[offset + 1] & 0xff) << 8) | (bytes[offset + 2] & 0xff);
+        Dictionary dictionary = this.dictionariesById.get(id);
+        if (dictionary == null) {
+            throw new IllegalArgumentException("Unknown dictionary " + id + " of cache '" + this.cacheName + "'");
+        }
+        int position = offset + HEADER_SIZE;
+        int size = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position == end || shift > 28) {
+                throw new IllegalArgumentException("Corrupt compressed value");
+            }
+            byte b = bytes[position++];
+            size |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("Corrupt compressed value");
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setDictionary(dictionary.bytes);
+        inflater.setInput(bytes, position, end - position);
+        byte[] out = new byte[size];
+        int inflated = 0;
+        try {
+            while (inflated < size) {
+                int read = inflater.inflate(out, inflated, size - inflated);
+                if (read == 0) {
+                    break;
+                }
+                inflated += read;
+            }
+        } catch (DataFormatException ex) {
+            throw new IllegalArgumentException("Corrupt compressed value", ex);
+        }
+        if (inflated != size) {
+            throw new IllegalArgumentException("Corrupt compressed value");
+        }
+        return out;
+    }
+
+    /**
+     * Sample values anew to train the next version of the dictionary. Values
+     * are compressed with the current version until then.
+     */
+    void retrain() {
+        synchronized (this.samples) {
+            this.samples.clear();
+            this.sampling = true;
+        }
+    }
+
+    /**
+     * Return whether the dictionaries are written to a directory, so that the
+     * values compressed with them still decode after a restart.
+     */
+    boolean isPersistent() {
+        return (this.dictionaryDirectory != null);
+    }
+
+    /**
+     * Return the version of the current dictionary, or {@code 0} if none has
+     * been trained yet.
+     */
+    int getDictionaryVersion() {
+        Dictionary dictionary = this.current;
+        return (dictionary != null ? dictionary.version : 0);
+    }
+
+    /**
+     * Return the ratio of the uncompressed size to the compressed size of the
+     * values compressed so far, or {@code 1.0} if none was.
+     */
+    double getCompressionRatio() {
+        long compressed = this.compressedBytes.sum();
+        return (compressed > 0 ? (double) this.uncompressedBytes.sum() / compressed : 1.0);
+    }
+
+    private void sample(byte[] encoded) {
+        List<byte[]> trainingSet;
+        synchronized (this.samples) {
+            if (!this.sampling) {
+                return;
+            }
+            this.samples.add(encoded.length > MAXIMUM_SAMPLE_SIZE ? Arrays.copyOf(encoded, MAXIMUM_SAMPLE_SIZE) : encoded);
+            if (this.samples.size() < this.sampleCount) {
+                return;
+            }
+            trainingSet = new ArrayList<>(this.samples);
+            this.samples.clear();
+            this.sampling = false;
+        }
+        ForkJoinPool.commonPool().execute(() -> train(trainingSet));
+    }
+
+    private void train(List<byte[]> trainingSet) {
+        byte[] bytes;
+        try {
+            bytes = trainDictionary(trainingSet, this.dictionarySize);
+        } catch (RuntimeException ex) {
+            logger.warn("Failed to train a compression dictionary for cache '" + this.cacheName + "'", ex);
+            return;
+        }
+        if (bytes.length == 0) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Values of cache '" + this.cacheName + "' have too little in common for a compression dictionary");
+            }
+            return;
+        }
+        Dictionary dictionary;
+        synchronized (this.dictionaries) {
+            dictionary = new Dictionary(this.nextVersion, bytes);
+            // values compressed with a dictionary that is not on disk could not be read after a restart
+            if (this.dictionaryDirectory != null && !saveDictionary(this.dictionaryDirectory, dictionary)) {
+                logger.warn("Keeping the current compression dictionary of cache '" + this.cacheName + "'");
+                return;
+            }
+            this.nextVersion++;
+            install(dictionary);
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Trained compression dictionary " + dictionary.version + " of " + bytes.length +
+                    " bytes for cache '" + this.cacheName + "' from " + trainingSet.size() + " values");
+        }
+    }
+
+    /**
+     * Make the given dictionary the current one, dropping the oldest beyond
+     * the maximum number of dictionaries.
+     */
+    private void install(Dictionary dictionary) {
+        this.dictionaries.addLast(dictionary);
+        this.dictionariesById.put(dictionary.id, dictionary);
+        this.current = dictionary;
+        while (this.dictionaries.size() > this.maximumDictionaries) {
+            Dictionary dropped = this.dictionaries.removeFirst();
+            this.dictionariesById.remove(dropped.id, dropped);
+            if (this.dictionaryDirectory != null) {
+                try {
+                    Files.deleteIfExists(dictionaryFile(this.dictionaryDirectory, dropped.version).toPath());
+                } catch (IOException ex) {
+                    logger.debug("Failed to delete compression dictionary " + dropped.version +
+                            " of cache '" + this.cacheName + "'", ex);
+                }
+            }
+        }
+    }
+
+    private void loadDictionaries(File directory) {
+        String prefix = fileNamePrefix();
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        TreeMap<Integer, File> files = new TreeMap<>();
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(DICTIONARY_SUFFIX)) {
+                String version = name.substring(prefix.length(), name.length() - DICTIONARY_SUFFIX.length());
+                if (!version.isEmpty() && version.chars().allMatch(Character::isDigit) && version.length() < 10) {
+                    files.put(Integer.parseInt(version), new File(directory, name));
+                }
+            }
+        }
+        synchronized (this.dictionaries) {
+            for (Map.Entry<Integer, File> entry : files.entrySet()) {
+                try {
+                    install(new Dictionary(entry.getKey(), Files.readAllBytes(entry.getValue().toPath())));
+                } catch (IOException ex) {
+                    logger.warn("Failed to read compression dictionary " + entry.getValue(), ex);
+                    continue;
+                }
+                this.nextVersion = entry.getKey() + 1;
+                this.sampling = false;
+            }
+        }
+    }
+
+    /**
+     * Write the given dictionary to the given directory.
+     * @return whether the dictionary was written
+     */
+    private boolean saveDictionary(File directory, Dictionary dictionary) {
+        File file = dictionaryFile(directory, dictionary.version);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            Files.createDirectories(directory.toPath());
+            Files.write(tempFile.toPath(), dictionary.bytes);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException ex) {
+            logger.warn("Failed to write compression dictionary " + file, ex);
+            return false;
+        }
+    }
+
+    private File dictionaryFile(File directory, int version) {
+        return new File(directory, fileNamePrefix() + version + DICTIONARY_SUFFIX);
+    }
+
+    private String fileNamePrefix() {
+        try {
+            return URLEncoder.encode(this.cacheName, "UTF-8") + ".";
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Deflater deflater(int level) {
+        Deflater[] byLevel = deflaters.get();
+        // DEFAULT_COMPRESSION is -1
+        Deflater deflater = byLevel[level + 1];
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            byLevel[level + 1] = deflater;
+        }
+        return deflater;
+    }
+
+    private static int putVarInt(byte[] bytes, int offset, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+
+
+    /**
+     * Train a dictionary of at most the given size from the given samples.
+     * @return the dictionary, empty if the samples have nothing in common
+     */
+    static byte[] trainDictionary(List<byte[]> samples, int dictionarySize) {
+        // the number of samples each sequence occurs in, hashed into a fixed table
+        int[] counts = new int[1 << COUNT_TABLE_BITS];
+        int[] lastSample = new int[1 << COUNT_TABLE_BITS];
+        for (int s = 0; s < samples.size(); s++) {
+            byte[] sample = samples.get(s);
+            for (int i = 0; i + GRAM_SIZE <= sample.length; i++) {
+                int slot = gramSlot(sample, i);
+                if (lastSample[slot] != s + 1) {
+                    lastSample[slot] = s + 1;
+                    counts[slot]++;
+                }
+            }
+        }
+        int threshold = Math.max(2, samples.size() / 100);
+        Map<ByteBuffer, Segment> candidates = new HashMap<>();
+        for (byte[] sample : samples) {
+            int i = 0;
+            while (i + GRAM_SIZE <= sample.length) {
+                if (counts[gramSlot(sample, i)] < threshold) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i + GRAM_SIZE <= sample.length && i - start <= MAXIMUM_SEGMENT_SIZE - GRAM_SIZE &&
+                        counts[gramSlot(sample, i)] >= threshold) {
+                    i++;
+                }
+                ByteBuffer content = ByteBuffer.wrap(sample, start, i - 1 + GRAM_SIZE - start).slice();
+                candidates.computeIfAbsent(content, Segment::new);
+            }
+        }
+        PriorityQueue<Segment> queue = new PriorityQueue<>((a, b) -> Long.compare(b.score, a.score));
+        for (Segment segment : candidates.values()) {
+            segment.score = segment.score(counts);
+            queue.add(segment);
+        }
+        // lazy greedy: the scores only decrease as sequences get covered
+        List<Segment> chosen = new ArrayList<>();
+        int size = 0;
+        while (!queue.isEmpty() && size < dictionarySize) {
+            Segment segment = queue.poll();
+            long score = segment.score(counts);
+            if (score == 0) {
+                continue;
+            }
+            Segment next = queue.peek();
+            if (next != null && score < next.score) {
+                segment.score = score;
+                queue.add(segment);
+                continue;
+            }
+            chosen.add(segment);
+            size += segment.content.remaining();
+            segment.cover(counts);
+        }
+        // the most valuable segments last, nearest to the values
+        byte[] dictionary = new byte[Math.min(size, dictionarySize)];
+        int position = dictionary.length;
+        for (Segment segment : chosen) {
+            int length = Math.min(segment.content.remaining(), position);
+            position -= length;
+            ByteBuffer content = segment.content.duplicate();
+            content.position(content.limit() - length);
+            content.get(dictionary, position, length);
+            if (position == 0) {
+                break;
+            }
+        }
+        return dictionary;
+    }
+
+    private static int gramSlot(byte[] bytes, int offset) {
+        long gram = 0;
+        for (int i = offset; i < offset + GRAM_SIZE; i++) {
+            gram = (gram << 8) | (bytes[i] & 0xffL);
+        }
+        gram *= 0x9e3779b97f4a7c15L;
+        return (int) (gram >>> (64 - COUNT_TABLE_BITS));
+    }
+
+
+    /**
+     * A candidate segment of a dictionary.
+     */
+    private static final class Segment {
+
+        final ByteBuffer content;
+
+        long score;
+
+        Segment(ByteBuffer content) {
+            this.content = content;
+        }
+
+        long score(int[] counts) {
+            long score = 0;
+            byte[] bytes = gramBytes();
+            for (int i = 0; i + GRAM_SIZE <= bytes.length; i++) {
+                score += counts[gramSlot(bytes, i)];
+            }
+            return score;
+        }
+
+        void cover(int[] counts) {
+            byte[] bytes = gramBytes();
+            for (int i = 0; i + GRAM_SIZE <= bytes.length; i++) {
+                counts[gramSlot(bytes, i)] = 0;
+            }
+        }
+
+        private byte[] gramBytes() {
+            byte[] bytes = new byte[this.content.remaining()];
+            this.content.duplicate().get(bytes);
+            return bytes;
+        }
+    }
+
+
+    /**
+     * A version of the dictionary, identified in compressed values by the
+     * low 16 bits of its version.
+     */
+    private static final class Dictionary {
+
+        final int version;
+
+        final int id;
+
+        final byte[] bytes;
+
+        Dictionary(int version, byte[] bytes) {
+            this.version = version;
+            this.id = version & 0xffff;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,1278 @@
+package io.geewit.cache.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * {@link org.springframework.cache.Cache} persisting serialized entries in
+ * memory-mapped files of a local directory, meant as a tier between the
+ * in-memory tiers and the remote tier of a {@link CompositeCache}: it is read
+ * at the speed of the page cache and survives restarts, so that a freshly
+ * deployed node does not send its whole working set to the remote tier at once.
+ *
+ * <p>Storage is log-structured:
+ * <ul>
+ * <li>Entries are appended to segment files of a fixed size, each mapped as a
+ * whole, as records {@code [crc][key length][value length][key][value]}; an
+ * eviction appends a record without value, a tombstone. The CRC-32 covers the
+ * record after its first four bytes and is written last.</li>
+ * <li>The index is an open-addressed hash table in a memory-mapped file of its
+ * own, sixteen bytes per slot holding the key hash and the segment and offset
+ * of the latest record of the key, with linear probing and backward-shift
+ * deletion. It is rewritten into a file twice as large beyond a load of 75%,
+ * up to 2<sup>26</sup> slots; puts of new keys beyond 75% of these are rejected.</li>
+ * <li>Records superseded by a later put or eviction are garbage: {@link #compact()}
+ * copies the live records of sealed segments holding less than the
+ * {@link #setCompactionThreshold threshold} share of live bytes to the end of
+ * the log, and deletes the segments.</li>
+ * <li>Once the capacity is reached, the oldest segment is dropped along with
+ * its entries, in first-in first-out order.</li>
+ * </ul>
+ *
+ * <p>The index is trusted on open only if the cache was {@link #close() closed}
+ * cleanly; otherwise it is rebuilt by replaying the segments in order, each cut
+ * at its first record failing the CRC check, which drops the writes torn by a
+ * crash. Writes reach the files when the operating system writes back the
+ * mapped pages, so they survive a crash of the process but not necessarily of
+ * the machine, unless {@link #flush() flushed}. The directory is locked against
+ * use by another process.
+ *
+ * <p>Keys are compared by their {@link Serialization serialized} form, values
+ * are encoded by {@link ValueCodecs} and decoded on every hit, so the codecs
+ * must stay the same across restarts. Byte array values can also be
+ * {@link #lease leased} as read-only slices of the mapped segments, without
+ * any copy; a segment dropped or compacted while some of its values are
+ * leased is deleted only once the last of these leases is closed. Mapped files
+ * are unmapped once garbage collected, so the disk space of deleted segments
+ * may be released late.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see DiskCacheManager
+ */
+public class DiskCache extends AbstractValueAdaptingCache implements ScannableCache, LeasingCache, EncodingCache, Closeable {
+
+    private static final Log logger = LogFactory.getLog(DiskCache.class);
+
+    private static final long SEGMENT_MAGIC = 0x6777736567000001L;
+
+    private static final long INDEX_MAGIC = 0x6777696478000001L;
+
+    /**
+     * Segment header: magic, sequence, and the end of the records once sealed.
+     */
+    private static final int SEGMENT_HEADER_SIZE = 24;
+
+    private static final int SEGMENT_END_OFFSET = 16;
+
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    /**
+     * Index header: magic, slot count, clean flag and entry count.
+     */
+    private static final int INDEX_HEADER_SIZE = 32;
+
+    private static final int INDEX_SLOTS_OFFSET = 8;
+
+    private static final int INDEX_CLEAN_OFFSET = 12;
+
+    private static final int INDEX_ENTRIES_OFFSET = 16;
+
+    private static final int INDEX_SLOT_SIZE = 16;
+
+    private static final int INITIAL_INDEX_SLOTS = 1024;
+
+    private static final int MAXIMUM_INDEX_SLOTS = 1 << 26;
+
+    /**
+     * Entries the index holds at most, keeping its load at 75% at its maximum
+     * size so that probes always end at an empty slot.
+     */
+    private static final int MAXIMUM_ENTRIES = MAXIMUM_INDEX_SLOTS / 4 * 3;
+
+    private static final int TOMBSTONE = -1;
+
+    private static final int MINIMUM_SEGMENT_SIZE = 4096;
+
+    private static final int COMPACTION_BATCH_SIZE = 64;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String INDEX_FILE = "index.dat";
+
+    private static final String LOCK_FILE = ".lock";
+
+    private final String name;
+
+    private final File directory;
+
+    private final long capacity;
+
+    private final int segmentSize;
+
+    private final int maximumSegments;
+
+    private final FileChannel lockChannel;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Loads currently running through {@link #get(Object, Callable)}, one per key.
+     */
+    private final ConcurrentMap<Object, CompletableFuture<Object>> loadsInFlight = new ConcurrentHashMap<>();
+
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+
+    private LogSegment activeSegment;
+
+    private long nextSequence = 1;
+
+    private MappedByteBuffer index;
+
+    private int indexMask;
+
+    private long entryCount;
+
+    private boolean closed;
+
+    private final boolean indexRebuilt;
+
+    private volatile double compactionThreshold = 0.5;
+
+    private volatile ValueCodecs valueCodecs = ValueCodecs.getSharedInstance();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder rejections = new LongAdder();
+
+    private final LongAdder compactions = new LongAdder();
+
+
+    /**
+     * Open a DiskCache in the specified directory, recovering the entries
+     * left there.
+     * @param name the name of the cache
+     * @param directory the directory of the segment and index files, created
+     * if missing
+     * @param capacity the number of bytes of the segment files, at least two
+     * segments; the index comes in addition
+     * @param segmentSize the size of each segment file, which bounds the size
+     * of an entry including its key and a 12-byte header
+     * @param allowNullValues whether to accept and convert {@code null} values for this cache
+     * @throws UncheckedIOException if the files cannot be opened
+     * @throws IllegalStateException if the directory is in use
+     */
+    public DiskCache(String name, File directory, long capacity, int segmentSize, boolean allowNullValues) {
+        super(allowNullValues);
+        Assert.notNull(name, "Name must not be null");
+        Assert.notNull(directory, "Directory must not be null");
+        Assert.isTrue(segmentSize >= MINIMUM_SEGMENT_SIZE, "segmentSize must be at least " + MINIMUM_SEGMENT_SIZE);
+        Assert.isTrue(capacity >= 2L * segmentSize, "capacity must be at least two segments");
+        this.name = name;
+        this.directory = directory;
+        this.capacity = capacity;
+        this.segmentSize = segmentSize;
+        this.maximumSegments = (int) Math.min(Integer.MAX_VALUE, capacity / segmentSize);
+        FileChannel lockChannel = null;
+        try {
+            Files.createDirectories(directory.toPath());
+            lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            Assert.state(lockChannel.tryLock() != null, "Directory " + directory + " is in use by another process");
+            this.indexRebuilt = !open();
+        } catch (IOException | RuntimeException ex) {
+            if (lockChannel != null) {
+                try {
+                    lockChannel.close();
+                } catch (IOException closeEx) {
+                    ex.addSuppressed(closeEx);
+                }
+            }
+            if (ex instanceof IOException) {
+                throw new UncheckedIOException("Failed to open disk cache in " + directory, (IOException) ex);
+            }
+            throw (RuntimeException) ex;
+        }
+        this.lockChannel = lockChannel;
+    }
+
+
+    @Override
+    public final String getName() {
+        return this.name;
+    }
+
+    @Override
+    public final Object getNativeCache() {
+        return this;
+    }
+
+    @Override
+    @Nullable
+    public Object lookup(Object key) {
+        byte[] keyBytes = Serialization.serializeKey(key);
+        byte[] valueBytes = read(Serialization.hash(keyBytes), keyBytes);
+        return (valueBytes != null ? decode(key, valueBytes) : null);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        byte[] keyBytes = Serialization.serializeKey(key);
+        long hash = Serialization.hash(keyBytes);
+        byte[] valueBytes = read(hash, keyBytes);
+        Object storeValue = (valueBytes != null ? decode(key, valueBytes) : null);
+        if (storeValue != null) {
+            return (T) fromStoreValue(storeValue);
+        }
+        // one load per key, so that a slow loader holds up no other keys
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = this.loadsInFlight.putIfAbsent(key, future);
+        if (inFlight != null) {
+            try {
+                return (T) inFlight.join();
+            } catch (CompletionException ex) {
+                throw new ValueRetrievalException(key, valueLoader, ex.getCause());
+            }
+        }
+        try {
+            // a load for this key may have finished between our miss and claiming the key
+            valueBytes = read(hash, keyBytes);
+            storeValue = (valueBytes != null ? decode(key, valueBytes) : null);
+            T value;
+            if (storeValue != null) {
+                value = (T) fromStoreValue(storeValue);
+            } else {
+                value = valueLoader.call();
+                write(hash, keyBytes, this.valueCodecs.encode(toStoreValue(value)));
+            }
+            future.complete(value);
+            return value;
+        } catch (Throwable ex) {
+            future.completeExceptionally(ex);
+            throw new ValueRetrievalException(key, valueLoader, ex);
+        } finally {
+            this.loadsInFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Decode the given value of the given key. A value that does not decode,
+     * such as one compressed with a dictionary dropped since, is evicted and
+     * read as a miss rather than as a failure of the cache; at worst a value
+     * written in the meantime goes with it.
+     * @return the store value, or {@code null} if evicted
+     */
+    @Nullable
+    private Object decode(Object key, byte[] valueBytes) {
+        try {
+            return this.valueCodecs.decode(valueBytes);
+        } catch (IllegalArgumentException ex) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Evicting undecodable value of key '" + key + "' from " + this, ex);
+            }
+            evictIfPresent(key);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(Object key, @Nullable Object value) {
+        byte[] keyBytes = Serialization.serializeKey(key);
+        write(Serialization.hash(keyBytes), keyBytes, this.valueCodecs.encode(toStoreValue(value)));
+    }
+
+    @Override
+    public void putEncoded(Object key, byte[] encodedValue) {
+        byte[] keyBytes = Serialization.serializeKey(key);
+        write(Serialization.hash(keyBytes), keyBytes, encodedValue);
+    }
+
+    @Override
+    public void evict(Object key) {
+        evictIfPresent(key);
+    }
+
+    @Override
+    public boolean evictIfPresent(Object key) {
+        byte[] keyBytes = Serialization.serializeKey(key);
+        long hash = Serialization.hash(keyBytes);
+        this.lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (find(hash, keyBytes) < 0) {
+                return false;
+            }
+            append(keyBytes, null);
+            // appending may have dropped the oldest segment and moved the slot
+            int slot = find(hash, keyBytes);
+            if (slot >= 0) {
+                removeAt(slot);
+            }
+            return true;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to write to " + this, ex);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        this.lock.writeLock().lock();
+        try {
+            ensureOpen();
+            for (LogSegment segment : this.segments.values()) {
+                delete(segment);
+            }
+            this.segments.clear();
+            this.activeSegment = null;
+            this.index = createIndex(INITIAL_INDEX_SLOTS);
+            this.indexMask = INITIAL_INDEX_SLOTS - 1;
+            this.entryCount = 0;
+            rollSegment();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to clear " + this, ex);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean invalidate() {
+        boolean notEmpty = getEntryCount() > 0;
+        clear();
+        return notEmpty;
+    }
+
+    @Override
+    @Nullable
+    public ValueLease lease(Object key) {
+        byte[] keyBytes = Serialization.serializeKey(key);
+        long hash = Serialization.hash(keyBytes);
+        this.lock.readLock().lock();
+        try {
+            ensureOpen();
+            int slot = find(hash, keyBytes);
+            if (slot < 0) {
+                return null;
+            }
+            long address = addressAt(slot);
+            LogSegment segment = segmentOf(address);
+            int offset = offsetOf(address) + RECORD_HEADER_SIZE + keyBytes.length;
+            if (segment.buffer.get(offset) != ValueCodecs.BYTES) {
+                return null;
+            }
+            ByteBuffer view = segment.buffer.asReadOnlyBuffer();
+            view.limit(offset + segment.buffer.getInt(offsetOf(address) + 8));
+            view.position(offset + 1);
+            // taken under the read lock, so that no segment is deleted in between
+            segment.leases.incrementAndGet();
+            return new ValueLease(view.slice(), () -> release(segment));
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void scanKeys(Consumer<Object> consumer) {
+        List<byte[]> keys = new ArrayList<>();
+        this.lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (int slot = 0; slot <= this.indexMask; slot++) {
+                long address = addressAt(slot);
+                if (address != 0L) {
+                    keys.add(readKey(segmentOf(address), offsetOf(address)));
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        for (byte[] keyBytes : keys) {
+            consumer.accept(Serialization.deserializeKey(keyBytes));
+        }
+    }
+
+
+    /**
+     * Specify the codecs encoding the values of this cache. Default is the
+     * {@link ValueCodecs#getSharedInstance() shared instance}.
+     * @throws IllegalArgumentException if the codecs compress values with
+     * dictionaries that are not written to a directory, the values of this
+     * cache then failing to decode after a restart
+     * @see ValueCodecs#isPersistent()
+     */
+    public void setValueCodecs(ValueCodecs valueCodecs) {
+        Assert.notNull(valueCodecs, "ValueCodecs must not be null");
+        Assert.isTrue(valueCodecs.isPersistent(),
+                "ValueCodecs compressing values must keep their dictionaries in a dictionary directory");
+        this.valueCodecs = valueCodecs;
+    }
+
+    @Override
+    public ValueCodecs getValueCodecs() {
+        return this.valueCodecs;
+    }
+
+    /**
+     * Specify the largest share of live bytes, from {@code 0} to {@code 1}, of
+     * the segments {@link #compact()} rewrites. Default is {@code 0.5}.
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        Assert.isTrue(compactionThreshold >= 0 && compactionThreshold <= 1, "compactionThreshold must be between 0 and 1");
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Copy the live records of every sealed segment whose share of live bytes
+     * is below the {@link #setCompactionThreshold compaction threshold} to the
+     * end of the log, and delete the segment. Records are copied a batch at a
+     * time under the write lock, so that reads and writes go on meanwhile.
+     * @return the number of segments deleted
+     * @throws UncheckedIOException if the log cannot be written
+     */
+    public int compact() {
+        List<LogSegment> candidates = new ArrayList<>();
+        this.lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (LogSegment segment : this.segments.values()) {
+                if (segment != this.activeSegment &&
+                        segment.liveBytes < this.compactionThreshold * (segment.end - SEGMENT_HEADER_SIZE)) {
+                    candidates.add(segment);
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        int compacted = 0;
+        for (LogSegment segment : candidates) {
+            if (compact(segment)) {
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Force the written records and the index to the storage device.
+     * @throws UncheckedIOException if the files cannot be written
+     */
+    public void flush() {
+        this.lock.writeLock().lock();
+        try {
+            ensureOpen();
+            for (LogSegment segment : this.segments.values()) {
+                segment.buffer.force();
+            }
+            this.index.force();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flush the files and mark the index as clean, so that the next open
+     * trusts it instead of replaying the segments, then release the directory.
+     * Any later use of this cache fails with an {@link IllegalStateException}.
+     */
+    @Override
+    public void close() throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            for (LogSegment segment : this.segments.values()) {
+                segment.buffer.putInt(SEGMENT_END_OFFSET, segment.end);
+                segment.buffer.force();
+            }
+            this.index.putLong(INDEX_ENTRIES_OFFSET, this.entryCount);
+            this.index.force();
+            this.index.putInt(INDEX_CLEAN_OFFSET, 1);
+            this.index.force();
+            this.lockChannel.close();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Return the directory of the files of this cache.
+     */
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Return the number of bytes the segment files may take.
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Return the number of entries.
+     */
+    public long getEntryCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.entryCount;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of segment files.
+     */
+    public int getSegmentCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.segments.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of bytes of the records in the segments, live or not.
+     */
+    public long getLogBytes() {
+        this.lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (LogSegment segment : this.segments.values()) {
+                bytes += segment.end - SEGMENT_HEADER_SIZE;
+            }
+            return bytes;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of bytes of the records holding the current entries.
+     */
+    public long getLiveBytes() {
+        this.lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (LogSegment segment : this.segments.values()) {
+                bytes += segment.liveBytes;
+            }
+            return bytes;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the share of the log bytes that are garbage, from {@code 0} to {@code 1}.
+     */
+    public double getGarbageRatio() {
+        long log = getLogBytes();
+        return (log > 0 ? 1.0 - (double) getLiveBytes() / log : 0.0);
+    }
+
+    /**
+     * Return the number of bytes of the index file.
+     */
+    public long getIndexBytes() {
+        this.lock.readLock().lock();
+        try {
+            return this.index.capacity();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of entries dropped with the oldest segment.
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Return the number of puts skipped because the entry was larger than a
+     * segment, or because the index was full.
+     */
+    public long getRejectionCount() {
+        return this.rejections.sum();
+    }
+
+    /**
+     * Return the number of segments deleted by compaction.
+     */
+    public long getCompactionCount() {
+        return this.compactions.sum();
+    }
+
+    /**
+     * Return whether the index was rebuilt from the segments on open, because
+     * the cache had not been closed cleanly.
+     */
+    public boolean isIndexRebuilt() {
+        return this.indexRebuilt;
+    }
+
+    @Override
+    public String toString() {
+        return "DiskCache '" + this.name + "' (directory=" + this.directory + ")";
+    }
+
+
+    @Nullable
+    private byte[] read(long hash, byte[] keyBytes) {
+        this.lock.readLock().lock();
+        try {
+            ensureOpen();
+            int slot = find(hash, keyBytes);
+            if (slot < 0) {
+                return null;
+            }
+            long address = addressAt(slot);
+            LogSegment segment = segmentOf(address);
+            int offset = offsetOf(address);
+            byte[] valueBytes = new byte[segment.buffer.getInt(offset + 8)];
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset + RECORD_HEADER_SIZE + keyBytes.length);
+            view.get(valueBytes);
+            return valueBytes;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private void write(long hash, byte[] keyBytes, byte[] valueBytes) {
+        this.lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (RECORD_HEADER_SIZE + (long) keyBytes.length + valueBytes.length > this.segmentSize - SEGMENT_HEADER_SIZE) {
+                this.rejections.increment();
+                // a stale entry must not outlive the rejected put
+                if (find(hash, keyBytes) >= 0) {
+                    append(keyBytes, null);
+                    int slot = find(hash, keyBytes);
+                    if (slot >= 0) {
+                        removeAt(slot);
+                    }
+                }
+                return;
+            }
+            if (this.entryCount >= MAXIMUM_ENTRIES && find(hash, keyBytes) < 0) {
+                this.rejections.increment();
+                return;
+            }
+            long address = append(keyBytes, valueBytes);
+            segmentOf(address).liveBytes += recordSize(keyBytes.length, valueBytes.length);
+            int slot = find(hash, keyBytes);
+            if (slot >= 0) {
+                long previous = addressAt(slot);
+                segmentOf(previous).liveBytes -= recordSizeAt(previous);
+                this.index.putLong(slotPosition(slot) + 8, address);
+            } else {
+                insert(hash, address);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to write to " + this, ex);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureOpen() {
+        if (this.closed) {
+            throw new IllegalStateException(this + " is closed");
+        }
+    }
+
+
+    // Log
+
+    /**
+     * Map the segment files, then load the index or rebuild it from them.
+     * @return whether the index was loaded, or there was nothing to rebuild
+     */
+    private boolean open() throws IOException {
+        File[] files = this.directory.listFiles((dir, fileName) ->
+                fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX));
+        boolean endsKnown = true;
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                long sequence;
+                try {
+                    sequence = Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(),
+                            fileName.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+                long length = file.length();
+                MappedByteBuffer buffer = (length >= MINIMUM_SEGMENT_SIZE && length <= Integer.MAX_VALUE ?
+                        map(file, length) : null);
+                if (buffer == null || buffer.getLong(0) != SEGMENT_MAGIC || buffer.getLong(8) != sequence) {
+                    logger.warn("Deleting invalid segment file " + file);
+                    Files.deleteIfExists(file.toPath());
+                    continue;
+                }
+                LogSegment segment = new LogSegment(sequence, file, buffer);
+                segment.end = buffer.getInt(SEGMENT_END_OFFSET);
+                if (segment.end < SEGMENT_HEADER_SIZE || segment.end > buffer.capacity()) {
+                    endsKnown = false;
+                }
+                this.segments.put(sequence, segment);
+                this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+            }
+        }
+        boolean empty = this.segments.isEmpty();
+        boolean loaded = (endsKnown && !empty && loadIndex());
+        if (!loaded) {
+            rebuildIndex();
+        }
+        if (empty) {
+            rollSegment();
+        } else {
+            this.activeSegment = this.segments.lastEntry().getValue();
+        }
+        // until closed, a crash must lead to a rebuild
+        this.index.putInt(INDEX_CLEAN_OFFSET, 0);
+        this.index.force();
+        return (loaded || empty);
+    }
+
+    /**
+     * Append a record, sealing the active segment if it is full.
+     * @param valueBytes the value, or {@code null} for a tombstone
+     * @return the address of the record
+     */
+    private long append(byte[] keyBytes, @Nullable byte[] valueBytes) throws IOException {
+        int size = recordSize(keyBytes.length, (valueBytes != null ? valueBytes.length : TOMBSTONE));
+        LogSegment segment = this.activeSegment;
+        if (segment.end + size > segment.buffer.capacity()) {
+            segment = rollSegment();
+        }
+        int offset = segment.end;
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putInt(offset + 4, keyBytes.length);
+        buffer.putInt(offset + 8, (valueBytes != null ? valueBytes.length : TOMBSTONE));
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.put(keyBytes);
+        if (valueBytes != null) {
+            view.put(valueBytes);
+        }
+        buffer.putInt(offset, crc(buffer, offset, size));
+        segment.end = offset + size;
+        return addressOf(segment, offset);
+    }
+
+    /**
+     * Seal the active segment and start a new one, dropping the oldest
+     * segments beyond the capacity.
+     */
+    private LogSegment rollSegment() throws IOException {
+        if (this.activeSegment != null) {
+            this.activeSegment.buffer.putInt(SEGMENT_END_OFFSET, this.activeSegment.end);
+        }
+        long sequence = this.nextSequence++;
+        File file = new File(this.directory, SEGMENT_PREFIX + String.format("%016d", sequence) + SEGMENT_SUFFIX);
+        Files.deleteIfExists(file.toPath());
+        LogSegment segment = new LogSegment(sequence, file, map(file, this.segmentSize));
+        segment.buffer.putLong(0, SEGMENT_MAGIC);
+        segment.buffer.putLong(8, sequence);
+        segment.end = SEGMENT_HEADER_SIZE;
+        this.segments.put(sequence, segment);
+        this.activeSegment = segment;
+        while (this.segments.size() > this.maximumSegments) {
+            drop(this.segments.firstEntry().getValue());
+        }
+        return segment;
+    }
+
+    /**
+     * Remove the entries whose latest record is in the given segment, then
+     * delete it.
+     */
+    private void drop(LogSegment segment) throws IOException {
+        for (int offset = SEGMENT_HEADER_SIZE; offset < segment.end; ) {
+            int valueLength = segment.buffer.getInt(offset + 8);
+            if (valueLength != TOMBSTONE) {
+                byte[] keyBytes = readKey(segment, offset);
+                int slot = find(Serialization.hash(keyBytes), keyBytes);
+                if (slot >= 0 && addressAt(slot) == addressOf(segment, offset)) {
+                    removeAt(slot);
+                    this.evictions.increment();
+                }
+            }
+            offset += recordSizeAt(segment, offset);
+        }
+        this.segments.remove(segment.sequence);
+        delete(segment);
+    }
+
+    /**
+     * Copy the live records of the given segment to the end of the log, and
+     * the tombstones that may still hide a record of an older segment; then
+     * delete the segment.
+     * @return whether the segment was deleted by compaction, rather than
+     * dropped or cleared meanwhile
+     */
+    private boolean compact(LogSegment segment) {
+        int offset = SEGMENT_HEADER_SIZE;
+        while (true) {
+            this.lock.writeLock().lock();
+            try {
+                ensureOpen();
+                for (int i = 0; i < COMPACTION_BATCH_SIZE; i++) {
+                    if (this.segments.get(segment.sequence) != segment) {
+                        return false;
+                    }
+                    if (offset >= segment.end) {
+                        this.segments.remove(segment.sequence);
+                        delete(segment);
+                        this.compactions.increment();
+                        return true;
+                    }
+                    copy(segment, offset);
+                    offset += recordSizeAt(segment, offset);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Failed to compact " + this, ex);
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void copy(LogSegment segment, int offset) throws IOException {
+        byte[] keyBytes = readKey(segment, offset);
+        long hash = Serialization.hash(keyBytes);
+        int valueLength = segment.buffer.getInt(offset + 8);
+        long address = addressOf(segment, offset);
+        int slot = find(hash, keyBytes);
+        if (valueLength == TOMBSTONE) {
+            if (slot < 0 && segment != this.segments.firstEntry().getValue()) {
+                append(keyBytes, null);
+            }
+            return;
+        }
+        if (slot < 0 || addressAt(slot) != address) {
+            return;
+        }
+        byte[] valueBytes = new byte[valueLength];
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE + keyBytes.length);
+        view.get(valueBytes);
+        long copy = append(keyBytes, valueBytes);
+        // appending may have dropped the oldest segment and moved the slot
+        slot = find(hash, keyBytes);
+        if (slot >= 0 && addressAt(slot) == address) {
+            int size = recordSize(keyBytes.length, valueLength);
+            segment.liveBytes -= size;
+            segmentOf(copy).liveBytes += size;
+            this.index.putLong(slotPosition(slot) + 8, copy);
+        }
+    }
+
+    /**
+     * Delete the file of a segment no longer part of the log, unless some of
+     * its values are leased: then the last lease closed deletes it, and in
+     * the meantime the segment is marked so that an open skips it.
+     */
+    private void delete(LogSegment segment) throws IOException {
+        segment.retired = true;
+        if (segment.leases.get() == 0) {
+            Files.deleteIfExists(segment.file.toPath());
+        } else {
+            segment.buffer.putLong(0, 0L);
+        }
+    }
+
+    private void release(LogSegment segment) {
+        if (segment.leases.decrementAndGet() == 0 && segment.retired) {
+            try {
+                Files.deleteIfExists(segment.file.toPath());
+            } catch (IOException ex) {
+                logger.warn("Failed to delete " + segment.file, ex);
+            }
+        }
+    }
+
+    /**
+     * Return the size of the valid record at the given offset, or {@code -1}
+     * if there is none: the end of the log, or a torn record.
+     */
+    private static int validRecordSize(LogSegment segment, int offset) {
+        ByteBuffer buffer = segment.buffer;
+        if (offset + RECORD_HEADER_SIZE > buffer.capacity()) {
+            return -1;
+        }
+        int keyLength = buffer.getInt(offset + 4);
+        int valueLength = buffer.getInt(offset + 8);
+        if (keyLength <= 0 || valueLength < TOMBSTONE) {
+            return -1;
+        }
+        long size = RECORD_HEADER_SIZE + (long) keyLength + Math.max(valueLength, 0);
+        if (offset + size > buffer.capacity() || crc(buffer, offset, (int) size) != buffer.getInt(offset)) {
+            return -1;
+        }
+        return (int) size;
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int size) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + size);
+        view.position(offset + 4);
+        CRC32 crc = new CRC32();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    private static int recordSize(int keyLength, int valueLength) {
+        return RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+    }
+
+    private static int recordSizeAt(LogSegment segment, int offset) {
+        return recordSize(segment.buffer.getInt(offset + 4), segment.buffer.getInt(offset + 8));
+    }
+
+    private int recordSizeAt(long address) {
+        return recordSizeAt(segmentOf(address), offsetOf(address));
+    }
+
+    private static byte[] readKey(LogSegment segment, int offset) {
+        byte[] keyBytes = new byte[segment.buffer.getInt(offset + 4)];
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.get(keyBytes);
+        return keyBytes;
+    }
+
+    private static long addressOf(LogSegment segment, int offset) {
+        return (segment.sequence << 32) | offset;
+    }
+
+    private LogSegment segmentOf(long address) {
+        return this.segments.get(address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+
+    // Index
+
+    /**
+     * Load the index file if it was closed cleanly, summing the live bytes of
+     * the segments on the way, which also checks that every entry resolves.
+     */
+    private boolean loadIndex() throws IOException {
+        File file = new File(this.directory, INDEX_FILE);
+        long length = file.length();
+        if (length < INDEX_HEADER_SIZE + INDEX_SLOT_SIZE || length > Integer.MAX_VALUE) {
+            return false;
+        }
+        MappedByteBuffer index = map(file, length);
+        int slots = index.getInt(INDEX_SLOTS_OFFSET);
+        if (index.getLong(0) != INDEX_MAGIC || index.getInt(INDEX_CLEAN_OFFSET) != 1 ||
+                Integer.bitCount(slots) != 1 || length != INDEX_HEADER_SIZE + (long) slots * INDEX_SLOT_SIZE) {
+            return false;
+        }
+        long entries = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            long address = index.getLong(INDEX_HEADER_SIZE + slot * INDEX_SLOT_SIZE + 8);
+            if (address != 0L) {
+                LogSegment segment = segmentOf(address);
+                int offset = offsetOf(address);
+                if (segment == null || offset < SEGMENT_HEADER_SIZE || offset + RECORD_HEADER_SIZE > segment.end) {
+                    for (LogSegment each : this.segments.values()) {
+                        each.liveBytes = 0;
+                    }
+                    return false;
+                }
+                segment.liveBytes += recordSizeAt(segment, offset);
+                entries++;
+            }
+        }
+        this.index = index;
+        this.indexMask = slots - 1;
+        this.entryCount = entries;
+        return true;
+    }
+
+    /**
+     * Replay the segments in order into a new index, cutting each at its
+     * first invalid record.
+     */
+    private void rebuildIndex() throws IOException {
+        long start = System.currentTimeMillis();
+        this.index = createIndex(INITIAL_INDEX_SLOTS);
+        this.indexMask = INITIAL_INDEX_SLOTS - 1;
+        this.entryCount = 0;
+        long torn = 0;
+        for (LogSegment segment : this.segments.values()) {
+            segment.liveBytes = 0;
+            int offset = SEGMENT_HEADER_SIZE;
+            int size;
+            while ((size = validRecordSize(segment, offset)) > 0) {
+                replay(segment, offset, size);
+                offset += size;
+            }
+            if (offset + RECORD_HEADER_SIZE <= segment.buffer.capacity() && segment.buffer.getInt(offset + 4) != 0) {
+                torn++;
+            }
+            if (segment == this.segments.lastEntry().getValue()) {
+                zeroTail(segment, offset);
+            }
+            segment.end = offset;
+            segment.buffer.putInt(SEGMENT_END_OFFSET, offset);
+        }
+        if (!this.segments.isEmpty() && logger.isInfoEnabled()) {
+            logger.info("Rebuilt index of " + this + " from " + this.segments.size() + " segments with " +
+                    this.entryCount + " entries in " + (System.currentTimeMillis() - start) + " ms" +
+                    (torn > 0 ? ", cutting " + torn + " segments at a torn record" : ""));
+        }
+    }
+
+    /**
+     * Zero whatever follows the last valid record of the segment appends will
+     * go to, so that no stale record written before a crash shows up behind
+     * them on the next replay. Pages already zero are left clean.
+     */
+    private static void zeroTail(LogSegment segment, int offset) {
+        ByteBuffer buffer = segment.buffer;
+        int position = offset;
+        for (; position < buffer.capacity() && (position & 7) != 0; position++) {
+            buffer.put(position, (byte) 0);
+        }
+        for (; position + 8 <= buffer.capacity(); position += 8) {
+            if (buffer.getLong(position) != 0L) {
+                buffer.putLong(position, 0L);
+            }
+        }
+        for (; position < buffer.capacity(); position++) {
+            buffer.put(position, (byte) 0);
+        }
+    }
+
+    private void replay(LogSegment segment, int offset, int size) throws IOException {
+        byte[] keyBytes = readKey(segment, offset);
+        long hash = Serialization.hash(keyBytes);
+        int slot = find(hash, keyBytes);
+        if (segment.buffer.getInt(offset + 8) == TOMBSTONE) {
+            if (slot >= 0) {
+                removeAt(slot);
+            }
+            return;
+        }
+        long address = addressOf(segment, offset);
+        if (slot >= 0) {
+            long previous = addressAt(slot);
+            segmentOf(previous).liveBytes -= recordSizeAt(previous);
+            this.index.putLong(slotPosition(slot) + 8, address);
+        } else if (this.entryCount < MAXIMUM_ENTRIES) {
+            insert(hash, address);
+        } else {
+            return;
+        }
+        segment.liveBytes += size;
+    }
+
+    /**
+     * Create an empty index file of the given number of slots in place of the
+     * current one, through an atomic rename.
+     */
+    private MappedByteBuffer createIndex(int slots) throws IOException {
+        File file = new File(this.directory, INDEX_FILE);
+        File newFile = new File(this.directory, INDEX_FILE + ".new");
+        Files.deleteIfExists(newFile.toPath());
+        MappedByteBuffer index = map(newFile, INDEX_HEADER_SIZE + (long) slots * INDEX_SLOT_SIZE);
+        index.putLong(0, INDEX_MAGIC);
+        index.putInt(INDEX_SLOTS_OFFSET, slots);
+        Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return index;
+    }
+
+    /**
+     * Return the index slot of the given key, or {@code -1}.
+     */
+    private int find(long hash, byte[] keyBytes) {
+        int slot = (int) hash & this.indexMask;
+        while (true) {
+            long address = addressAt(slot);
+            if (address == 0L) {
+                return -1;
+            }
+            if (this.index.getLong(slotPosition(slot)) == hash && keyEquals(address, keyBytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & this.indexMask;
+        }
+    }
+
+    private boolean keyEquals(long address, byte[] keyBytes) {
+        LogSegment segment = segmentOf(address);
+        int offset = offsetOf(address);
+        if (segment.buffer.getInt(offset + 4) != keyBytes.length) {
+            return false;
+        }
+        offset += RECORD_HEADER_SIZE;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (segment.buffer.get(offset + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(long hash, long address) throws IOException {
+        if ((this.entryCount + 1) * 4 > (this.indexMask + 1L) * 3 && this.indexMask + 1 < MAXIMUM_INDEX_SLOTS) {
+            resizeIndex();
+        }
+        int slot = (int) hash & this.indexMask;
+        while (addressAt(slot) != 0L) {
+            slot = (slot + 1) & this.indexMask;
+        }
+        this.index.putLong(slotPosition(slot), hash);
+        this.index.putLong(slotPosition(slot) + 8, address);
+        this.entryCount++;
+    }
+
+    private void resizeIndex() throws IOException {
+        MappedByteBuffer old = this.index;
+        int oldSlots = this.indexMask + 1;
+        this.index = createIndex(oldSlots * 2);
+        this.indexMask = oldSlots * 2 - 1;
+        for (int i = 0; i < oldSlots; i++) {
+            long address = old.getLong(INDEX_HEADER_SIZE + i * INDEX_SLOT_SIZE + 8);
+            if (address != 0L) {
+                long hash = old.getLong(INDEX_HEADER_SIZE + i * INDEX_SLOT_SIZE);
+                int slot = (int) hash & this.indexMask;
+                while (addressAt(slot) != 0L) {
+                    slot = (slot + 1) & this.indexMask;
+                }
+                this.index.putLong(slotPosition(slot), hash);
+                this.index.putLong(slotPosition(slot) + 8, address);
+            }
+        }
+    }
+
+    /**
+     * Delete the entry at the given slot, shifting back the entries of the
+     * probe sequence behind it.
+     */
+    private void removeAt(int slot) {
+        long address = addressAt(slot);
+        segmentOf(address).liveBytes -= recordSizeAt(address);
+        this.entryCount--;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & this.indexMask;
+            long nextAddress = addressAt(next);
+            if (nextAddress == 0L) {
+                break;
+            }
+            long nextHash = this.index.getLong(slotPosition(next));
+            int home = (int) nextHash & this.indexMask;
+            // leave the entry if its home lies cyclically within (hole, next]
+            boolean stays = (hole <= next ? (hole < home && home <= next) : (hole < home || home <= next));
+            if (!stays) {
+                this.index.putLong(slotPosition(hole), nextHash);
+                this.index.putLong(slotPosition(hole) + 8, nextAddress);
+                hole = next;
+            }
+        }
+        this.index.putLong(slotPosition(hole) + 8, 0L);
+    }
+
+    private long addressAt(int slot) {
+        return this.index.getLong(slotPosition(slot) + 8);
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER_SIZE + slot * INDEX_SLOT_SIZE;
+    }
+
+
+    /**
+     * A segment file, mapped as a whole.
+     */
+    private static final class LogSegment {
+
+        final long sequence;
+
+        final File file;
+
+        final MappedByteBuffer buffer;
+
+        /**
+         * The offset past the last record.
+         */
+        int end;
+
+        /**
+         * The number of bytes of the records the index points to.
+         */
+        long liveBytes;
+
+        final AtomicInteger leases = new AtomicInteger();
+
+        /**
+         * Whether the segment has left the log, to be deleted once no longer leased.
+         */
+        volatile boolean retired;
+
+        LogSegment(long sequence, File file, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package io.geewit.cache.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CacheManager} implementation that lazily opens {@link DiskCache}
+ * instances for each {@link #getCache} request, each in a subdirectory of
+ * the given directory named after the cache; meant as a delegate of a
+ * {@link CompositeCacheManager} between the in-memory tiers and a remote
+ * tier, so that entries outlive a restart.
+ *
+ * <p>It creates caches for any requested name unless a static set of names
+ * is specified through {@link #setCacheNames}. The caches are compacted
+ * periodically, and closed cleanly on {@link #destroy()}, which spares their
+ * next open a rebuild of the index.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see DiskCache
+ */
+public class DiskCacheManager implements CacheManager, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(DiskCacheManager.class);
+
+    private final File directory;
+
+    private final ConcurrentMap<String, Cache> cacheMap = new ConcurrentHashMap<>(16);
+
+    private boolean dynamic = true;
+
+    private boolean allowNullValues = true;
+
+    private long capacity = 1024L * 1024 * 1024;
+
+    private final Map<String, Long> capacityByCacheName = new HashMap<>();
+
+    private int segmentSize = 16 * 1024 * 1024;
+
+    private double compactionThreshold = 0.5;
+
+    private ValueCodecs valueCodecs = ValueCodecs.getSharedInstance();
+
+    @Nullable
+    private Duration compactionInterval = Duration.ofMinutes(1);
+
+    @Nullable
+    private ScheduledExecutorService compactionScheduler;
+
+    @Nullable
+    private ScheduledExecutorService internalScheduler;
+
+    @Nullable
+    private ScheduledFuture<?> compaction;
+
+
+    /**
+     * Create a new DiskCacheManager keeping its caches in the given directory.
+     * @param directory the parent directory of the cache directories, created
+     * if missing
+     */
+    public DiskCacheManager(File directory) {
+        Assert.notNull(directory, "Directory must not be null");
+        this.directory = directory;
+    }
+
+
+    /**
+     * Specify the set of cache names for this CacheManager's 'static' mode.
+     * <p>The number of caches and their names will be fixed after a call to this method,
+     * with no creation of further cache regions at runtime.
+     * <p>Calling this with a {@code null} collection argument resets the
+     * mode to 'dynamic', allowing for further creation of caches again.
+     */
+    public void setCacheNames(@Nullable Collection<String> cacheNames) {
+        if (cacheNames != null) {
+            for (String name : cacheNames) {
+                this.cacheMap.computeIfAbsent(name, this::createDiskCache);
+            }
+            this.dynamic = false;
+        } else {
+            this.dynamic = true;
+        }
+    }
+
+    /**
+     * Specify whether to accept and convert {@code null} values for all caches
+     * in this cache manager. Default is "true".
+     */
+    public void setAllowNullValues(boolean allowNullValues) {
+        if (allowNullValues != this.allowNullValues) {
+            this.allowNullValues = allowNullValues;
+            // Need to recreate all Cache instances with the new null-value configuration...
+            recreateCaches();
+        }
+    }
+
+    /**
+     * Return whether this cache manager accepts and converts {@code null} values
+     * for all of its caches.
+     */
+    public boolean isAllowNullValues() {
+        return this.allowNullValues;
+    }
+
+    /**
+     * Specify the number of bytes of the segment files of each cache, in
+     * addition to its index. Default is 1 GB.
+     */
+    public void setCapacity(long capacity) {
+        Assert.isTrue(capacity > 0, "capacity must be positive");
+        if (capacity != this.capacity) {
+            this.capacity = capacity;
+            recreateCaches();
+        }
+    }
+
+    /**
+     * Specify the capacity of individual caches, overriding
+     * {@link #setCapacity} for the given cache names.
+     */
+    public void setCapacityByCacheName(Map<String, Long> capacityByCacheName) {
+        for (Long capacity : capacityByCacheName.values()) {
+            Assert.isTrue(capacity != null && capacity > 0, "capacity must be positive");
+        }
+        this.capacityByCacheName.clear();
+        this.capacityByCacheName.putAll(capacityByCacheName);
+        recreateCaches();
+    }
+
+    /**
+     * Return the capacity of the cache of the given name.
+     */
+    public long getCapacity(String name) {
+        return this.capacityByCacheName.getOrDefault(name, this.capacity);
+    }
+
+    /**
+     * Specify the size of the segment files, which is also the maximum size of
+     * an entry. Default is 16 MB.
+     */
+    public void setSegmentSize(int segmentSize) {
+        Assert.isTrue(segmentSize > 0, "segmentSize must be positive");
+        if (segmentSize != this.segmentSize) {
+            this.segmentSize = segmentSize;
+            recreateCaches();
+        }
+    }
+
+    /**
+     * Specify the largest share of live bytes of the segments compaction
+     * rewrites. Default is {@code 0.5}.
+     * @see DiskCache#setCompactionThreshold
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        Assert.isTrue(compactionThreshold >= 0 && compactionThreshold <= 1, "compactionThreshold must be between 0 and 1");
+        this.compactionThreshold = compactionThreshold;
+        for (Cache cache : this.cacheMap.values()) {
+            if (cache instanceof DiskCache) {
+                ((DiskCache) cache).setCompactionThreshold(compactionThreshold);
+            }
+        }
+    }
+
+    /**
+     * Specify the codecs encoding the values of all caches, each cache taking
+     * those {@link ValueCodecs#forCache for its name}. Default is the
+     * {@link ValueCodecs#getSharedInstance() shared instance}; sharing one
+     * instance with the other byte-oriented tiers of a {@link CompositeCache}
+     * lets it encode each value once for all of them. Codecs compressing
+     * values must keep their dictionaries in a
+     * {@link DictionaryCompressionConfig#setDictionaryDirectory dictionary directory},
+     * for the values to decode after a restart.
+     * @see DiskCache#setValueCodecs
+     */
+    public void setValueCodecs(ValueCodecs valueCodecs) {
+        Assert.notNull(valueCodecs, "ValueCodecs must not be null");
+        Assert.isTrue(valueCodecs.isPersistent(),
+                "ValueCodecs compressing values must keep their dictionaries in a dictionary directory");
+        this.valueCodecs = valueCodecs;
+        for (Cache cache : this.cacheMap.values()) {
+            if (cache instanceof DiskCache) {
+                ((DiskCache) cache).setValueCodecs(valueCodecs.forCache(cache.getName()));
+            }
+        }
+    }
+
+    /**
+     * Specify the delay between two compactions of all caches, or {@code null}
+     * to leave compaction to the application. Default is one minute.
+     * @see DiskCache#compact()
+     */
+    public void setCompactionInterval(@Nullable Duration compactionInterval) {
+        Assert.isTrue(compactionInterval == null || !compactionInterval.isNegative() && !compactionInterval.isZero(),
+                "compactionInterval must be positive");
+        this.compactionInterval = compactionInterval;
+    }
+
+    /**
+     * Specify the scheduler compacting the caches. By default, a single daemon
+     * thread is started with the first cache and shut down by {@link #destroy()}.
+     */
+    public void setCompactionScheduler(@Nullable ScheduledExecutorService compactionScheduler) {
+        this.compactionScheduler = compactionScheduler;
+    }
+
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return Collections.unmodifiableSet(this.cacheMap.keySet());
+    }
+
+    @Override
+    @Nullable
+    public Cache getCache(String name) {
+        Cache cache = this.cacheMap.get(name);
+        if (cache == null && this.dynamic) {
+            cache = this.cacheMap.computeIfAbsent(name, this::createDiskCache);
+        }
+        return cache;
+    }
+
+    /**
+     * Stop compacting and close all caches.
+     */
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            if (this.compaction != null) {
+                this.compaction.cancel(false);
+                this.compaction = null;
+            }
+            if (this.internalScheduler != null) {
+                this.internalScheduler.shutdown();
+                this.internalScheduler = null;
+            }
+        }
+        for (Cache cache : this.cacheMap.values()) {
+            close(cache);
+        }
+    }
+
+    private void recreateCaches() {
+        for (Map.Entry<String, Cache> entry : this.cacheMap.entrySet()) {
+            // the directory stays locked until the previous cache is closed
+            close(entry.getValue());
+            entry.setValue(createDiskCache(entry.getKey()));
+        }
+    }
+
+    private void close(Cache cache) {
+        if (cache instanceof DiskCache) {
+            try {
+                ((DiskCache) cache).close();
+            } catch (IOException | RuntimeException ex) {
+                logger.warn("Failed to close " + cache, ex);
+            }
+        }
+    }
+
+    private void compactCaches() {
+        for (Cache cache : this.cacheMap.values()) {
+            if (cache instanceof DiskCache) {
+                try {
+                    ((DiskCache) cache).compact();
+                } catch (RuntimeException ex) {
+                    logger.warn("Failed to compact " + cache, ex);
+                }
+            }
+        }
+    }
+
+    private synchronized void startCompaction() {
+        if (this.compaction != null || this.compactionInterval == null) {
+            return;
+        }
+        ScheduledExecutorService scheduler = this.compactionScheduler;
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "disk-cache-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.internalScheduler = scheduler;
+        }
+        long interval = this.compactionInterval.toMillis();
+        this.compaction = scheduler.scheduleWithFixedDelay(this::compactCaches, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the directory of the cache of the given name.
+     */
+    protected File getCacheDirectory(String name) {
+        try {
+            return new File(this.directory, URLEncoder.encode(name, "UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Create a new DiskCache instance for the specified cache name.
+     * @param name the name of the cache
+     * @return the DiskCache (or a subclass thereof)
+     */
+    protected Cache createDiskCache(String name) {
+        long capacity = getCapacity(name);
+        int segmentSize = (int) Math.min(this.segmentSize, capacity / 2);
+        DiskCache cache = new DiskCache(name, getCacheDirectory(name), capacity, segmentSize, isAllowNullValues());
+        cache.setCompactionThreshold(this.compactionThreshold);
+        cache.setValueCodecs(this.valueCodecs.forCache(name));
+        startCompaction();
+        return cache;
+    }
+}
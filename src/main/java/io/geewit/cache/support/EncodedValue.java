@@ -0,0 +1,61 @@
+package io.geewit.cache.support;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * A store value being written to the tiers of a {@link CompositeCache},
+ * encoded on first demand of an {@link EncodingCache} tier and then handed as
+ * the same bytes to every further tier using the same {@link ValueCodecs}.
+ *
+ * <p>A failure to encode is remembered as well, so that it is not retried per
+ * tier. Not thread-safe: an instance serves one write, on one thread.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+final class EncodedValue {
+
+    private final Object storeValue;
+
+    @Nullable
+    private ValueCodecs valueCodecs;
+
+    @Nullable
+    private byte[] bytes;
+
+    @Nullable
+    private RuntimeException failure;
+
+
+    EncodedValue(Object storeValue) {
+        this.storeValue = storeValue;
+    }
+
+
+    Object getStoreValue() {
+        return this.storeValue;
+    }
+
+    /**
+     * Return the bytes of the store value as encoded by the given codecs.
+     * @throws RuntimeException if the store value cannot be encoded
+     */
+    byte[] encode(ValueCodecs valueCodecs) {
+        if (valueCodecs != this.valueCodecs) {
+            if (this.valueCodecs != null) {
+                // tiers with codecs of their own are encoded each time
+                return valueCodecs.encode(this.storeValue);
+            }
+            this.valueCodecs = valueCodecs;
+            try {
+                this.bytes = valueCodecs.encode(this.storeValue);
+            } catch (RuntimeException ex) {
+                this.failure = ex;
+            }
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+        return this.bytes;
+    }
+}
@@ -0,0 +1,29 @@
+package io.geewit.cache.support;
+
+/**
+ * Optional interface for delegate caches that store their values as bytes
+ * encoded by {@link ValueCodecs}, such as {@link OffHeapCache} and
+ * {@link DiskCache}.
+ *
+ * <p>Used by {@link CompositeCache} to encode a value once for all such tiers
+ * sharing the same codecs when it is put or backfilled, instead of once per
+ * tier.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public interface EncodingCache {
+
+    /**
+     * Return the codecs the values of this cache are encoded with.
+     */
+    ValueCodecs getValueCodecs();
+
+    /**
+     * Associate the given encoded store value with the given key.
+     * @param key the key with which the value is to be associated
+     * @param encodedValue the store value, as encoded by {@link #getValueCodecs()}
+     */
+    void putEncoded(Object key, byte[] encodedValue);
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Modified by geewit: lock-free atomic table, exclusive increments and
+ * ranking of keys by frequency.
+ */
+package io.geewit.cache.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Probabilistic, lock-free estimate of how often keys have been seen recently.
+ *
+ * <p>A count-min sketch with a depth of four and 4-bit counters, packed sixteen
+ * to a {@code long}, so that all four counters of a key live in one word per
+ * row. The table holds one {@code long} per expected key, i.e. eight bytes per
+ * tracked key. Counters saturate at 15 and are periodically halved (aged) once
+ * ten times the expected number of keys have been recorded, so that the
+ * estimate follows the recent popularity of keys rather than their lifetime
+ * counts.
+ *
+ * <p>Increments and aging use compare-and-set on the individual table words;
+ * concurrent updates may occasionally be lost, which only lowers the accuracy
+ * of an estimate that is approximate by design.
+ *
+ * <p>Derived from the {@code FrequencySketch} of
+ * <a href="https://github.com/ben-manes/caffeine">Caffeine</a> by Ben Manes,
+ * licensed under the Apache License, Version 2.0; see {@code NOTICE}.
+ *
+ * @author Ben Manes
+ * @author geewit
+ * @since 2020-07-22
+ * @see TinyLfuAdmissionPolicy
+ */
+public class FrequencySketch {
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private final AtomicLongArray table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+
+    /**
+     * Create a sketch for roughly the given number of distinct keys.
+     * @param expectedSize the number of keys whose frequency should be told apart,
+     * typically the maximum size of the cache the sketch guards
+     */
+    public FrequencySketch(long expectedSize) {
+        int capacity = (int) Math.max(1, Math.min(expectedSize, MAXIMUM_CAPACITY));
+        int tableSize = (capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1);
+        this.table = new AtomicLongArray(tableSize);
+        this.tableMask = tableSize - 1;
+        this.sampleSize = (capacity > Integer.MAX_VALUE / 10 ? Integer.MAX_VALUE : 10 * capacity);
+    }
+
+
+    /**
+     * Return the estimated number of occurrences of the given key, up to 15.
+     */
+    public int frequency(Object key) {
+        return frequencyOf(spread(key.hashCode()));
+    }
+
+    /**
+     * Return the estimated number of occurrences of a key with the given
+     * {@link #spread spread} hash, up to 15.
+     */
+    public int frequencyOf(int hash) {
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int offset = (start + i) << 2;
+            int count = (int) ((this.table.get(indexOf(hash, i)) >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an occurrence of the given key, aging all counters when the
+     * sample period is over.
+     */
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && this.size.incrementAndGet() == this.sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Variant of {@link #increment} for a sketch updated by one thread at a
+     * time, e.g. under a lock, which skips the compare-and-set of each word.
+     * Must not be mixed with concurrent calls of {@link #increment}.
+     */
+    void incrementExclusive(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = (start + i) << 2;
+            long mask = 0xfL << offset;
+            long current = this.table.get(index);
+            if ((current & mask) != mask) {
+                this.table.lazySet(index, current + (1L << offset));
+                added = true;
+            }
+        }
+        if (added) {
+            int size = this.size.get() + 1;
+            this.size.lazySet(size);
+            if (size == this.sampleSize) {
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Return the most frequent of the given keys, most frequent first; keys
+     * of equal frequency keep their order.
+     * @param keys the keys to rank
+     * @param limit the maximum number of keys to return
+     */
+    public List<Object> mostFrequent(List<?> keys, int limit) {
+        long[] ranks = new long[keys.size()];
+        for (int i = 0; i < ranks.length; i++) {
+            // ascending order of the rank is descending order of frequency, then ascending position
+            ranks[i] = ((long) (15 - frequency(keys.get(i))) << 32) | i;
+        }
+        Arrays.sort(ranks);
+        int size = Math.min(limit, ranks.length);
+        List<Object> ranked = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ranked.add(keys.get((int) ranks[i]));
+        }
+        return ranked;
+    }
+
+    /**
+     * Mix the bits of the given {@code hashCode}, so that keys whose hash
+     * codes differ only in a few bits still land on unrelated counters.
+     */
+    public static int spread(int hashCode) {
+        int x = ((hashCode >>> 16) ^ hashCode) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        for (;;) {
+            long current = this.table.get(index);
+            if ((current & mask) == mask) {
+                return false;
+            }
+            if (this.table.compareAndSet(index, current, current + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Halve every counter, dropping the remainders.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < this.table.length(); i++) {
+            for (;;) {
+                long current = this.table.get(i);
+                if (this.table.compareAndSet(i, current, (current >>> 1) & RESET_MASK)) {
+                    odd += Long.bitCount(current & ONE_MASK);
+                    break;
+                }
+            }
+        }
+        int truncated = odd >>> 2;
+        this.size.updateAndGet(size -> Math.max(0, size - truncated) >>> 1);
+    }
+
+    private int indexOf(int hash, int depth) {
+        long h = (hash + SEED[depth]) * SEED[depth];
+        h += (h >>> 32);
+        return ((int) h) & this.tableMask;
+    }
+}
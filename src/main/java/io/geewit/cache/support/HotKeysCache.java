@@ -0,0 +1,26 @@
+package io.geewit.cache.support;
+
+import java.util.List;
+
+/**
+ * Optional interface for delegate caches that can tell their hottest keys,
+ * e.g. from the access frequencies their eviction policy records.
+ *
+ * <p>Used by {@link CompositeCacheManager} to choose the keys of the first
+ * tier to keep in a {@link CompositeCacheManager#setSnapshotFile snapshot};
+ * other first tiers are {@link ScannableCache scanned}, or enumerated through
+ * their native {@link java.util.Map}, and ranked by the
+ * {@link TinyLfuAdmissionPolicy admission policy}, if any.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public interface HotKeysCache {
+
+    /**
+     * Return the hottest keys of this cache, hottest first.
+     * @param limit the maximum number of keys to return
+     */
+    List<Object> hottestKeys(int limit);
+
+}
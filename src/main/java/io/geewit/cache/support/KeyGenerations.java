@@ -0,0 +1,101 @@
+package io.geewit.cache.support;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Striped write generations of the keys of a {@link CompositeCache}, telling
+ * a backfill whether its key was written or evicted since the lookup that
+ * found the value started.
+ *
+ * <p>Each stripe holds a generation in its upper bits and the number of writes
+ * in progress in its lower bits. A write adds one writer before touching the
+ * tiers and turns it into a new generation afterwards, so a stamp taken before
+ * reading the tiers stays current only if no write of a key of the same stripe
+ * started since, and is never current while one is running. Keys sharing a
+ * stripe cause spurious mismatches, which merely drop a backfill. Taking and
+ * checking a stamp is a volatile read; there is no locking on any path.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+final class KeyGenerations {
+
+    private static final int STRIPES = 1024;
+
+    private static final long GENERATION = 1L << 20;
+
+    private static final long WRITERS_MASK = GENERATION - 1;
+
+    private final AtomicLongArray stripes = new AtomicLongArray(STRIPES);
+
+
+    /**
+     * Return the current stamp of the given key, to be taken before reading the tiers.
+     */
+    long stamp(Object key) {
+        return this.stripes.get(indexOf(key));
+    }
+
+    /**
+     * Return the current stamps of all keys at once, for keys not known yet.
+     * @see #stamp(long[], Object)
+     */
+    long[] stampAll() {
+        long[] stamps = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i] = this.stripes.get(i);
+        }
+        return stamps;
+    }
+
+    /**
+     * Return the stamp of the given key out of the stamps of all keys.
+     */
+    long stamp(long[] stamps, Object key) {
+        return stamps[indexOf(key)];
+    }
+
+    /**
+     * Return whether the given key has not been written since the given
+     * stamp was taken, nor was being written at the time.
+     */
+    boolean isCurrent(Object key, long stamp) {
+        return (stamp & WRITERS_MASK) == 0 && this.stripes.get(indexOf(key)) == stamp;
+    }
+
+    /**
+     * Mark the start of a write of the given key, before any tier is written.
+     */
+    void beginWrite(Object key) {
+        this.stripes.getAndAdd(indexOf(key), 1L);
+    }
+
+    /**
+     * Mark the end of a write of the given key, after all tiers are written.
+     */
+    void endWrite(Object key) {
+        this.stripes.getAndAdd(indexOf(key), GENERATION - 1L);
+    }
+
+    /**
+     * Mark the start of a write of all keys.
+     */
+    void beginWriteAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes.getAndAdd(i, 1L);
+        }
+    }
+
+    /**
+     * Mark the end of a write of all keys.
+     */
+    void endWriteAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes.getAndAdd(i, GENERATION - 1L);
+        }
+    }
+
+    private static int indexOf(Object key) {
+        return FrequencySketch.spread(key.hashCode()) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,99 @@
+package io.geewit.cache.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of call latencies, used to estimate percentiles of a
+ * tier's read latency.
+ *
+ * <p>Latencies are counted in log-linear buckets: eight buckets per power of
+ * two, so that any reported percentile is at most 12.5% above the true value,
+ * over the whole range of a {@code long} in 512 counters. Recording is two
+ * atomic increments. {@link #decay()} halves all counts, letting percentiles
+ * follow recent latencies when called periodically.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    private final AtomicLong total = new AtomicLong();
+
+
+    /**
+     * Record one call of the given duration.
+     */
+    public void record(long nanos) {
+        this.counts.incrementAndGet(indexOf(Math.max(nanos, 0L)));
+        this.total.incrementAndGet();
+    }
+
+    /**
+     * Return the number of recorded calls, after decay.
+     */
+    public long getCount() {
+        return this.total.get();
+    }
+
+    /**
+     * Return an upper bound of the given percentile of the recorded latencies.
+     * @param percentile the percentile, between {@code 0} and {@code 1}
+     * @return the latency in nanoseconds, or {@code -1} if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long total = this.total.get();
+        if (total <= 0) {
+            return -1L;
+        }
+        long threshold = Math.max(1L, (long) Math.ceil(total * percentile));
+        long seen = 0;
+        for (int i = 0; i < this.counts.length(); i++) {
+            seen += this.counts.get(i);
+            if (seen >= threshold) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(this.counts.length() - 1);
+    }
+
+    /**
+     * Halve all counts.
+     */
+    public void decay() {
+        long removed = 0;
+        for (int i = 0; i < this.counts.length(); i++) {
+            long count = this.counts.get(i);
+            if (count > 0) {
+                long before = this.counts.getAndUpdate(i, value -> value >>> 1);
+                removed += before - (before >>> 1);
+            }
+        }
+        this.total.addAndGet(-removed);
+    }
+
+    private static int indexOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long subBucket = index & (SUB_BUCKETS - 1);
+        long upper = (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+        return (upper > 0 ? upper - 1 : Long.MAX_VALUE);
+    }
+}
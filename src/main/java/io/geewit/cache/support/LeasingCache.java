@@ -0,0 +1,26 @@
+package io.geewit.cache.support;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * Optional interface for delegate caches that can hand out a stored value
+ * without copying it, e.g. straight from memory-mapped files.
+ *
+ * <p>Used by {@link CompositeCache#lease}; only byte array values are
+ * leased, other values being of no use to a caller before deserialization.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public interface LeasingCache {
+
+    /**
+     * Lease the bytes of the byte array value for the given key.
+     * @param key the key whose associated value is to be returned
+     * @return the lease, which the caller must close once done with its buffer,
+     * or {@code null} if the key is absent or its value is not a byte array
+     */
+    @Nullable
+    ValueLease lease(Object key);
+
+}
@@ -0,0 +1,159 @@
+package io.geewit.cache.support;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free table of the tier a key was last placed in, for keys
+ * that are not held by the first tier of a {@link CompositeCache}, so that a
+ * lookup can start at that tier instead of probing the ones above.
+ *
+ * <p>An open-addressed table of {@code long} slots, each packing a 56-bit
+ * fingerprint of a key in its upper bytes and a tier index in its lowest
+ * byte, an empty slot being zero. No key object is retained, so a slot costs
+ * eight bytes. A key is confined to a bucket of eight adjacent slots, chosen
+ * by its hash code; once its bucket is full, a random slot of it is
+ * overwritten, which keeps the table at its capacity. The fingerprint of a
+ * string or long key is hashed from its content rather than its hash code,
+ * so that such keys only share a hint on a fingerprint collision; other keys
+ * share one if their hash codes are equal.
+ *
+ * <p>Hints are advisory: a lost one merely costs the probes it would have
+ * saved, and a wrong one is caught by the caller. If the key is not found
+ * from the hinted tier on, the caller walks the tiers the hint skipped; if it
+ * is, its value is not copied into those of them already holding the key.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see CompositeCache#setLocationHintCapacity
+ */
+final class LocationHints {
+
+    private static final int BUCKET_SIZE = 8;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private static final long TIER_MASK = 0xffL;
+
+    private final AtomicLongArray slots;
+
+    private final int bucketMask;
+
+
+    LocationHints(int capacity) {
+        int size = Math.max(BUCKET_SIZE, Integer.highestOneBit(Math.min(capacity - 1, MAXIMUM_CAPACITY - 1)) << 1);
+        this.slots = new AtomicLongArray(size);
+        this.bucketMask = size - BUCKET_SIZE;
+    }
+
+
+    /**
+     * Return the index of the tier the given key was last placed in, or
+     * {@code 0} if there is no hint for it.
+     */
+    int get(Object key) {
+        int hash = FrequencySketch.spread(key.hashCode());
+        long fingerprint = fingerprint(key);
+        int bucket = hash & this.bucketMask;
+        for (int i = bucket; i < bucket + BUCKET_SIZE; i++) {
+            long slot = this.slots.get(i);
+            if ((slot & ~TIER_MASK) == fingerprint) {
+                return (int) (slot & TIER_MASK);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Record that the nearest tier holding the given key is the one at the
+     * given index; an index of {@code 0} drops the hint.
+     */
+    void set(Object key, int tierIndex) {
+        if (tierIndex <= 0) {
+            remove(key);
+            return;
+        }
+        int hash = FrequencySketch.spread(key.hashCode());
+        long fingerprint = fingerprint(key);
+        long hint = fingerprint | Math.min(tierIndex, TIER_MASK);
+        int bucket = hash & this.bucketMask;
+        while (true) {
+            int free = -1;
+            for (int i = bucket; i < bucket + BUCKET_SIZE; i++) {
+                long slot = this.slots.get(i);
+                if ((slot & ~TIER_MASK) == fingerprint) {
+                    this.slots.set(i, hint);
+                    return;
+                }
+                if (slot == 0L && free < 0) {
+                    free = i;
+                }
+            }
+            if (free < 0) {
+                this.slots.set(bucket + ThreadLocalRandom.current().nextInt(BUCKET_SIZE), hint);
+                return;
+            }
+            if (this.slots.compareAndSet(free, 0L, hint)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop the hint for the given key, if any.
+     */
+    void remove(Object key) {
+        int hash = FrequencySketch.spread(key.hashCode());
+        long fingerprint = fingerprint(key);
+        int bucket = hash & this.bucketMask;
+        for (int i = bucket; i < bucket + BUCKET_SIZE; i++) {
+            long slot = this.slots.get(i);
+            if ((slot & ~TIER_MASK) == fingerprint) {
+                // a concurrent set of the same key may have claimed another free slot too
+                this.slots.compareAndSet(i, slot, 0L);
+            }
+        }
+    }
+
+    /**
+     * Drop all hints.
+     */
+    void clear() {
+        for (int i = 0; i < this.slots.length(); i++) {
+            this.slots.set(i, 0L);
+        }
+    }
+
+    /**
+     * Return the number of slots.
+     */
+    int capacity() {
+        return this.slots.length();
+    }
+
+    /**
+     * Return the fingerprint of the given key in the upper 56 bits of a long,
+     * never zero.
+     */
+    private static long fingerprint(Object key) {
+        long hash;
+        if (key instanceof String) {
+            // FNV-1a over the chars
+            String string = (String) key;
+            hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < string.length(); i++) {
+                hash = (hash ^ string.charAt(i)) * 0x100000001b3L;
+            }
+        } else if (key instanceof Long) {
+            hash = (Long) key;
+        } else {
+            hash = key.hashCode();
+        }
+        // the finalizer of MurmurHash3
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        long fingerprint = hash & ~TIER_MASK;
+        return (fingerprint != 0L ? fingerprint : TIER_MASK + 1);
+    }
+}
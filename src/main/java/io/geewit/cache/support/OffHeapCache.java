@@ -0,0 +1,875 @@
+package io.geewit.cache.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link org.springframework.cache.Cache} storing serialized entries in
+ * direct memory, meant as a tier between a small on-heap first tier and a
+ * remote tier of a {@link CompositeCache}, so that a large working set does
+ * not weigh on the garbage collector.
+ *
+ * <p>The cache is split into segments by key hash, one per 64 slabs but at
+ * least one per processor as far as the slabs go, each with its own
+ * read-write lock, its own share of the capacity and its own memory:
+ * <ul>
+ * <li>Entries are written as {@code [hash][key length][value length][key][value]}
+ * into chunks of direct {@link ByteBuffer} slabs. As in memcached, each slab is
+ * cut into chunks of one size class, the classes growing by a factor of 1.25
+ * from 64 bytes up to the slab size; an entry takes a chunk of the smallest
+ * class it fits in, and entries larger than a slab are not cached.</li>
+ * <li>The index is an open-addressed hash table in direct memory, sixteen bytes
+ * per slot holding the key hash and the address of the chunk, with linear
+ * probing and backward-shift deletion. It doubles beyond a load of 75%.</li>
+ * <li>Once a segment has used its share of the capacity, a new entry takes
+ * the place of an entry of its size class chosen by the CLOCK algorithm, reads
+ * setting the reference bit of a chunk. If its size class has no slab yet, a
+ * slab of the class holding the most slabs is emptied and handed over.</li>
+ * </ul>
+ *
+ * <p>On the heap remain one small object and two bitmaps per slab. Keys are
+ * compared by their {@link Serialization serialized} form, values are
+ * encoded by {@link ValueCodecs} and decoded on every hit. Direct memory is
+ * released with the cache, once it is garbage collected; it counts against
+ * {@code -XX:MaxDirectMemorySize}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see OffHeapCacheManager
+ */
+public class OffHeapCache extends AbstractValueAdaptingCache implements EncodingCache {
+
+    private static final Log logger = LogFactory.getLog(OffHeapCache.class);
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int MINIMUM_CHUNK_SIZE = 64;
+
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private static final int INDEX_SLOT_SIZE = 16;
+
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    private static final int MAXIMUM_SEGMENTS = 64;
+
+    /**
+     * Slabs a segment should have, so that its size classes can share them
+     * without taking slabs from each other on every put. A cache of few slabs
+     * still gets a segment per processor, down to one slab each.
+     */
+    private static final int MINIMUM_SLABS_PER_SEGMENT = 64;
+
+    private final String name;
+
+    private final long capacity;
+
+    private final int slabSize;
+
+    private final int[] chunkSizes;
+
+    private final Segment[] segments;
+
+    private final int segmentShift;
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder rejections = new LongAdder();
+
+    private final LongAdder slabReassignments = new LongAdder();
+
+    /**
+     * Loads currently running through {@link #get(Object, Callable)}, one per key.
+     */
+    private final ConcurrentMap<Object, CompletableFuture<Object>> loadsInFlight = new ConcurrentHashMap<>();
+
+    private volatile ValueCodecs valueCodecs = ValueCodecs.getSharedInstance();
+
+
+    /**
+     * Create a new OffHeapCache with the specified name and capacity.
+     * @param name the name of the cache
+     * @param capacity the number of bytes of direct memory for the entries,
+     * not counting the index
+     * @param slabSize the size of each slab, which is also the maximum size of
+     * an entry including its key and a 16-byte header
+     * @param allowNullValues whether to accept and convert {@code null} values for this cache
+     */
+    public OffHeapCache(String name, long capacity, int slabSize, boolean allowNullValues) {
+        super(allowNullValues);
+        Assert.notNull(name, "Name must not be null");
+        Assert.isTrue(slabSize >= MINIMUM_CHUNK_SIZE, "slabSize must be at least " + MINIMUM_CHUNK_SIZE);
+        Assert.isTrue(capacity >= slabSize, "capacity must be at least one slab");
+        this.name = name;
+        this.capacity = capacity;
+        this.slabSize = slabSize;
+        this.chunkSizes = chunkSizes(slabSize);
+        long slabs = capacity / slabSize;
+        long concurrency = Math.max(slabs / MINIMUM_SLABS_PER_SEGMENT, Runtime.getRuntime().availableProcessors());
+        int segmentCount = (int) Long.highestOneBit(Math.min(Math.min(concurrency, slabs), MAXIMUM_SEGMENTS));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment(slabs / segmentCount);
+        }
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+    }
+
+    private static int[] chunkSizes(int slabSize) {
+        List<Integer> sizes = new ArrayList<>();
+        int size = MINIMUM_CHUNK_SIZE;
+        while (size < slabSize / 2) {
+            sizes.add(size);
+            size = (int) Math.min(Math.ceil(size * GROWTH_FACTOR / 8) * 8, slabSize);
+        }
+        sizes.add(slabSize);
+        int[] chunkSizes = new int[sizes.size()];
+        for (int i = 0; i < chunkSizes.length; i++) {
+            chunkSizes[i] = sizes.get(i);
+        }
+        return chunkSizes;
+    }
+
+
+    @Override
+    public final String getName() {
+        return this.name;
+    }
+
+    @Override
+    public final Object getNativeCache() {
+        return this;
+    }
+
+    @Override
+    @Nullable
+    public Object lookup(Object key) {
+        byte[] keyBytes = Serialization.serializeKey(key);
+        long hash = Serialization.hash(keyBytes);
+        byte[] valueBytes = segmentFor(hash).get(hash, keyBytes);
+        return (valueBytes != null ? decode(key, valueBytes) : null);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        Object storeValue = lookup(key);
+        if (storeValue != null) {
+            return (T) fromStoreValue(storeValue);
+        }
+        // one load per key, so that a slow loader holds up neither the segment nor other keys
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = this.loadsInFlight.putIfAbsent(key, future);
+        if (inFlight != null) {
+            try {
+                return (T) inFlight.join();
+            } catch (CompletionException ex) {
+                throw new ValueRetrievalException(key, valueLoader, ex.getCause());
+            }
+        }
+        try {
+            byte[] keyBytes = Serialization.serializeKey(key);
+            long hash = Serialization.hash(keyBytes);
+            Segment segment = segmentFor(hash);
+            // a load for this key may have finished between our miss and claiming the key
+            byte[] valueBytes = segment.get(hash, keyBytes);
+            storeValue = (valueBytes != null ? decode(key, valueBytes) : null);
+            T value;
+            if (storeValue != null) {
+                value = (T) fromStoreValue(storeValue);
+            } else {
+                value = valueLoader.call();
+                segment.put(hash, keyBytes, this.valueCodecs.encode(toStoreValue(value)));
+            }
+            future.complete(value);
+            return value;
+        } catch (Throwable ex) {
+            future.completeExceptionally(ex);
+            throw new ValueRetrievalException(key, valueLoader, ex);
+        } finally {
+            this.loadsInFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Decode the given value of the given key. A value that does not decode,
+     * such as one compressed with a dictionary dropped since, is evicted and
+     * read as a miss rather than as a failure of the cache; at worst a value
+     * written in the meantime goes with it.
+     * @return the store value, or {@code null} if evicted
+     */
+    @Nullable
+    private Object decode(Object key, byte[] valueBytes) {
+        try {
+            return this.valueCodecs.decode(valueBytes);
+        } catch (IllegalArgumentException ex) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Evicting undecodable value of key '" + key + "' from " + this, ex);
+            }
+            evictIfPresent(key);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(Object key, @Nullable Object value) {
+        byte[] keyBytes = Serialization.serializeKey(key);
+        long hash = Serialization.hash(keyBytes);
+        segmentFor(hash).put(hash, keyBytes, this.valueCodecs.encode(toStoreValue(value)));
+    }
+
+    @Override
+    public void putEncoded(Object key, byte[] encodedValue) {
+        byte[] keyBytes = Serialization.serializeKey(key);
+        long hash = Serialization.hash(keyBytes);
+        segmentFor(hash).put(hash, keyBytes, encodedValue);
+    }
+
+    @Override
+    public void evict(Object key) {
+        evictIfPresent(key);
+    }
+
+    @Override
+    public boolean evictIfPresent(Object key) {
+        byte[] keyBytes = Serialization.serializeKey(key);
+        long hash = Serialization.hash(keyBytes);
+        return segmentFor(hash).remove(hash, keyBytes);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public boolean invalidate() {
+        boolean notEmpty = getEntryCount() > 0;
+        clear();
+        return notEmpty;
+    }
+
+    private Segment segmentFor(long hash) {
+        return (this.segments.length == 1 ? this.segments[0] : this.segments[(int) (hash >>> this.segmentShift)]);
+    }
+
+
+    /**
+     * Specify the codecs encoding the values of this cache. Default is the
+     * {@link ValueCodecs#getSharedInstance() shared instance}.
+     */
+    public void setValueCodecs(ValueCodecs valueCodecs) {
+        Assert.notNull(valueCodecs, "ValueCodecs must not be null");
+        this.valueCodecs = valueCodecs;
+    }
+
+    @Override
+    public ValueCodecs getValueCodecs() {
+        return this.valueCodecs;
+    }
+
+    /**
+     * Return the number of bytes of direct memory the entries may take.
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Return the number of segments the cache is split into.
+     */
+    public int getSegmentCount() {
+        return this.segments.length;
+    }
+
+    /**
+     * Return the number of entries.
+     */
+    public long getEntryCount() {
+        long count = 0;
+        for (Segment segment : this.segments) {
+            count += segment.read(s -> s.entryCount);
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of bytes of direct memory allocated to slabs so far.
+     */
+    public long getAllocatedBytes() {
+        long slabs = 0;
+        for (Segment segment : this.segments) {
+            slabs += segment.read(s -> s.slabs.size());
+        }
+        return slabs * this.slabSize;
+    }
+
+    /**
+     * Return the number of bytes of the chunks holding entries.
+     */
+    public long getUsedChunkBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            bytes += segment.read(s -> s.usedChunkBytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the number of bytes of the entries themselves, headers included.
+     */
+    public long getEntryBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            bytes += segment.read(s -> s.entryBytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the number of bytes of direct memory taken by the index.
+     */
+    public long getIndexBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            bytes += segment.read(s -> (long) s.index.capacity());
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the share of the used chunk bytes that the entries leave
+     * unused, from {@code 0} to {@code 1}; the internal fragmentation of the
+     * size classes.
+     */
+    public double getFragmentation() {
+        long used = getUsedChunkBytes();
+        return (used > 0 ? 1.0 - (double) getEntryBytes() / used : 0.0);
+    }
+
+    /**
+     * Return the share of the allocated bytes that are in free chunks, from
+     * {@code 0} to {@code 1}.
+     */
+    public double getFreeRatio() {
+        long allocated = getAllocatedBytes();
+        return (allocated > 0 ? 1.0 - (double) getUsedChunkBytes() / allocated : 0.0);
+    }
+
+    /**
+     * Return the number of entries evicted to make room for others.
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Return the number of puts skipped because the entry was larger than a slab.
+     */
+    public long getRejectionCount() {
+        return this.rejections.sum();
+    }
+
+    /**
+     * Return the number of slabs handed over from one size class to another.
+     */
+    public long getSlabReassignmentCount() {
+        return this.slabReassignments.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapCache '" + this.name + "' (entries=" + getEntryCount() + ", allocated=" +
+                getAllocatedBytes() + "/" + this.capacity + ", fragmentation=" +
+                String.format("%.3f", getFragmentation()) + ")";
+    }
+
+
+    /**
+     * A slab of direct memory cut into chunks of one size class.
+     */
+    private static final class Slab {
+
+        final int id;
+
+        final ByteBuffer buffer;
+
+        int sizeClass;
+
+        int chunkSize;
+
+        int chunkCount;
+
+        long[] used;
+
+        /**
+         * CLOCK reference bits, set by readers under the read lock, hence
+         * atomically, and cleared under the write lock.
+         */
+        AtomicLongArray referenced;
+
+        int usedCount;
+
+        Slab(int id, int slabSize) {
+            this.id = id;
+            this.buffer = ByteBuffer.allocateDirect(slabSize);
+        }
+
+        void assign(int sizeClass, int chunkSize) {
+            this.sizeClass = sizeClass;
+            this.chunkSize = chunkSize;
+            this.chunkCount = this.buffer.capacity() / chunkSize;
+            this.used = new long[(this.chunkCount + 63) >>> 6];
+            this.referenced = new AtomicLongArray(this.used.length);
+            this.usedCount = 0;
+        }
+
+        boolean isUsed(int chunk) {
+            return (this.used[chunk >>> 6] & (1L << chunk)) != 0;
+        }
+
+        int allocate() {
+            for (int word = 0; word < this.used.length; word++) {
+                long free = ~this.used[word];
+                if (free != 0) {
+                    int chunk = (word << 6) + Long.numberOfTrailingZeros(free);
+                    if (chunk >= this.chunkCount) {
+                        return -1;
+                    }
+                    this.used[word] |= 1L << chunk;
+                    this.referenced.set(word, this.referenced.get(word) & ~(1L << chunk));
+                    this.usedCount++;
+                    return chunk;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Set the reference bit of the given chunk; safe under the read lock.
+         */
+        void reference(int chunk) {
+            int word = chunk >>> 6;
+            long bit = 1L << chunk;
+            long bits;
+            do {
+                bits = this.referenced.get(word);
+                if ((bits & bit) != 0) {
+                    return;
+                }
+            } while (!this.referenced.compareAndSet(word, bits, bits | bit));
+        }
+
+        /**
+         * Clear the reference bit of the given chunk, returning whether it was
+         * set; to be called under the write lock.
+         */
+        boolean clearReference(int chunk) {
+            int word = chunk >>> 6;
+            long bit = 1L << chunk;
+            long bits = this.referenced.get(word);
+            if ((bits & bit) == 0) {
+                return false;
+            }
+            this.referenced.set(word, bits & ~bit);
+            return true;
+        }
+
+        void free(int chunk) {
+            this.used[chunk >>> 6] &= ~(1L << chunk);
+            this.usedCount--;
+        }
+    }
+
+
+    /**
+     * The slabs of one size class, and the CLOCK hand sweeping them.
+     */
+    private static final class SizeClass {
+
+        final List<Slab> slabs = new ArrayList<>();
+
+        int clockSlab;
+
+        int clockChunk;
+    }
+
+
+    @FunctionalInterface
+    private interface Reader {
+
+        long read(Segment segment);
+    }
+
+
+    /**
+     * One share of the cache: its slabs, size classes and index.
+     */
+    private final class Segment {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private final long maximumSlabs;
+
+        private final List<Slab> slabs = new ArrayList<>();
+
+        private final SizeClass[] sizeClasses;
+
+        private ByteBuffer index;
+
+        private int indexMask;
+
+        private long entryCount;
+
+        private long usedChunkBytes;
+
+        private long entryBytes;
+
+        Segment(long maximumSlabs) {
+            this.maximumSlabs = Math.max(1L, maximumSlabs);
+            this.sizeClasses = new SizeClass[chunkSizes.length];
+            for (int i = 0; i < this.sizeClasses.length; i++) {
+                this.sizeClasses[i] = new SizeClass();
+            }
+            this.index = ByteBuffer.allocateDirect(INITIAL_INDEX_CAPACITY * INDEX_SLOT_SIZE);
+            this.indexMask = INITIAL_INDEX_CAPACITY - 1;
+        }
+
+        long read(Reader reader) {
+            this.lock.readLock().lock();
+            try {
+                return reader.read(this);
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        @Nullable
+        byte[] get(long hash, byte[] keyBytes) {
+            this.lock.readLock().lock();
+            try {
+                int slot = find(hash, keyBytes);
+                if (slot < 0) {
+                    return null;
+                }
+                long address = this.index.getLong(slot * INDEX_SLOT_SIZE + 8);
+                Slab slab = slabOf(address);
+                int chunk = chunkOf(address);
+                slab.reference(chunk);
+                int offset = chunk * slab.chunkSize;
+                int keyLength = slab.buffer.getInt(offset + 8);
+                byte[] valueBytes = new byte[slab.buffer.getInt(offset + 12)];
+                ByteBuffer view = slab.buffer.duplicate();
+                view.position(offset + HEADER_SIZE + keyLength);
+                view.get(valueBytes);
+                return valueBytes;
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        void put(long hash, byte[] keyBytes, byte[] valueBytes) {
+            int entrySize = HEADER_SIZE + keyBytes.length + valueBytes.length;
+            int sizeClass = sizeClassOf(entrySize);
+            this.lock.writeLock().lock();
+            try {
+                int slot = find(hash, keyBytes);
+                if (slot >= 0) {
+                    removeAt(slot);
+                }
+                if (sizeClass < 0) {
+                    rejections.increment();
+                    return;
+                }
+                long address = allocate(sizeClass);
+                Slab slab = slabOf(address);
+                int offset = chunkOf(address) * slab.chunkSize;
+                slab.buffer.putLong(offset, hash);
+                slab.buffer.putInt(offset + 8, keyBytes.length);
+                slab.buffer.putInt(offset + 12, valueBytes.length);
+                ByteBuffer view = slab.buffer.duplicate();
+                view.position(offset + HEADER_SIZE);
+                view.put(keyBytes);
+                view.put(valueBytes);
+                insert(hash, address);
+                this.entryCount++;
+                this.usedChunkBytes += slab.chunkSize;
+                this.entryBytes += entrySize;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+
+        boolean remove(long hash, byte[] keyBytes) {
+            this.lock.writeLock().lock();
+            try {
+                int slot = find(hash, keyBytes);
+                if (slot < 0) {
+                    return false;
+                }
+                removeAt(slot);
+                return true;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+
+        void clear() {
+            this.lock.writeLock().lock();
+            try {
+                for (int i = 0; i <= this.indexMask; i++) {
+                    this.index.putLong(i * INDEX_SLOT_SIZE + 8, 0L);
+                }
+                for (Slab slab : this.slabs) {
+                    slab.assign(slab.sizeClass, slab.chunkSize);
+                }
+                this.entryCount = 0;
+                this.usedChunkBytes = 0;
+                this.entryBytes = 0;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+
+        private int sizeClassOf(int entrySize) {
+            for (int i = 0; i < chunkSizes.length; i++) {
+                if (chunkSizes[i] >= entrySize) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Return a free chunk of the given size class: from its slabs, from a
+         * new slab, from the CLOCK victim of the class, or from a slab taken
+         * over from the largest class, in this order.
+         */
+        private long allocate(int sizeClass) {
+            SizeClass target = this.sizeClasses[sizeClass];
+            for (Slab slab : target.slabs) {
+                if (slab.usedCount < slab.chunkCount) {
+                    return addressOf(slab, slab.allocate());
+                }
+            }
+            if (this.slabs.size() < this.maximumSlabs) {
+                Slab slab = new Slab(this.slabs.size(), slabSize);
+                slab.assign(sizeClass, chunkSizes[sizeClass]);
+                this.slabs.add(slab);
+                target.slabs.add(slab);
+                return addressOf(slab, slab.allocate());
+            }
+            if (!target.slabs.isEmpty()) {
+                return evictClock(target);
+            }
+            Slab slab = takeOverSlab();
+            slab.assign(sizeClass, chunkSizes[sizeClass]);
+            target.slabs.add(slab);
+            slabReassignments.increment();
+            return addressOf(slab, slab.allocate());
+        }
+
+        /**
+         * Sweep the chunks of the given size class, clearing reference bits,
+         * until an unreferenced entry is found; evict it and return its chunk.
+         * After two full sweeps every entry has lost its bit.
+         */
+        private long evictClock(SizeClass target) {
+            while (true) {
+                if (target.clockSlab >= target.slabs.size()) {
+                    target.clockSlab = 0;
+                }
+                Slab slab = target.slabs.get(target.clockSlab);
+                int chunk = target.clockChunk;
+                if (++target.clockChunk >= slab.chunkCount) {
+                    target.clockChunk = 0;
+                    target.clockSlab++;
+                }
+                if (!slab.isUsed(chunk)) {
+                    continue;
+                }
+                if (slab.clearReference(chunk)) {
+                    continue;
+                }
+                evictChunk(slab, chunk);
+                slab.used[chunk >>> 6] |= 1L << chunk;
+                slab.usedCount++;
+                return addressOf(slab, chunk);
+            }
+        }
+
+        /**
+         * Empty a slab of the size class holding the most slabs and detach it.
+         */
+        private Slab takeOverSlab() {
+            SizeClass largest = null;
+            for (SizeClass sizeClass : this.sizeClasses) {
+                if (largest == null || sizeClass.slabs.size() > largest.slabs.size()) {
+                    largest = sizeClass;
+                }
+            }
+            int position = largest.clockSlab % largest.slabs.size();
+            Slab slab = largest.slabs.remove(position);
+            largest.clockSlab = position;
+            largest.clockChunk = 0;
+            for (int chunk = 0; chunk < slab.chunkCount; chunk++) {
+                if (slab.isUsed(chunk)) {
+                    evictChunk(slab, chunk);
+                }
+            }
+            return slab;
+        }
+
+        /**
+         * Evict the entry in the given chunk and free the chunk. A chunk the
+         * index does not point to, which would be a bookkeeping error, is
+         * freed as it is rather than probed for forever.
+         */
+        private void evictChunk(Slab slab, int chunk) {
+            long address = addressOf(slab, chunk);
+            long hash = slab.buffer.getLong(chunk * slab.chunkSize);
+            int slot = (int) hash & this.indexMask;
+            while (true) {
+                long slotAddress = this.index.getLong(slot * INDEX_SLOT_SIZE + 8);
+                if (slotAddress == address) {
+                    removeAt(slot);
+                    evictions.increment();
+                    return;
+                }
+                if (slotAddress == 0L) {
+                    logger.warn("Freeing unindexed chunk " + chunk + " of slab " + slab.id + " in cache '" + name + "'");
+                    slab.free(chunk);
+                    return;
+                }
+                slot = (slot + 1) & this.indexMask;
+            }
+        }
+
+        /**
+         * Return the index slot of the given key, or {@code -1}.
+         */
+        private int find(long hash, byte[] keyBytes) {
+            int slot = (int) hash & this.indexMask;
+            while (true) {
+                int position = slot * INDEX_SLOT_SIZE;
+                long address = this.index.getLong(position + 8);
+                if (address == 0L) {
+                    return -1;
+                }
+                if (this.index.getLong(position) == hash && keyEquals(address, keyBytes)) {
+                    return slot;
+                }
+                slot = (slot + 1) & this.indexMask;
+            }
+        }
+
+        private boolean keyEquals(long address, byte[] keyBytes) {
+            Slab slab = slabOf(address);
+            int offset = chunkOf(address) * slab.chunkSize;
+            if (slab.buffer.getInt(offset + 8) != keyBytes.length) {
+                return false;
+            }
+            offset += HEADER_SIZE;
+            for (int i = 0; i < keyBytes.length; i++) {
+                if (slab.buffer.get(offset + i) != keyBytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void insert(long hash, long address) {
+            if ((this.entryCount + 1) * 4 > (this.indexMask + 1L) * 3) {
+                resizeIndex();
+            }
+            int slot = (int) hash & this.indexMask;
+            while (this.index.getLong(slot * INDEX_SLOT_SIZE + 8) != 0L) {
+                slot = (slot + 1) & this.indexMask;
+            }
+            this.index.putLong(slot * INDEX_SLOT_SIZE, hash);
+            this.index.putLong(slot * INDEX_SLOT_SIZE + 8, address);
+        }
+
+        private void resizeIndex() {
+            ByteBuffer old = this.index;
+            int oldCapacity = this.indexMask + 1;
+            this.index = ByteBuffer.allocateDirect(oldCapacity * 2 * INDEX_SLOT_SIZE);
+            this.indexMask = oldCapacity * 2 - 1;
+            for (int i = 0; i < oldCapacity; i++) {
+                long address = old.getLong(i * INDEX_SLOT_SIZE + 8);
+                if (address != 0L) {
+                    long hash = old.getLong(i * INDEX_SLOT_SIZE);
+                    int slot = (int) hash & this.indexMask;
+                    while (this.index.getLong(slot * INDEX_SLOT_SIZE + 8) != 0L) {
+                        slot = (slot + 1) & this.indexMask;
+                    }
+                    this.index.putLong(slot * INDEX_SLOT_SIZE, hash);
+                    this.index.putLong(slot * INDEX_SLOT_SIZE + 8, address);
+                }
+            }
+        }
+
+        /**
+         * Free the chunk of the entry at the given slot and delete the slot,
+         * shifting back the entries of the probe sequence behind it.
+         */
+        private void removeAt(int slot) {
+            long address = this.index.getLong(slot * INDEX_SLOT_SIZE + 8);
+            Slab slab = slabOf(address);
+            int chunk = chunkOf(address);
+            int offset = chunk * slab.chunkSize;
+            this.entryBytes -= HEADER_SIZE + slab.buffer.getInt(offset + 8) + slab.buffer.getInt(offset + 12);
+            this.usedChunkBytes -= slab.chunkSize;
+            this.entryCount--;
+            slab.free(chunk);
+            int hole = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & this.indexMask;
+                long nextAddress = this.index.getLong(next * INDEX_SLOT_SIZE + 8);
+                if (nextAddress == 0L) {
+                    break;
+                }
+                long nextHash = this.index.getLong(next * INDEX_SLOT_SIZE);
+                int home = (int) nextHash & this.indexMask;
+                // leave the entry if its home lies cyclically within (hole, next]
+                boolean stays = (hole <= next ? (hole < home && home <= next) : (hole < home || home <= next));
+                if (!stays) {
+                    this.index.putLong(hole * INDEX_SLOT_SIZE, nextHash);
+                    this.index.putLong(hole * INDEX_SLOT_SIZE + 8, nextAddress);
+                    hole = next;
+                }
+            }
+            this.index.putLong(hole * INDEX_SLOT_SIZE + 8, 0L);
+        }
+
+        private long addressOf(Slab slab, int chunk) {
+            return ((long) (slab.id + 1) << 32) | chunk;
+        }
+
+        private Slab slabOf(long address) {
+            return this.slabs.get((int) (address >>> 32) - 1);
+        }
+
+        private int chunkOf(long address) {
+            return (int) address;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package io.geewit.cache.support;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link CacheManager} implementation that lazily builds {@link OffHeapCache}
+ * instances for each {@link #getCache} request, meant as a delegate of a
+ * {@link CompositeCacheManager} between a small on-heap first tier, such as
+ * a {@link TinyLfuCacheManager}, and a remote tier.
+ *
+ * <p>It creates caches for any requested name unless a static set of names
+ * is specified through {@link #setCacheNames}. Each cache takes its own
+ * {@link #setCapacity capacity} of direct memory.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see OffHeapCache
+ */
+public class OffHeapCacheManager implements CacheManager {
+
+    private final ConcurrentMap<String, Cache> cacheMap = new ConcurrentHashMap<>(16);
+
+    private boolean dynamic = true;
+
+    private boolean allowNullValues = true;
+
+    private long capacity = 64L * 1024 * 1024;
+
+    private final Map<String, Long> capacityByCacheName = new HashMap<>();
+
+    private int slabSize = 1024 * 1024;
+
+    private ValueCodecs valueCodecs = ValueCodecs.getSharedInstance();
+
+
+    /**
+     * Specify the set of cache names for this CacheManager's 'static' mode.
+     * <p>The number of caches and their names will be fixed after a call to this method,
+     * with no creation of further cache regions at runtime.
+     * <p>Calling this with a {@code null} collection argument resets the
+     * mode to 'dynamic', allowing for further creation of caches again.
+     */
+    public void setCacheNames(@Nullable Collection<String> cacheNames) {
+        if (cacheNames != null) {
+            for (String name : cacheNames) {
+                this.cacheMap.put(name, createOffHeapCache(name));
+            }
+            this.dynamic = false;
+        } else {
+            this.dynamic = true;
+        }
+    }
+
+    /**
+     * Specify whether to accept and convert {@code null} values for all caches
+     * in this cache manager. Default is "true".
+     */
+    public void setAllowNullValues(boolean allowNullValues) {
+        if (allowNullValues != this.allowNullValues) {
+            this.allowNullValues = allowNullValues;
+            // Need to recreate all Cache instances with the new null-value configuration...
+            recreateCaches();
+        }
+    }
+
+    /**
+     * Return whether this cache manager accepts and converts {@code null} values
+     * for all of its caches.
+     */
+    public boolean isAllowNullValues() {
+        return this.allowNullValues;
+    }
+
+    /**
+     * Specify the number of bytes of direct memory of each cache for its
+     * entries, in addition to its index. Default is 64 MB.
+     */
+    public void setCapacity(long capacity) {
+        Assert.isTrue(capacity > 0, "capacity must be positive");
+        if (capacity != this.capacity) {
+            this.capacity = capacity;
+            recreateCaches();
+        }
+    }
+
+    /**
+     * Specify the capacity of individual caches, overriding
+     * {@link #setCapacity} for the given cache names.
+     */
+    public void setCapacityByCacheName(Map<String, Long> capacityByCacheName) {
+        for (Long capacity : capacityByCacheName.values()) {
+            Assert.isTrue(capacity != null && capacity > 0, "capacity must be positive");
+        }
+        this.capacityByCacheName.clear();
+        this.capacityByCacheName.putAll(capacityByCacheName);
+        recreateCaches();
+    }
+
+    /**
+     * Return the capacity of the cache of the given name.
+     */
+    public long getCapacity(String name) {
+        return this.capacityByCacheName.getOrDefault(name, this.capacity);
+    }
+
+    /**
+     * Specify the size of the slabs direct memory is allocated in, which is
+     * also the maximum size of an entry. Default is 1 MB.
+     */
+    public void setSlabSize(int slabSize) {
+        Assert.isTrue(slabSize > 0, "slabSize must be positive");
+        if (slabSize != this.slabSize) {
+            this.slabSize = slabSize;
+            recreateCaches();
+        }
+    }
+
+    /**
+     * Specify the codecs encoding the values of all caches, each cache taking
+     * those {@link ValueCodecs#forCache for its name}. Default is the
+     * {@link ValueCodecs#getSharedInstance() shared instance}; sharing one
+     * instance with the other byte-oriented tiers of a {@link CompositeCache}
+     * lets it encode each value once for all of them.
+     */
+    public void setValueCodecs(ValueCodecs valueCodecs) {
+        Assert.notNull(valueCodecs, "ValueCodecs must not be null");
+        if (valueCodecs != this.valueCodecs) {
+            this.valueCodecs = valueCodecs;
+            // Entries encoded with the previous codecs may not decode with the new ones...
+            recreateCaches();
+        }
+    }
+
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return Collections.unmodifiableSet(this.cacheMap.keySet());
+    }
+
+    @Override
+    @Nullable
+    public Cache getCache(String name) {
+        Cache cache = this.cacheMap.get(name);
+        if (cache == null && this.dynamic) {
+            cache = this.cacheMap.computeIfAbsent(name, this::createOffHeapCache);
+        }
+        return cache;
+    }
+
+    private void recreateCaches() {
+        for (Map.Entry<String, Cache> entry : this.cacheMap.entrySet()) {
+            entry.setValue(createOffHeapCache(entry.getKey()));
+        }
+    }
+
+    /**
+     * Create a new OffHeapCache instance for the specified cache name.
+     * @param name the name of the cache
+     * @return the OffHeapCache (or a subclass thereof)
+     */
+    protected Cache createOffHeapCache(String name) {
+        long capacity = getCapacity(name);
+        OffHeapCache cache = new OffHeapCache(name, capacity, (int) Math.min(this.slabSize, capacity), isAllowNullValues());
+        cache.setValueCodecs(this.valueCodecs.forCache(name));
+        return cache;
+    }
+}
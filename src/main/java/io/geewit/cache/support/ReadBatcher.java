@@ -0,0 +1,172 @@
+package io.geewit.cache.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gathers concurrent single-key reads of a {@link BatchCache} tier into
+ * multi-gets.
+ *
+ * <p>There is no timer: a read is sent right away while fewer than
+ * {@code maxConcurrentBatches} multi-gets are running, so a lone read on an
+ * idle tier is not delayed. Under load, reads queue up while the running
+ * multi-gets are out, and the next free slot sends up to
+ * {@code maxBatchSize} of them at once, so the batching window follows the
+ * round-trip time of the tier. A full batch is sent without waiting for a
+ * slot.
+ *
+ * <p>Multi-gets run in the thread of a waiting reader, which sends batches
+ * only until its own read has been sent. A multi-get coming back wakes the
+ * reader at the head of the queue to send the next batch, so that no reader
+ * sends the reads of others for longer than its own takes.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see CacheTierConfig#setReadBatching
+ */
+final class ReadBatcher {
+
+    private final CacheTier tier;
+
+    private final int maxBatchSize;
+
+    private final int maxConcurrentBatches;
+
+    private final ConcurrentLinkedQueue<Read> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder batchedReads = new LongAdder();
+
+
+    ReadBatcher(CacheTier tier, CacheTierConfig config) {
+        this.tier = tier;
+        this.maxBatchSize = config.getReadBatchMaxSize();
+        this.maxConcurrentBatches = config.getMaxConcurrentReadBatches();
+    }
+
+
+    /**
+     * Read the live store value of the given key as part of a multi-get.
+     * @return the store value, or {@code null} on a miss or failure
+     */
+    Object read(Object key) {
+        Read read = new Read(key);
+        this.queue.add(read);
+        this.queued.incrementAndGet();
+        dispatch(read);
+        boolean interrupted = false;
+        while (!read.future.isDone()) {
+            // woken by the answer, or to send the next batch
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+            if (!read.sent) {
+                dispatch(read);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return read.future.join();
+    }
+
+    /**
+     * Send batches of queued reads while a slot is free, until the given read is sent.
+     */
+    private void dispatch(Read own) {
+        while (!own.sent) {
+            int queued = this.queued.get();
+            if (queued == 0) {
+                return;
+            }
+            int inFlight = this.inFlight.get();
+            if (inFlight >= this.maxConcurrentBatches && queued < this.maxBatchSize) {
+                // a running multi-get wakes the head of the queue once it is back
+                return;
+            }
+            if (!this.inFlight.compareAndSet(inFlight, inFlight + 1)) {
+                continue;
+            }
+            try {
+                List<Read> batch = new ArrayList<>(Math.min(queued, this.maxBatchSize));
+                Read read;
+                while (batch.size() < this.maxBatchSize && (read = this.queue.poll()) != null) {
+                    this.queued.decrementAndGet();
+                    read.sent = true;
+                    batch.add(read);
+                }
+                if (!batch.isEmpty()) {
+                    send(batch);
+                }
+            } finally {
+                this.inFlight.decrementAndGet();
+            }
+            // the queued reads are left to the reader at the head of the queue
+            Read next = this.queue.peek();
+            if (next != null) {
+                LockSupport.unpark(next.thread);
+            }
+        }
+    }
+
+    private void send(List<Read> batch) {
+        Map<Object, Object> values = new HashMap<>();
+        try {
+            Set<Object> keys = new LinkedHashSet<>();
+            for (Read read : batch) {
+                keys.add(read.key);
+            }
+            this.tier.multiGet(keys, values);
+            this.batches.increment();
+            this.batchedReads.add(batch.size());
+        } finally {
+            for (Read read : batch) {
+                read.future.complete(values.get(read.key));
+                LockSupport.unpark(read.thread);
+            }
+        }
+    }
+
+    /**
+     * Return the number of multi-gets sent.
+     */
+    long getBatchCount() {
+        return this.batches.sum();
+    }
+
+    /**
+     * Return the number of reads answered by multi-gets.
+     */
+    long getBatchedReadCount() {
+        return this.batchedReads.sum();
+    }
+
+
+    private static final class Read {
+
+        final Object key;
+
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        final Thread thread = Thread.currentThread();
+
+        volatile boolean sent;
+
+        Read(Object key) {
+            this.key = key;
+        }
+    }
+}
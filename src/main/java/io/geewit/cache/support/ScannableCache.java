@@ -0,0 +1,26 @@
+package io.geewit.cache.support;
+
+import java.util.function.Consumer;
+
+/**
+ * Optional interface for delegate caches that can enumerate their keys, e.g.
+ * through Redis {@code SCAN}.
+ *
+ * <p>Used by {@link CompositeCache} to build the
+ * {@link CacheTierConfig#setMembershipFilterEnabled membership filter} of a
+ * tier; a tier whose delegate cannot be scanned is never filtered.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public interface ScannableCache {
+
+    /**
+     * Pass every key of this cache to the given consumer. Keys present for the
+     * whole scan must be passed; keys written or removed during the scan may
+     * or may not be.
+     * @param consumer the consumer of the keys
+     */
+    void scanKeys(Consumer<Object> consumer);
+
+}
@@ -0,0 +1,129 @@
+package io.geewit.cache.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Conversion of keys to bytes for the tiers that store them outside the
+ * heap; values are converted by {@link ValueCodecs}.
+ *
+ * <p>Keys are serialized on every lookup, so the common key types have compact
+ * forms tagged by their first byte; other keys fall back to Java serialization.
+ * Two keys are taken as equal if their bytes are.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+final class Serialization {
+
+    private static final byte KEY_SERIALIZED = 0;
+
+    private static final byte KEY_STRING = 1;
+
+    private static final byte KEY_INTEGER = 2;
+
+    private static final byte KEY_LONG = 3;
+
+    private Serialization() {
+    }
+
+
+    /**
+     * Return the bytes of the given key.
+     * @throws IllegalArgumentException if the key cannot be serialized
+     */
+    static byte[] serializeKey(Object key) {
+        if (key instanceof String) {
+            byte[] chars = ((String) key).getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = new byte[chars.length + 1];
+            bytes[0] = KEY_STRING;
+            System.arraycopy(chars, 0, bytes, 1, chars.length);
+            return bytes;
+        }
+        if (key instanceof Integer) {
+            return putLong(new byte[5], KEY_INTEGER, (Integer) key, 4);
+        }
+        if (key instanceof Long) {
+            return putLong(new byte[9], KEY_LONG, (Long) key, 8);
+        }
+        byte[] serialized = javaSerialize(key);
+        byte[] bytes = new byte[serialized.length + 1];
+        bytes[0] = KEY_SERIALIZED;
+        System.arraycopy(serialized, 0, bytes, 1, serialized.length);
+        return bytes;
+    }
+
+    /**
+     * Return the key of the given bytes.
+     * @throws IllegalArgumentException if the key cannot be deserialized
+     */
+    static Object deserializeKey(byte[] bytes) {
+        switch (bytes[0]) {
+            case KEY_STRING:
+                return new String(bytes, 1, bytes.length - 1, StandardCharsets.UTF_8);
+            case KEY_INTEGER:
+                return (int) getLong(bytes, 4);
+            case KEY_LONG:
+                return getLong(bytes, 8);
+            default:
+                return javaDeserialize(bytes, 1, bytes.length - 1);
+        }
+    }
+
+    private static byte[] javaSerialize(Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Failed to serialize object of type: " + value.getClass(), ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object javaDeserialize(byte[] bytes, int offset, int length) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+            return in.readObject();
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Failed to deserialize object", ex);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException("Failed to deserialize object type", ex);
+        }
+    }
+
+    /**
+     * Return a 64-bit hash of the given bytes (FNV-1a, finalized with the
+     * MurmurHash3 mixer).
+     */
+    static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static byte[] putLong(byte[] bytes, byte tag, long value, int length) {
+        bytes[0] = tag;
+        for (int i = length; i > 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+
+    private static long getLong(byte[] bytes, int length) {
+        long value = 0;
+        for (int i = 1; i <= length; i++) {
+            value = (value << 8) | (bytes[i] & 0xffL);
+        }
+        return (length == 4 ? (int) value : value);
+    }
+}
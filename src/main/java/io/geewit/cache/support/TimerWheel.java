@@ -0,0 +1,238 @@
+package io.geewit.cache.support;
+
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hierarchical timer wheel holding any number of timers at a fixed cost per
+ * operation.
+ *
+ * <p>Time is counted in ticks. The wheel has five levels of 64 buckets, each
+ * bucket of level {@code n} spanning {@code 64^n} ticks. A timer is linked
+ * into the bucket of the lowest level whose span covers its remaining delay,
+ * and moves down one level whenever the level above it turns over, so that
+ * scheduling and cancelling are constant time, and each tick touches one
+ * bucket per level that turned over. Timers due beyond the range of the wheel
+ * are parked in its last level until they come within range.
+ *
+ * <p>All operations are guarded by one lock; due timers are handed out after
+ * it is released.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @param <T> the type of the values carried by the timers
+ */
+final class TimerWheel<T> {
+
+    private static final int BUCKET_BITS = 6;
+
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+
+    private static final int LEVELS = 5;
+
+    private static final long MAX_DELAY_TICKS = (1L << (BUCKET_BITS * LEVELS)) - 1;
+
+    /**
+     * A scheduled timer.
+     */
+    static final class Node<T> {
+
+        final T value;
+
+        long deadlineTick;
+
+        @Nullable
+        Node<T> prev;
+
+        @Nullable
+        Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+        }
+
+        boolean isScheduled() {
+            return this.prev != null;
+        }
+    }
+
+
+    private final long origin = System.nanoTime();
+
+    private final long tickNanos;
+
+    /**
+     * Bucket sentinels of circular doubly-linked lists, per level.
+     */
+    private final Node<T>[][] buckets;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private long currentTick;
+
+    private int size;
+
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long tickNanos) {
+        this.tickNanos = tickNanos;
+        this.buckets = new Node[LEVELS][BUCKETS];
+        for (Node<T>[] level : this.buckets) {
+            for (int i = 0; i < BUCKETS; i++) {
+                Node<T> sentinel = new Node<>(null);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                level[i] = sentinel;
+            }
+        }
+    }
+
+
+    /**
+     * Schedule a timer carrying the given value to be due at the given
+     * {@link System#nanoTime()}, or at the next tick if that has passed.
+     * @return the timer, for {@link #cancel cancelling} it
+     */
+    Node<T> schedule(T value, long deadlineNanos) {
+        Node<T> node = new Node<>(value);
+        this.lock.lock();
+        try {
+            node.deadlineTick = Math.max(toTick(deadlineNanos), this.currentTick + 1);
+            link(node);
+            this.size++;
+        } finally {
+            this.lock.unlock();
+        }
+        return node;
+    }
+
+    /**
+     * Cancel the given timer, unless it is already due.
+     * @return whether it was still scheduled
+     */
+    boolean cancel(Node<T> node) {
+        this.lock.lock();
+        try {
+            if (!node.isScheduled()) {
+                return false;
+            }
+            unlink(node);
+            this.size--;
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Cancel all timers.
+     */
+    void clear() {
+        this.lock.lock();
+        try {
+            for (Node<T>[] level : this.buckets) {
+                for (Node<T> sentinel : level) {
+                    while (sentinel.next != sentinel) {
+                        unlink(sentinel.next);
+                    }
+                }
+            }
+            this.size = 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Advance the wheel to the given {@link System#nanoTime()}.
+     * @return the values of the timers that fell due, in deadline order
+     */
+    List<T> advance(long nowNanos) {
+        List<T> due = null;
+        this.lock.lock();
+        try {
+            long targetTick = toTick(nowNanos);
+            while (this.currentTick < targetTick) {
+                long tick = ++this.currentTick;
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((tick & ((1L << (BUCKET_BITS * level)) - 1)) == 0) {
+                        cascade(this.buckets[level][(int) (tick >>> (BUCKET_BITS * level)) & (BUCKETS - 1)]);
+                    }
+                }
+                Node<T> sentinel = this.buckets[0][(int) tick & (BUCKETS - 1)];
+                while (sentinel.next != sentinel) {
+                    Node<T> node = sentinel.next;
+                    unlink(node);
+                    this.size--;
+                    if (due == null) {
+                        due = new ArrayList<>();
+                    }
+                    due.add(node.value);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return (due != null ? due : Collections.emptyList());
+    }
+
+    /**
+     * Return the number of scheduled timers.
+     */
+    int size() {
+        this.lock.lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private long toTick(long nanos) {
+        return (nanos - this.origin) / this.tickNanos;
+    }
+
+    /**
+     * Move the timers of a bucket that turned over to the buckets matching
+     * their remaining delay.
+     */
+    private void cascade(Node<T> sentinel) {
+        Node<T> node = sentinel.next;
+        sentinel.next = sentinel;
+        sentinel.prev = sentinel;
+        while (node != sentinel) {
+            Node<T> next = node.next;
+            link(node);
+            node = next;
+        }
+    }
+
+    private void link(Node<T> node) {
+        long delay = Math.min(Math.max(node.deadlineTick - this.currentTick, 0L), MAX_DELAY_TICKS);
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= (1L << (BUCKET_BITS * (level + 1)))) {
+            level++;
+        }
+        long tick = Math.min(node.deadlineTick, this.currentTick + MAX_DELAY_TICKS);
+        if (tick < this.currentTick) {
+            // due in the tick being advanced, whose first-level bucket is emptied next
+            tick = this.currentTick;
+        }
+        Node<T> sentinel = this.buckets[level][(int) (tick >>> (BUCKET_BITS * level)) & (BUCKETS - 1)];
+        node.next = sentinel;
+        node.prev = sentinel.prev;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    private static <T> void unlink(Node<T> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+}
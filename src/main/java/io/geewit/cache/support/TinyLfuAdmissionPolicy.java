@@ -0,0 +1,77 @@
+package io.geewit.cache.support;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TinyLFU-style {@link AdmissionPolicy}: a key is only promoted into the first
+ * tier when its estimated access frequency beats that of the entry it would
+ * displace.
+ *
+ * <p>Access frequencies come from a {@link FrequencySketch}. As the delegate
+ * cache does not reveal its eviction victim, the policy models the first tier
+ * as a FIFO of the keys it admitted: the victim is the oldest of the last
+ * {@code maximumSize} admissions. Until that many keys have been admitted the
+ * first tier is assumed to have room, and every key is admitted.
+ *
+ * <p>Memory use is about twelve bytes per tracked key: eight for the sketch and
+ * four for the admission ring.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class TinyLfuAdmissionPolicy implements AdmissionPolicy {
+
+    private final FrequencySketch sketch;
+
+    /**
+     * Spread hashes of the most recently admitted keys, oldest at {@code admissions & mask}.
+     */
+    private final AtomicIntegerArray admitted;
+
+    private final int mask;
+
+    private final AtomicLong admissions = new AtomicLong();
+
+
+    /**
+     * Create a policy for a first tier holding about the given number of entries.
+     * @param maximumSize the (approximate) maximum size of the first tier
+     */
+    public TinyLfuAdmissionPolicy(int maximumSize) {
+        Assert.isTrue(maximumSize > 0, "maximumSize must be positive");
+        this.sketch = new FrequencySketch(maximumSize);
+        int ringSize = (maximumSize == 1 ? 1 : Integer.highestOneBit(maximumSize - 1) << 1);
+        this.admitted = new AtomicIntegerArray(ringSize);
+        this.mask = ringSize - 1;
+    }
+
+
+    @Override
+    public void record(Object key) {
+        this.sketch.increment(key);
+    }
+
+    @Override
+    public boolean admit(Object key) {
+        int hash = FrequencySketch.spread(key.hashCode());
+        long position = this.admissions.get();
+        if (position > this.mask) {
+            int victim = this.admitted.get((int) (position & this.mask));
+            if (this.sketch.frequencyOf(hash) <= this.sketch.frequencyOf(victim)) {
+                return false;
+            }
+        }
+        this.admitted.set((int) (this.admissions.getAndIncrement() & this.mask), hash);
+        return true;
+    }
+
+    /**
+     * Return the sketch recording the access frequencies.
+     */
+    public FrequencySketch getSketch() {
+        return this.sketch;
+    }
+}
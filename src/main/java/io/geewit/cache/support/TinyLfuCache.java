@@ -0,0 +1,667 @@
+package io.geewit.cache.support;
+
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-heap {@link org.springframework.cache.Cache} with a W-TinyLFU
+ * eviction policy, meant as the first tier of a {@link CompositeCache}.
+ *
+ * <p>Entries live in a {@link ConcurrentHashMap}; reads are a map lookup and
+ * never lock. The eviction policy is maintained apart from the map, under a
+ * lock that is only tried, never waited for, on the read path:
+ * <ul>
+ * <li>Reads record the entry in one of several striped ring buffers, picked by
+ * thread. A buffer that is full or contended drops the record rather than
+ * wait, which only lowers the accuracy of the access order.</li>
+ * <li>Writes queue a task and apply the pending records and tasks right away
+ * if the lock is free. A writer only waits for the lock once too many tasks
+ * are pending, which bounds how far the cache can exceed its maximum size.</li>
+ * </ul>
+ *
+ * <p>New entries enter a small LRU <em>window</em> of one percent of the
+ * maximum size. Entries leaving the window join the <em>probation</em>
+ * segment of a segmented LRU and are promoted into its <em>protected</em>
+ * segment, eighty percent of the main space, on their next access. Once the
+ * cache is full, an entry leaving the window competes with the least recently
+ * used entry of the probation segment, and the one with the lower access
+ * frequency, as estimated by a {@link FrequencySketch}, is evicted. A
+ * candidate of some frequency occasionally wins regardless, so that hash
+ * collisions cannot keep new entries out for good.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see TinyLfuCacheManager
+ */
+public class TinyLfuCache extends AbstractValueAdaptingCache implements HotKeysCache {
+
+    private static final int READ_BUFFER_SIZE = 16;
+
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    private static final int READ_BUFFER_STRIPES = ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+
+    private static final int WRITE_BUFFER_THRESHOLD = 128 * Runtime.getRuntime().availableProcessors();
+
+    private static final int WARM_CANDIDATE_FREQUENCY = 6;
+
+    private static final int QUEUE_NONE = 0;
+
+    private static final int QUEUE_WINDOW = 1;
+
+    private static final int QUEUE_PROBATION = 2;
+
+    private static final int QUEUE_PROTECTED = 3;
+
+    private final String name;
+
+    private final long maximumSize;
+
+    private final ConcurrentHashMap<Object, Node> data;
+
+    private final FrequencySketch sketch;
+
+    private final ReadBuffer[] readBuffers;
+
+    private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private volatile boolean drainRequested;
+
+    private final LongAdder evictions = new LongAdder();
+
+    // guarded by evictionLock
+
+    private final AccessOrderDeque window = new AccessOrderDeque();
+
+    private final AccessOrderDeque probation = new AccessOrderDeque();
+
+    private final AccessOrderDeque protectedDeque = new AccessOrderDeque();
+
+    private final long windowMaximum;
+
+    private final long protectedMaximum;
+
+    private long windowSize;
+
+    private long protectedSize;
+
+    private long size;
+
+
+    /**
+     * Create a new TinyLfuCache with the specified name and maximum size.
+     * @param name the name of the cache
+     * @param maximumSize the maximum number of entries
+     * @param allowNullValues whether to accept and convert {@code null} values for this cache
+     */
+    public TinyLfuCache(String name, long maximumSize, boolean allowNullValues) {
+        super(allowNullValues);
+        Assert.notNull(name, "Name must not be null");
+        Assert.isTrue(maximumSize > 0, "maximumSize must be positive");
+        this.name = name;
+        this.maximumSize = maximumSize;
+        this.data = new ConcurrentHashMap<>((int) Math.min(maximumSize, 1 << 16));
+        this.sketch = new FrequencySketch(maximumSize);
+        this.readBuffers = new ReadBuffer[READ_BUFFER_STRIPES];
+        for (int i = 0; i < this.readBuffers.length; i++) {
+            this.readBuffers[i] = new ReadBuffer();
+        }
+        this.windowMaximum = Math.max(1L, maximumSize / 100);
+        this.protectedMaximum = (long) ((maximumSize - this.windowMaximum) * 0.8);
+    }
+
+
+    @Override
+    public final String getName() {
+        return this.name;
+    }
+
+    @Override
+    public final Object getNativeCache() {
+        return this;
+    }
+
+    /**
+     * Return the maximum number of entries.
+     */
+    public long getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * Return the number of entries, which may briefly exceed the maximum size
+     * while evictions are pending.
+     */
+    public long estimatedSize() {
+        return this.data.size();
+    }
+
+    /**
+     * Return the number of entries evicted by the size bound.
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    @Override
+    @Nullable
+    public Object lookup(Object key) {
+        Node node = this.data.get(key);
+        if (node == null) {
+            return null;
+        }
+        recordRead(node);
+        return node.value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        Node node = this.data.get(key);
+        if (node != null) {
+            recordRead(node);
+            return (T) fromStoreValue(node.value);
+        }
+        node = this.data.computeIfAbsent(key, k -> {
+            Node created;
+            try {
+                created = new Node(k, toStoreValue(valueLoader.call()));
+            } catch (Throwable ex) {
+                throw new ValueRetrievalException(key, valueLoader, ex);
+            }
+            // only queued here, the maintenance must not run inside the map's compute
+            enqueueWrite(() -> onAdd(created));
+            return created;
+        });
+        scheduleDrain();
+        return (T) fromStoreValue(node.value);
+    }
+
+    @Override
+    public void put(Object key, @Nullable Object value) {
+        Object storeValue = toStoreValue(value);
+        while (true) {
+            Node node = this.data.get(key);
+            if (node == null) {
+                Node created = new Node(key, storeValue);
+                node = this.data.putIfAbsent(key, created);
+                if (node == null) {
+                    afterWrite(() -> onAdd(created));
+                    return;
+                }
+            }
+            boolean updated;
+            synchronized (node) {
+                updated = node.alive;
+                if (updated) {
+                    node.value = storeValue;
+                }
+            }
+            if (updated) {
+                recordRead(node);
+                return;
+            }
+            // evicted meanwhile, its mapping is gone
+        }
+    }
+
+    @Override
+    @Nullable
+    public ValueWrapper putIfAbsent(Object key, @Nullable Object value) {
+        Object storeValue = toStoreValue(value);
+        while (true) {
+            Node node = this.data.get(key);
+            if (node == null) {
+                Node created = new Node(key, storeValue);
+                node = this.data.putIfAbsent(key, created);
+                if (node == null) {
+                    afterWrite(() -> onAdd(created));
+                    return null;
+                }
+            }
+            Object existing = node.value;
+            if (node.alive) {
+                recordRead(node);
+                return (existing == null ? null : new SimpleValueWrapper(fromStoreValue(existing)));
+            }
+        }
+    }
+
+    @Override
+    public void evict(Object key) {
+        evictIfPresent(key);
+    }
+
+    @Override
+    public boolean evictIfPresent(Object key) {
+        Node node = this.data.get(key);
+        while (node != null) {
+            boolean removed;
+            synchronized (node) {
+                removed = this.data.remove(key, node);
+                if (removed) {
+                    node.alive = false;
+                }
+            }
+            if (removed) {
+                // the maintenance may wait for the lock, never while holding a node's monitor
+                Node retired = node;
+                afterWrite(() -> onRemove(retired));
+                return true;
+            }
+            node = this.data.get(key);
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        for (Object key : this.data.keySet()) {
+            evict(key);
+        }
+    }
+
+    @Override
+    public boolean invalidate() {
+        boolean notEmpty = !this.data.isEmpty();
+        clear();
+        return notEmpty;
+    }
+
+    /**
+     * Return the keys of highest estimated frequency, the most recently used
+     * first among equals, from the protected segment down to the window.
+     */
+    @Override
+    public List<Object> hottestKeys(int limit) {
+        List<Object> keys = new ArrayList<>();
+        this.evictionLock.lock();
+        try {
+            maintenance();
+            for (AccessOrderDeque deque : new AccessOrderDeque[] {this.protectedDeque, this.probation, this.window}) {
+                for (Node node = deque.peekLast(); node != null; node = node.prev) {
+                    if (node.alive) {
+                        keys.add(node.key);
+                    }
+                }
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+        return this.sketch.mostFrequent(keys, limit);
+    }
+
+    /**
+     * Apply all pending access records and writes, evicting down to the
+     * maximum size, in the calling thread.
+     */
+    public void cleanUp() {
+        this.evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+
+    private void recordRead(Node node) {
+        ReadBuffer buffer = this.readBuffers[readBufferIndex()];
+        if (!buffer.offer(node)) {
+            scheduleDrain();
+        }
+    }
+
+    private int readBufferIndex() {
+        return FrequencySketch.spread((int) Thread.currentThread().getId()) & (READ_BUFFER_STRIPES - 1);
+    }
+
+    private void afterWrite(Runnable task) {
+        if (enqueueWrite(task) > WRITE_BUFFER_THRESHOLD) {
+            // writers outpace the maintenance, wait for it instead of growing past the bound
+            cleanUp();
+        } else {
+            scheduleDrain();
+        }
+    }
+
+    private int enqueueWrite(Runnable task) {
+        this.writeBuffer.add(task);
+        return this.pendingWrites.incrementAndGet();
+    }
+
+    /**
+     * Run the maintenance if the lock is free, otherwise leave it to the
+     * thread holding the lock, which checks for a new request before leaving.
+     */
+    private void scheduleDrain() {
+        this.drainRequested = true;
+        while (this.drainRequested && this.evictionLock.tryLock()) {
+            try {
+                this.drainRequested = false;
+                maintenance();
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+    }
+
+    private void maintenance() {
+        for (ReadBuffer buffer : this.readBuffers) {
+            buffer.drainTo(this);
+        }
+        Runnable task;
+        while ((task = this.writeBuffer.poll()) != null) {
+            this.pendingWrites.decrementAndGet();
+            task.run();
+        }
+        evictFromMain(evictFromWindow());
+    }
+
+    private void onAccess(Node node) {
+        this.sketch.incrementExclusive(node.key);
+        switch (node.queue) {
+            case QUEUE_WINDOW:
+                this.window.moveToBack(node);
+                break;
+            case QUEUE_PROBATION:
+                this.probation.remove(node);
+                this.protectedDeque.addLast(node);
+                node.queue = QUEUE_PROTECTED;
+                this.protectedSize++;
+                demoteFromProtected();
+                break;
+            case QUEUE_PROTECTED:
+                this.protectedDeque.moveToBack(node);
+                break;
+            default:
+                // not added yet or removed already
+        }
+    }
+
+    private void onAdd(Node node) {
+        if (!node.alive || node.queue != QUEUE_NONE) {
+            return;
+        }
+        this.sketch.incrementExclusive(node.key);
+        this.window.addLast(node);
+        node.queue = QUEUE_WINDOW;
+        this.windowSize++;
+        this.size++;
+    }
+
+    private void onRemove(Node node) {
+        unlink(node);
+    }
+
+    private void demoteFromProtected() {
+        while (this.protectedSize > this.protectedMaximum) {
+            Node demoted = this.protectedDeque.pollFirst();
+            if (demoted == null) {
+                return;
+            }
+            this.protectedSize--;
+            this.probation.addLast(demoted);
+            demoted.queue = QUEUE_PROBATION;
+        }
+    }
+
+    /**
+     * Move the entries beyond the window's share to the back of the probation
+     * segment, where they are candidates for the main space.
+     * @return the number of candidates
+     */
+    private int evictFromWindow() {
+        int candidates = 0;
+        while (this.windowSize > this.windowMaximum) {
+            Node node = this.window.pollFirst();
+            if (node == null) {
+                break;
+            }
+            this.windowSize--;
+            this.probation.addLast(node);
+            node.queue = QUEUE_PROBATION;
+            candidates++;
+        }
+        return candidates;
+    }
+
+    /**
+     * Evict down to the maximum size, each candidate at the back of the
+     * probation segment competing with the victim at its front.
+     */
+    private void evictFromMain(int candidates) {
+        while (this.size > this.maximumSize) {
+            Node victim = this.probation.peekFirst();
+            Node candidate = (candidates > 0 ? this.probation.peekLast() : null);
+            if (victim == null) {
+                victim = this.protectedDeque.peekFirst();
+                if (victim == null) {
+                    victim = this.window.peekFirst();
+                }
+                if (victim == null) {
+                    return;
+                }
+            }
+            if (candidate == null || candidate == victim) {
+                if (candidate != null) {
+                    candidates--;
+                }
+                evictNode(victim);
+                continue;
+            }
+            candidates--;
+            evictNode(admit(candidate, victim) ? victim : candidate);
+        }
+    }
+
+    private boolean admit(Node candidate, Node victim) {
+        int candidateFrequency = this.sketch.frequency(candidate.key);
+        int victimFrequency = this.sketch.frequency(victim.key);
+        if (candidateFrequency > victimFrequency) {
+            return true;
+        }
+        return (candidateFrequency >= WARM_CANDIDATE_FREQUENCY && (ThreadLocalRandom.current().nextInt() & 127) == 0);
+    }
+
+    private void evictNode(Node node) {
+        unlink(node);
+        boolean removed;
+        synchronized (node) {
+            removed = this.data.remove(node.key, node);
+            if (removed) {
+                node.alive = false;
+            }
+        }
+        if (removed) {
+            this.evictions.increment();
+        }
+    }
+
+    private void unlink(Node node) {
+        switch (node.queue) {
+            case QUEUE_WINDOW:
+                this.window.remove(node);
+                this.windowSize--;
+                break;
+            case QUEUE_PROBATION:
+                this.probation.remove(node);
+                break;
+            case QUEUE_PROTECTED:
+                this.protectedDeque.remove(node);
+                this.protectedSize--;
+                break;
+            default:
+                return;
+        }
+        node.queue = QUEUE_NONE;
+        this.size--;
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        return (value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1);
+    }
+
+
+    /**
+     * A cache entry, also linked into one of the access-order deques of the policy.
+     */
+    private static final class Node {
+
+        final Object key;
+
+        volatile Object value;
+
+        /**
+         * Whether the entry is still mapped; cleared under the node's monitor
+         * once it is removed from the map.
+         */
+        volatile boolean alive = true;
+
+        // guarded by evictionLock
+
+        int queue = QUEUE_NONE;
+
+        @Nullable
+        Node prev;
+
+        @Nullable
+        Node next;
+
+        Node(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * Intrusive doubly-linked deque of nodes, least recently used first.
+     */
+    private static final class AccessOrderDeque {
+
+        @Nullable
+        private Node first;
+
+        @Nullable
+        private Node last;
+
+        @Nullable
+        Node peekFirst() {
+            return this.first;
+        }
+
+        @Nullable
+        Node peekLast() {
+            return this.last;
+        }
+
+        void addLast(Node node) {
+            node.prev = this.last;
+            node.next = null;
+            if (this.last == null) {
+                this.first = node;
+            } else {
+                this.last.next = node;
+            }
+            this.last = node;
+        }
+
+        @Nullable
+        Node pollFirst() {
+            Node node = this.first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                this.first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                this.last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node node) {
+            if (node != this.last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+
+    /**
+     * Lossy single-consumer ring buffer of read records. Producers claim a slot
+     * with one compare-and-set and give up when the buffer is full or the
+     * slot is contended; the consumer drains it under the eviction lock.
+     */
+    private static final class ReadBuffer {
+
+        private final AtomicLong writeCount = new AtomicLong();
+
+        private final AtomicReferenceArray<Node> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+
+        // guarded by evictionLock
+        private volatile long readCount;
+
+        /**
+         * Record a read of the given node.
+         * @return {@code false} if the buffer is full and should be drained
+         */
+        boolean offer(Node node) {
+            long tail = this.writeCount.get();
+            if (tail - this.readCount >= READ_BUFFER_SIZE) {
+                return false;
+            }
+            if (this.writeCount.compareAndSet(tail, tail + 1)) {
+                this.slots.lazySet((int) (tail & READ_BUFFER_MASK), node);
+            }
+            return true;
+        }
+
+        void drainTo(TinyLfuCache cache) {
+            long head = this.readCount;
+            long tail = this.writeCount.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & READ_BUFFER_MASK);
+                Node node = this.slots.get(index);
+                if (node == null) {
+                    // claimed but not published yet, picked up by the next drain
+                    break;
+                }
+                this.slots.lazySet(index, null);
+                cache.onAccess(node);
+            }
+            this.readCount = head;
+        }
+    }
+}
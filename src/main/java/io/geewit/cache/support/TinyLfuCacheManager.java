@@ -0,0 +1,140 @@
+package io.geewit.cache.support;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link CacheManager} implementation that lazily builds {@link TinyLfuCache}
+ * instances for each {@link #getCache} request, meant as the first delegate
+ * of a {@link CompositeCacheManager} in place of an unbounded
+ * {@link org.springframework.cache.concurrent.ConcurrentMapCacheManager}.
+ *
+ * <p>Like the latter, it creates caches for any requested name unless a
+ * static set of names is specified through {@link #setCacheNames}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see TinyLfuCache
+ */
+public class TinyLfuCacheManager implements CacheManager {
+
+    private final ConcurrentMap<String, Cache> cacheMap = new ConcurrentHashMap<>(16);
+
+    private boolean dynamic = true;
+
+    private boolean allowNullValues = true;
+
+    private long maximumSize = 10_000L;
+
+    private final Map<String, Long> maximumSizeByCacheName = new HashMap<>();
+
+
+    /**
+     * Specify the set of cache names for this CacheManager's 'static' mode.
+     * <p>The number of caches and their names will be fixed after a call to this method,
+     * with no creation of further cache regions at runtime.
+     * <p>Calling this with a {@code null} collection argument resets the
+     * mode to 'dynamic', allowing for further creation of caches again.
+     */
+    public void setCacheNames(@Nullable Collection<String> cacheNames) {
+        if (cacheNames != null) {
+            for (String name : cacheNames) {
+                this.cacheMap.put(name, createTinyLfuCache(name));
+            }
+            this.dynamic = false;
+        } else {
+            this.dynamic = true;
+        }
+    }
+
+    /**
+     * Specify whether to accept and convert {@code null} values for all caches
+     * in this cache manager. Default is "true".
+     */
+    public void setAllowNullValues(boolean allowNullValues) {
+        if (allowNullValues != this.allowNullValues) {
+            this.allowNullValues = allowNullValues;
+            // Need to recreate all Cache instances with the new null-value configuration...
+            recreateCaches();
+        }
+    }
+
+    /**
+     * Return whether this cache manager accepts and converts {@code null} values
+     * for all of its caches.
+     */
+    public boolean isAllowNullValues() {
+        return this.allowNullValues;
+    }
+
+    /**
+     * Specify the maximum number of entries of each cache. Default is 10000.
+     */
+    public void setMaximumSize(long maximumSize) {
+        Assert.isTrue(maximumSize > 0, "maximumSize must be positive");
+        if (maximumSize != this.maximumSize) {
+            this.maximumSize = maximumSize;
+            recreateCaches();
+        }
+    }
+
+    /**
+     * Specify the maximum number of entries of individual caches, overriding
+     * {@link #setMaximumSize} for the given cache names.
+     */
+    public void setMaximumSizeByCacheName(Map<String, Long> maximumSizeByCacheName) {
+        for (Long maximumSize : maximumSizeByCacheName.values()) {
+            Assert.isTrue(maximumSize != null && maximumSize > 0, "maximumSize must be positive");
+        }
+        this.maximumSizeByCacheName.clear();
+        this.maximumSizeByCacheName.putAll(maximumSizeByCacheName);
+        recreateCaches();
+    }
+
+    /**
+     * Return the maximum number of entries of the cache of the given name.
+     */
+    public long getMaximumSize(String name) {
+        return this.maximumSizeByCacheName.getOrDefault(name, this.maximumSize);
+    }
+
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return Collections.unmodifiableSet(this.cacheMap.keySet());
+    }
+
+    @Override
+    @Nullable
+    public Cache getCache(String name) {
+        Cache cache = this.cacheMap.get(name);
+        if (cache == null && this.dynamic) {
+            cache = this.cacheMap.computeIfAbsent(name, this::createTinyLfuCache);
+        }
+        return cache;
+    }
+
+    private void recreateCaches() {
+        for (Map.Entry<String, Cache> entry : this.cacheMap.entrySet()) {
+            entry.setValue(createTinyLfuCache(entry.getKey()));
+        }
+    }
+
+    /**
+     * Create a new TinyLfuCache instance for the specified cache name.
+     * @param name the name of the cache
+     * @return the TinyLfuCache (or a subclass thereof)
+     */
+    protected Cache createTinyLfuCache(String name) {
+        return new TinyLfuCache(name, getMaximumSize(name), isAllowNullValues());
+    }
+}
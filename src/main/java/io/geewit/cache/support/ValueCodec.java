@@ -0,0 +1,34 @@
+package io.geewit.cache.support;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Strategy encoding values of one type to bytes and back, for the tiers that
+ * store bytes; registered with a {@link ValueCodecs} under an id that is
+ * stored with every value it encodes.
+ *
+ * <p>Implementations are called concurrently and must therefore be thread-safe.
+ *
+ * @param <T> the type of the values
+ * @author geewit
+ * @since 2020-07-22
+ * @see ValueCodecs#register
+ */
+public interface ValueCodec<T> {
+
+    /**
+     * Write the given value.
+     * @param value the value, never {@code null}
+     * @param out the output, backed by a pooled buffer
+     */
+    void encode(T value, DataOutput out) throws IOException;
+
+    /**
+     * Read a value written by {@link #encode}.
+     * @param in the input, holding exactly the bytes written
+     */
+    T decode(DataInput in) throws IOException;
+
+}
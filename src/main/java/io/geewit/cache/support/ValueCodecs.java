@@ -0,0 +1,484 @@
+package io.geewit.cache.support;
+
+import org.springframework.cache.support.NullValue;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Conversion of store values to bytes for the tiers that store them outside
+ * the heap, such as {@link OffHeapCache} and {@link DiskCache}.
+ *
+ * <p>The first byte of an encoded value tags its form, the rest of the bytes
+ * hold the value:
+ * <ul>
+ * <li>Byte arrays are stored as they are, so that they can be
+ * {@link LeasingCache leased} without copying; strings as UTF-8.</li>
+ * <li>Boxed primitives are stored in their fixed big-endian width,
+ * {@link NullValue} by its tag alone, and a {@link CacheEntry} as its three
+ * times followed by the encoding of its value.</li>
+ * <li>Values of a class {@link #register registered} with a {@link ValueCodec}
+ * are written by the codec, behind a tag derived from the id it was registered
+ * under.</li>
+ * <li>Any other value falls back to Java serialization.</li>
+ * </ul>
+ * The ids of registered codecs, not their classes, end up in the stored bytes:
+ * the same codec must be registered under the same id wherever the bytes are
+ * read, including after a restart of a {@link DiskCache}.
+ *
+ * <p>Values are encoded into a buffer reused per thread, which is dropped
+ * rather than retained once it has grown beyond 64 KB, so that encoding
+ * allocates little more than the resulting array.
+ *
+ * <p>With {@link #setCompression compression} configured, the caches take
+ * their codecs {@link #forCache per cache name}, each instance compressing
+ * values with a dictionary trained from the values of its cache. Byte arrays
+ * are not compressed, so that they can still be leased.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see EncodingCache
+ */
+public class ValueCodecs {
+
+    static final byte SERIALIZED = 0;
+
+    static final byte BYTES = 1;
+
+    private static final byte NULL = 2;
+
+    private static final byte STRING = 3;
+
+    private static final byte INTEGER = 4;
+
+    private static final byte LONG = 5;
+
+    private static final byte DOUBLE = 6;
+
+    private static final byte FLOAT = 7;
+
+    private static final byte SHORT = 8;
+
+    private static final byte BYTE = 9;
+
+    private static final byte BOOLEAN = 10;
+
+    private static final byte CHARACTER = 11;
+
+    private static final byte ENTRY = 12;
+
+    static final byte COMPRESSED = 13;
+
+    private static final int FIRST_CODEC_TAG = 128;
+
+    /**
+     * The number of ids available to registered codecs.
+     */
+    public static final int MAXIMUM_CODECS = 128;
+
+    private static final int MAXIMUM_RETAINED_BUFFER = 64 * 1024;
+
+    private static final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(() -> new Buffer(true));
+
+    private static final ValueCodecs sharedInstance = new ValueCodecs();
+
+
+    private final Map<Class<?>, Registration<?>> registrationsByType;
+
+    private final AtomicReferenceArray<Registration<?>> registrationsById;
+
+    @Nullable
+    private volatile DictionaryCompressionConfig compression;
+
+    @Nullable
+    private final ConcurrentMap<String, ValueCodecs> codecsByCacheName;
+
+    @Nullable
+    private final DictionaryCompressor compressor;
+
+
+    /**
+     * Create a new ValueCodecs instance with no codecs registered.
+     */
+    public ValueCodecs() {
+        this.registrationsByType = new ConcurrentHashMap<>();
+        this.registrationsById = new AtomicReferenceArray<>(MAXIMUM_CODECS);
+        this.codecsByCacheName = new ConcurrentHashMap<>();
+        this.compressor = null;
+    }
+
+    /**
+     * Create the codecs of one cache, sharing the registered codecs of the given instance.
+     */
+    private ValueCodecs(ValueCodecs parent, DictionaryCompressor compressor) {
+        this.registrationsByType = parent.registrationsByType;
+        this.registrationsById = parent.registrationsById;
+        this.codecsByCacheName = null;
+        this.compressor = compressor;
+    }
+
+
+    /**
+     * Return the instance the caches of this package use unless configured
+     * otherwise; codecs registered with it apply to all of them.
+     */
+    public static ValueCodecs getSharedInstance() {
+        return sharedInstance;
+    }
+
+
+    /**
+     * Register a codec for the values of the given class. Subclasses are not
+     * covered, and the built-in forms take precedence over registered codecs.
+     * @param type the exact class of the values
+     * @param id the id identifying the codec in encoded values, between
+     * {@code 0} and {@link #MAXIMUM_CODECS} (exclusive)
+     * @param codec the codec
+     * @throws IllegalArgumentException if the id is taken by a codec for another class
+     */
+    public <T> void register(Class<T> type, int id, ValueCodec<T> codec) {
+        Assert.notNull(type, "Type must not be null");
+        Assert.notNull(codec, "ValueCodec must not be null");
+        Assert.isTrue(id >= 0 && id < MAXIMUM_CODECS, "id must be between 0 and " + (MAXIMUM_CODECS - 1));
+        synchronized (this.registrationsById) {
+            putRegistration(type, id, new Registration<>(type, id, codec));
+        }
+    }
+
+    private void putRegistration(Class<?> type, int id, Registration<?> registration) {
+        Registration<?> existing = this.registrationsById.get(id);
+        if (existing != null && existing.type != type) {
+            throw new IllegalArgumentException("Codec id " + id + " is already registered for " + existing.type);
+        }
+        Registration<?> previous = this.registrationsByType.get(type);
+        if (previous != null && previous.id != id) {
+            this.registrationsById.set(previous.id, null);
+        }
+        this.registrationsById.set(id, registration);
+        this.registrationsByType.put(type, registration);
+    }
+
+    /**
+     * Specify the compression of the values of the instances returned by
+     * {@link #forCache}, or {@code null} for none. Applies to the caches
+     * created afterwards. Default is none.
+     */
+    public void setCompression(@Nullable DictionaryCompressionConfig compression) {
+        Assert.state(this.codecsByCacheName != null, "Compression is configured on the codecs of all caches, not on those of one");
+        this.compression = compression;
+    }
+
+    /**
+     * Return the codecs for the values of the cache of the given name: a
+     * per-cache instance sharing the registered codecs of this one if
+     * compression is configured, or else this instance. The same instance is
+     * returned for the same name, so that the tiers of a cache still share it.
+     */
+    public ValueCodecs forCache(String cacheName) {
+        DictionaryCompressionConfig compression = this.compression;
+        if (compression == null || this.codecsByCacheName == null) {
+            return this;
+        }
+        return this.codecsByCacheName.computeIfAbsent(cacheName,
+                name -> new ValueCodecs(this, new DictionaryCompressor(name, compression)));
+    }
+
+    /**
+     * Sample values anew to train the next version of the dictionary of this
+     * per-cache instance; a no-op without compression.
+     * @see DictionaryCompressionConfig#setMaximumDictionaries
+     */
+    public void retrainDictionary() {
+        if (this.compressor != null) {
+            this.compressor.retrain();
+        }
+    }
+
+    /**
+     * Return whether the values encoded by this instance still decode after a
+     * restart, which is the case unless they are compressed with dictionaries
+     * kept in memory only.
+     * @see DictionaryCompressionConfig#setDictionaryDirectory
+     */
+    public boolean isPersistent() {
+        DictionaryCompressionConfig compression = this.compression;
+        if (this.compressor != null) {
+            return this.compressor.isPersistent();
+        }
+        return (compression == null || compression.getDictionaryDirectory() != null);
+    }
+
+    /**
+     * Return the version of the current dictionary of this per-cache instance,
+     * or {@code 0} if none has been trained.
+     */
+    public int getDictionaryVersion() {
+        return (this.compressor != null ? this.compressor.getDictionaryVersion() : 0);
+    }
+
+    /**
+     * Return the ratio of the uncompressed size to the compressed size of the
+     * values this per-cache instance has compressed, or {@code 1.0} if none.
+     */
+    public double getCompressionRatio() {
+        return (this.compressor != null ? this.compressor.getCompressionRatio() : 1.0);
+    }
+
+    /**
+     * Encode the given store value.
+     * @throws IllegalArgumentException if the value cannot be encoded
+     */
+    public byte[] encode(Object value) {
+        // the most common forms are sized exactly, without going through the buffer
+        if (value instanceof byte[]) {
+            return tagged(BYTES, (byte[]) value);
+        }
+        if (value instanceof String) {
+            return compress(tagged(STRING, ((String) value).getBytes(StandardCharsets.UTF_8)));
+        }
+        Buffer buffer = acquireBuffer();
+        try {
+            write(value, buffer.out);
+            return compress(buffer.toByteArray());
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Failed to encode object of type: " + value.getClass(), ex);
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Decode a store value.
+     * @throws IllegalArgumentException if the bytes cannot be decoded
+     */
+    public Object decode(byte[] bytes) {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decode a store value from the given range of bytes.
+     * @throws IllegalArgumentException if the bytes cannot be decoded
+     */
+    public Object decode(byte[] bytes, int offset, int length) {
+        Assert.isTrue(length > 0, "Encoded value must not be empty");
+        int start = offset + 1;
+        int size = length - 1;
+        int tag = bytes[offset] & 0xff;
+        switch (tag) {
+            case SERIALIZED:
+                return javaDeserialize(bytes, start, size);
+            case BYTES:
+                return Arrays.copyOfRange(bytes, start, start + size);
+            case NULL:
+                return NullValue.INSTANCE;
+            case STRING:
+                return new String(bytes, start, size, StandardCharsets.UTF_8);
+            case INTEGER:
+                return (int) getLong(bytes, start, 4);
+            case LONG:
+                return getLong(bytes, start, 8);
+            case DOUBLE:
+                return Double.longBitsToDouble(getLong(bytes, start, 8));
+            case FLOAT:
+                return Float.intBitsToFloat((int) getLong(bytes, start, 4));
+            case SHORT:
+                return (short) getLong(bytes, start, 2);
+            case BYTE:
+                return bytes[start];
+            case BOOLEAN:
+                return bytes[start] != 0;
+            case CHARACTER:
+                return (char) getLong(bytes, start, 2);
+            case ENTRY:
+                return new CacheEntry(decode(bytes, start + 24, size - 24),
+                        getLong(bytes, start, 8), getLong(bytes, start + 8, 8), getLong(bytes, start + 16, 8));
+            case COMPRESSED:
+                if (this.compressor == null) {
+                    throw new IllegalArgumentException("Compressed value outside of the codecs of a cache");
+                }
+                byte[] encoded = this.compressor.decompress(bytes, offset, length);
+                if (encoded[0] == COMPRESSED) {
+                    throw new IllegalArgumentException("Corrupt compressed value");
+                }
+                return decode(encoded, 0, encoded.length);
+            default:
+                return decodeRegistered(tag, bytes, start, size);
+        }
+    }
+
+    private void write(Object value, DataOutputStream out) throws IOException {
+        if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.write((byte[]) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.write(((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof NullValue) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character) value);
+        } else if (value instanceof CacheEntry && ((CacheEntry) value).getValue() != null) {
+            CacheEntry entry = (CacheEntry) value;
+            out.writeByte(ENTRY);
+            out.writeLong(entry.getWriteTime());
+            out.writeLong(entry.getStaleTime());
+            out.writeLong(entry.getExpireTime());
+            write(entry.getValue(), out);
+        } else {
+            Registration<?> registration = this.registrationsByType.get(value.getClass());
+            if (registration != null) {
+                out.writeByte(FIRST_CODEC_TAG + registration.id);
+                registration.encode(value, out);
+            } else {
+                out.writeByte(SERIALIZED);
+                ObjectOutputStream objectOut = new ObjectOutputStream(out);
+                objectOut.writeObject(value);
+                objectOut.flush();
+            }
+        }
+    }
+
+    private byte[] compress(byte[] encoded) {
+        return (this.compressor != null ? this.compressor.compress(encoded) : encoded);
+    }
+
+    private Object decodeRegistered(int tag, byte[] bytes, int offset, int length) {
+        Registration<?> registration = (tag >= FIRST_CODEC_TAG ?
+                this.registrationsById.get(tag - FIRST_CODEC_TAG) : null);
+        if (registration == null) {
+            throw new IllegalArgumentException("No codec registered for tag " + tag);
+        }
+        try {
+            return registration.codec.decode(new DataInputStream(new ByteArrayInputStream(bytes, offset, length)));
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Failed to decode object of type: " + registration.type, ex);
+        }
+    }
+
+    private static Object javaDeserialize(byte[] bytes, int offset, int length) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+            return in.readObject();
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Failed to deserialize object", ex);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException("Failed to deserialize object type", ex);
+        }
+    }
+
+    private static byte[] tagged(byte tag, byte[] raw) {
+        byte[] bytes = new byte[raw.length + 1];
+        bytes[0] = tag;
+        System.arraycopy(raw, 0, bytes, 1, raw.length);
+        return bytes;
+    }
+
+    private static long getLong(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value << 8) | (bytes[i] & 0xffL);
+        }
+        return value;
+    }
+
+    private static Buffer acquireBuffer() {
+        Buffer buffer = buffers.get();
+        if (buffer.inUse) {
+            // a codec encoding nested values through this class
+            return new Buffer(false);
+        }
+        buffer.inUse = true;
+        return buffer;
+    }
+
+    private static void releaseBuffer(Buffer buffer) {
+        if (!buffer.pooled) {
+            return;
+        }
+        if (buffer.capacity() > MAXIMUM_RETAINED_BUFFER) {
+            buffers.remove();
+        } else {
+            buffer.reset();
+            buffer.inUse = false;
+        }
+    }
+
+
+    /**
+     * A growable buffer, with a data output writing into it.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        final DataOutputStream out = new DataOutputStream(this);
+
+        final boolean pooled;
+
+        boolean inUse;
+
+        Buffer(boolean pooled) {
+            super(256);
+            this.pooled = pooled;
+        }
+
+        int capacity() {
+            return this.buf.length;
+        }
+    }
+
+
+    /**
+     * A codec registered for a class under an id.
+     */
+    private static final class Registration<T> {
+
+        final Class<T> type;
+
+        final int id;
+
+        final ValueCodec<T> codec;
+
+        Registration(Class<T> type, int id, ValueCodec<T> codec) {
+            this.type = type;
+            this.id = id;
+            this.codec = codec;
+        }
+
+        void encode(Object value, DataOutputStream out) throws IOException {
+            this.codec.encode(this.type.cast(value), out);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package io.geewit.cache.support;
+
+import org.springframework.lang.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A read-only view of a cached byte array value, e.g. a slice of a
+ * memory-mapped {@link DiskCache} segment, which the cache will not reclaim
+ * before the lease is closed.
+ *
+ * <p>The buffer can be handed to a parser or written to a channel as is;
+ * it must not be used after {@link #close()}. Closing a lease more than once
+ * has no effect.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ * @see LeasingCache
+ */
+public final class ValueLease implements AutoCloseable {
+
+    private final ByteBuffer buffer;
+
+    @Nullable
+    private final Runnable release;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+
+    /**
+     * Create a new lease.
+     * @param buffer the read-only buffer of the value, from position to limit
+     * @param release the callback releasing the storage of the value, if any
+     */
+    public ValueLease(ByteBuffer buffer, @Nullable Runnable release) {
+        this.buffer = buffer;
+        this.release = release;
+    }
+
+
+    /**
+     * Return the read-only buffer of the value, from its position to its limit.
+     */
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * Release the value to the cache.
+     */
+    @Override
+    public void close() {
+        if (this.closed.compareAndSet(false, true) && this.release != null) {
+            this.release.run();
+        }
+    }
+
+    /**
+     * Return whether this lease has been closed.
+     */
+    public boolean isClosed() {
+        return this.closed.get();
+    }
+}
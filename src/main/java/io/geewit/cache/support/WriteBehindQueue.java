@@ -0,0 +1,252 @@
+package io.geewit.cache.support;
+
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Pending writes of a {@link CacheTierConfig.WriteMode#WRITE_BEHIND write-behind}
+ * tier, merged per key so that only the latest put or evict of a key is applied.
+ *
+ * <p>Writes are flushed in batches, either once {@code batchSize} keys are
+ * pending or every {@code flushInterval}, by the scheduler handed to
+ * {@link #start}. Without a scheduler, a full batch is flushed by the writing
+ * thread. A {@link BatchCache} tier is written in one call per batch. Once
+ * {@code maxPending} keys are queued, writes of further keys go straight to the
+ * tier, without waiting for a running flush. Only one flush runs at a time, and
+ * a write stays pending until it has been applied, so that it is read in the
+ * meantime and that a newer write of its key is queued behind it; this keeps
+ * the writes of a key in order.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+final class WriteBehindQueue {
+
+    /**
+     * Marker for a pending eviction.
+     */
+    static final Object EVICTED = new Object();
+
+
+    private final CacheTier tier;
+
+    private final int batchSize;
+
+    private final int maxPending;
+
+    private final long flushIntervalMillis;
+
+    private final ConcurrentMap<Object, Object> pending = new ConcurrentHashMap<>();
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    @Nullable
+    private volatile ScheduledExecutorService scheduler;
+
+    @Nullable
+    private ScheduledFuture<?> periodicFlush;
+
+
+    WriteBehindQueue(CacheTier tier, CacheTierConfig config) {
+        this.tier = tier;
+        this.batchSize = config.getWriteBehindBatchSize();
+        this.maxPending = config.getWriteBehindMaxPending();
+        this.flushIntervalMillis = config.getWriteBehindFlushInterval().toMillis();
+    }
+
+
+    /**
+     * Start flushing on the given scheduler, periodically and whenever a batch is full.
+     */
+    synchronized void start(ScheduledExecutorService scheduler) {
+        if (this.periodicFlush != null) {
+            this.periodicFlush.cancel(false);
+        }
+        this.scheduler = scheduler;
+        this.periodicFlush = scheduler.scheduleWithFixedDelay(
+                this::flushAll, this.flushIntervalMillis, this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the pending write of the given key: its value,
+     * {@link #EVICTED}, or {@code null} if there is none.
+     */
+    @Nullable
+    Object pending(Object key) {
+        return this.pending.get(key);
+    }
+
+    /**
+     * Pass the key of every pending put to the given consumer.
+     */
+    void forEachPendingPut(Consumer<Object> consumer) {
+        for (Map.Entry<Object, Object> entry : this.pending.entrySet()) {
+            if (entry.getValue() != EVICTED) {
+                consumer.accept(entry.getKey());
+            }
+        }
+    }
+
+    void put(Object key, Object value) {
+        enqueue(key, value);
+    }
+
+    void evict(Object key) {
+        enqueue(key, EVICTED);
+    }
+
+    /**
+     * Drop all pending writes and clear the tier.
+     */
+    void clear() {
+        this.flushLock.lock();
+        try {
+            this.pending.clear();
+            this.tier.clearNow();
+        } finally {
+            this.flushLock.unlock();
+        }
+    }
+
+    /**
+     * Write all pending entries, waiting for a running flush to finish first.
+     */
+    void drain() {
+        this.flushLock.lock();
+        try {
+            while (!this.pending.isEmpty()) {
+                flushBatch(Integer.MAX_VALUE);
+            }
+        } finally {
+            this.flushLock.unlock();
+        }
+    }
+
+    int size() {
+        return this.pending.size();
+    }
+
+    private void enqueue(Object key, Object operation) {
+        if (this.pending.size() >= this.maxPending && !this.pending.containsKey(key)) {
+            // no flush is writing the key, it not being pending, so there is no
+            // need to wait for a running one; a write of the key queued meanwhile
+            // is superseded instead
+            if (this.pending.replace(key, operation) == null) {
+                apply(key, operation);
+            }
+            return;
+        }
+        this.pending.put(key, operation);
+        if (this.pending.size() >= this.batchSize) {
+            requestFlush();
+        }
+    }
+
+    private void requestFlush() {
+        ScheduledExecutorService scheduler = this.scheduler;
+        if (scheduler == null) {
+            flush(this.batchSize);
+            return;
+        }
+        if (this.flushRequested.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    this.flushRequested.set(false);
+                    flush(this.batchSize);
+                    if (this.pending.size() >= this.batchSize) {
+                        requestFlush();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                this.flushRequested.set(false);
+                flush(this.batchSize);
+            }
+        }
+    }
+
+    private void flushAll() {
+        flush(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Write up to {@code maxEntries} pending entries, unless another flush is running.
+     */
+    private void flush(int maxEntries) {
+        if (this.flushLock.tryLock()) {
+            try {
+                flushBatch(maxEntries);
+            } finally {
+                this.flushLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write up to {@code maxEntries} pending entries, in calls of up to
+     * {@code batchSize} puts and evictions each.
+     */
+    private void flushBatch(int maxEntries) {
+        Map<Object, Object> puts = new LinkedHashMap<>();
+        List<Object> evictions = new ArrayList<>();
+        int written = 0;
+        for (Map.Entry<Object, Object> entry : this.pending.entrySet()) {
+            if (written >= maxEntries) {
+                break;
+            }
+            if (entry.getValue() == EVICTED) {
+                evictions.add(entry.getKey());
+            } else {
+                puts.put(entry.getKey(), entry.getValue());
+            }
+            written++;
+            if (puts.size() + evictions.size() >= this.batchSize) {
+                write(puts, evictions);
+            }
+        }
+        write(puts, evictions);
+    }
+
+    /**
+     * Apply the given puts and evictions and clear them from the pending writes,
+     * a newer write of one of their keys staying queued for the next run.
+     */
+    private void write(Map<Object, Object> puts, List<Object> evictions) {
+        if (!puts.isEmpty()) {
+            this.tier.putAllNow(puts);
+            for (Map.Entry<Object, Object> entry : puts.entrySet()) {
+                this.pending.remove(entry.getKey(), entry.getValue());
+            }
+            puts.clear();
+        }
+        if (!evictions.isEmpty()) {
+            this.tier.evictAllNow(evictions);
+            for (Object key : evictions) {
+                this.pending.remove(key, EVICTED);
+            }
+            evictions.clear();
+        }
+    }
+
+    private void apply(Object key, Object operation) {
+        if (operation == EVICTED) {
+            this.tier.evictNow(key);
+        } else {
+            this.tier.putNow(key, operation);
+        }
+    }
+}
@@ -17,6 +17,12 @@ import org.springframework.lang.Nullable;
  */
 public abstract class AbstractValueAdaptingCache implements Cache {
 
+    /**
+     * Shared wrapper for cached {@code null} values, which are immutable and
+     * therefore need no fresh wrapper per hit.
+     */
+    private static final Cache.ValueWrapper NULL_VALUE_WRAPPER = new SimpleValueWrapper(null);
+
     private final boolean allowNullValues;
 
 
@@ -99,12 +105,17 @@ public abstract class AbstractValueAdaptingCache implements Cache {
      * Wrap the given store value with a {@link SimpleValueWrapper}, also going
      * through {@link #fromStoreValue} conversion. Useful for {@link #get(Object)}
      * and {@link #putIfAbsent(Object, Object)} implementations.
+     * <p>Cached {@code null} values share a single wrapper instance.
      * @param storeValue the original value
      * @return the wrapped value
      */
     @Nullable
     protected Cache.ValueWrapper toValueWrapper(@Nullable Object storeValue) {
-        return (storeValue != null ? new SimpleValueWrapper(fromStoreValue(storeValue)) : null);
+        if (storeValue == null) {
+            return null;
+        }
+        Object userValue = fromStoreValue(storeValue);
+        return (userValue != null ? new SimpleValueWrapper(userValue) : NULL_VALUE_WRAPPER);
     }
 
 
@@ -0,0 +1,129 @@
+package io.geewit.cache.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link CacheSnapshot}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class CacheSnapshotTests {
+
+    private File directory;
+
+    private File file;
+
+
+    @Before
+    public void createDirectory() throws IOException {
+        this.directory = Files.createTempDirectory("snapshots").toFile();
+        this.file = new File(this.directory, "cache.snapshot");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileSystemUtils.deleteRecursively(this.directory);
+    }
+
+
+    @Test
+    public void entriesRoundTrip() throws IOException {
+        Map<String, List<CacheSnapshot.Entry>> snapshot = new LinkedHashMap<>();
+        snapshot.put("users", Arrays.asList(entry("a", "1"), entry("b", null)));
+        snapshot.put("orders", Collections.singletonList(entry("c", "3")));
+        CacheSnapshot.write(this.file, snapshot);
+        assertFalse(new File(this.file.getPath() + ".tmp").exists());
+
+        Map<String, List<CacheSnapshot.Entry>> read = CacheSnapshot.read(this.file);
+        assertEquals(Arrays.asList("users", "orders"), new ArrayList<>(read.keySet()));
+        List<CacheSnapshot.Entry> users = read.get("users");
+        assertEquals(2, users.size());
+        assertArrayEquals("a".getBytes(), users.get(0).key);
+        assertArrayEquals("1".getBytes(), users.get(0).value);
+        assertArrayEquals("b".getBytes(), users.get(1).key);
+        assertNull(users.get(1).value);
+        assertArrayEquals("3".getBytes(), read.get("orders").get(0).value);
+    }
+
+    @Test
+    public void corruptSnapshotIsRefused() throws IOException {
+        CacheSnapshot.write(this.file, Collections.singletonMap("users",
+                Collections.singletonList(entry("a", "1"))));
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            raf.seek(raf.length() - 10);
+            raf.write(raf.read() ^ 0xff);
+        }
+        try {
+            CacheSnapshot.read(this.file);
+            fail("Read a corrupt snapshot");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void otherFileIsRefused() throws IOException {
+        Files.write(this.file.toPath(), "not a snapshot".getBytes());
+        try {
+            CacheSnapshot.read(this.file);
+            fail("Read a file that is no snapshot");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void restartedManagerWarmsFirstTier() throws InterruptedException {
+        CompositeCacheManager manager = newManager(new ConcurrentMapCacheManager());
+        manager.getCache("users").put("a", "1");
+        manager.getCache("users").put("b", "2");
+        manager.stop();
+        assertTrue(this.file.isFile());
+
+        ConcurrentMapCacheManager l1 = new ConcurrentMapCacheManager();
+        CompositeCacheManager restarted = newManager(l1);
+        restarted.getCache("users");
+        restarted.start();
+        Cache users = l1.getCache("users");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (users.get("a") == null || users.get("b") == null) {
+            assertTrue("First tier not warmed", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals("1", users.get("a").get());
+        assertEquals("2", users.get("b").get());
+        assertFalse(this.file.exists());
+        restarted.stop();
+    }
+
+
+    private CompositeCacheManager newManager(ConcurrentMapCacheManager l1) {
+        CompositeCacheManager manager = new CompositeCacheManager(l1, new ConcurrentMapCacheManager());
+        manager.setSnapshotFile(this.file);
+        manager.setSnapshotValues(true);
+        manager.afterPropertiesSet();
+        return manager;
+    }
+
+    private static CacheSnapshot.Entry entry(String key, String value) {
+        return new CacheSnapshot.Entry(key.getBytes(), (value != null ? value.getBytes() : null));
+    }
+}
@@ -0,0 +1,114 @@
+package io.geewit.cache.support;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link CacheTier}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class CacheTierTests {
+
+    private CacheTierConfig config;
+
+    private FailingCache cache;
+
+
+    @Before
+    public void createCache() {
+        this.config = new CacheTierConfig();
+        this.config.setCircuitBreakerEnabled(true);
+        this.config.setMinimumCalls(2);
+        this.config.setFailureRateThreshold(0.5);
+        this.config.setOpenDuration(Duration.ofMinutes(1));
+        this.cache = new FailingCache();
+    }
+
+
+    @Test
+    public void failedPutEvictsSupersededValue() {
+        CacheTier tier = new CacheTier(0, this.cache, this.config);
+        tier.put("a", "1");
+        this.cache.failPuts = true;
+        tier.put("a", "2");
+        assertNull(this.cache.get("a"));
+        assertEquals(1, tier.getErrorCount());
+    }
+
+    @Test
+    public void refusedPutEvictsSupersededValue() {
+        CacheTier tier = new CacheTier(0, this.cache, this.config);
+        tier.put("a", "1");
+        this.cache.failPuts = true;
+        tier.put("b", "1");
+        tier.put("c", "1");
+        assertEquals(CircuitBreaker.State.OPEN, tier.getCircuitBreaker().getState());
+
+        this.cache.failPuts = false;
+        tier.put("a", "2");
+        assertNull(this.cache.get("a"));
+        assertEquals(CircuitBreaker.State.OPEN, tier.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void evictingAbsentKeyKeepsOthersInMembershipFilter() {
+        this.config.setCircuitBreakerEnabled(false);
+        this.config.setMembershipFilterEnabled(true);
+        CacheTier tier = new CacheTier(0, new ScannableMapCache(), this.config);
+        assertTrue(tier.rebuildMembershipFilter());
+        // keys of the same hash code share all their counters
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        tier.put("Aa", "1");
+        tier.evict("BB");
+        assertEquals("1", tier.read("Aa"));
+
+        tier.evict("Aa");
+        assertNull(tier.read("Aa"));
+        assertEquals(1, tier.getFilteredReadCount());
+    }
+
+
+    /**
+     * A cache whose puts fail on demand.
+     */
+    private static class FailingCache extends ConcurrentMapCache {
+
+        volatile boolean failPuts;
+
+        FailingCache() {
+            super("test");
+        }
+
+        @Override
+        public void put(Object key, Object value) {
+            if (this.failPuts) {
+                throw new IllegalStateException("Put failed");
+            }
+            super.put(key, value);
+        }
+    }
+
+
+    /**
+     * A cache whose keys can be scanned.
+     */
+    private static class ScannableMapCache extends ConcurrentMapCache implements ScannableCache {
+
+        ScannableMapCache() {
+            super("test");
+        }
+
+        @Override
+        public void scanKeys(Consumer<Object> consumer) {
+            getNativeCache().keySet().forEach(consumer);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package io.geewit.cache.support;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class CircuitBreakerTests {
+
+    private static final long OPEN_MILLIS = 50L;
+
+    private CircuitBreaker breaker;
+
+
+    @Before
+    public void createBreaker() {
+        CacheTierConfig config = new CacheTierConfig();
+        config.setMinimumCalls(2);
+        config.setFailureRateThreshold(0.5);
+        config.setOpenDuration(Duration.ofMillis(OPEN_MILLIS));
+        config.setHalfOpenCalls(2);
+        this.breaker = new CircuitBreaker("test", config);
+    }
+
+
+    @Test
+    public void opensAtFailureRateAndRefusesCalls() {
+        trip();
+        assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+        assertEquals(CircuitBreaker.NO_PERMIT, this.breaker.tryAcquire());
+        assertEquals(1, this.breaker.getRejectedCallCount());
+    }
+
+    @Test
+    public void closesOnceAllProbesSucceed() throws InterruptedException {
+        trip();
+        Thread.sleep(OPEN_MILLIS);
+        long first = this.breaker.tryAcquire();
+        long second = this.breaker.tryAcquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+        // no more probes than configured, however often asked
+        for (int i = 0; i < 10; i++) {
+            assertEquals(CircuitBreaker.NO_PERMIT, this.breaker.tryAcquire());
+        }
+        this.breaker.onSuccess(first, 0L);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+        this.breaker.onSuccess(second, 0L);
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+        assertEquals(0, this.breaker.getCallCount());
+    }
+
+    @Test
+    public void failedProbeReopens() throws InterruptedException {
+        trip();
+        Thread.sleep(OPEN_MILLIS);
+        long probe = this.breaker.tryAcquire();
+        this.breaker.onError(probe, 0L);
+        assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+        assertEquals(CircuitBreaker.NO_PERMIT, this.breaker.tryAcquire());
+    }
+
+    @Test
+    public void callLetThroughWhileClosedIsNoProbe() throws InterruptedException {
+        long closed = this.breaker.tryAcquire();
+        trip();
+        Thread.sleep(OPEN_MILLIS);
+        long first = this.breaker.tryAcquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+
+        this.breaker.onError(closed, 0L);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+        this.breaker.onSuccess(closed, 0L);
+        this.breaker.onSuccess(first, 0L);
+        assertEquals("Call of the closed breaker counted as a probe",
+                CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+        this.breaker.onSuccess(this.breaker.tryAcquire(), 0L);
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+    }
+
+    @Test
+    public void probeNotCompletingInTimeReopens() throws InterruptedException {
+        trip();
+        Thread.sleep(OPEN_MILLIS);
+        long lost = this.breaker.tryAcquire();
+        this.breaker.onSuccess(this.breaker.tryAcquire(), 0L);
+        Thread.sleep(OPEN_MILLIS);
+
+        assertEquals(CircuitBreaker.NO_PERMIT, this.breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+        // the lost probe turning up later counts for nothing
+        this.breaker.onSuccess(lost, 0L);
+        assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+
+        Thread.sleep(OPEN_MILLIS);
+        assertNotEquals(CircuitBreaker.NO_PERMIT, this.breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+    }
+
+    @Test
+    public void unguardedCallsCountOnlyWhileClosed() throws InterruptedException {
+        this.breaker.onUnguardedError(0L);
+        this.breaker.onUnguardedError(0L);
+        assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+        Thread.sleep(OPEN_MILLIS);
+        long probe = this.breaker.tryAcquire();
+        this.breaker.onUnguardedError(0L);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+        this.breaker.onSuccess(probe, 0L);
+        this.breaker.onSuccess(this.breaker.tryAcquire(), 0L);
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+    }
+
+
+    private void trip() {
+        this.breaker.onError(this.breaker.tryAcquire(), 0L);
+        this.breaker.onError(this.breaker.tryAcquire(), 0L);
+    }
+}
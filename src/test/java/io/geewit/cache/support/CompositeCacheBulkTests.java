@@ -0,0 +1,193 @@
+package io.geewit.cache.support;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import org.springframework.cache.support.NullValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the bulk operations of {@link CompositeCache}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class CompositeCacheBulkTests {
+
+    private Cache l1;
+
+    private BatchMapCache l2;
+
+    private BatchMapCache l3;
+
+
+    @Before
+    public void createTiers() {
+        this.l1 = new ConcurrentMapCache("l1", false);
+        this.l2 = new BatchMapCache("l2");
+        this.l3 = new BatchMapCache("l3");
+    }
+
+
+    @Test
+    public void getAllReadsEachTierOnceAndBackfills() {
+        CompositeCache cache = newCache(false);
+        this.l1.put("a", "1");
+        this.l2.put("b", "2");
+        this.l3.put("c", "3");
+
+        Map<Object, Object> values = cache.getAll(Arrays.asList("d", "c", "b", "a"));
+        assertEquals(Arrays.asList("c", "b", "a"), new ArrayList<>(values.keySet()));
+        assertEquals("3", values.get("c"));
+        assertEquals("2", values.get("b"));
+        assertEquals("1", values.get("a"));
+        // only the keys missing above go on to each next tier
+        assertEquals(Collections.singletonList(set("d", "c", "b")), this.l2.reads);
+        assertEquals(Collections.singletonList(set("d", "c")), this.l3.reads);
+        assertEquals("2", this.l1.get("b").get());
+        assertEquals("3", this.l1.get("c").get());
+        assertEquals("3", this.l2.get("c").get());
+        assertEquals(1, this.l2.writes);
+    }
+
+    @Test
+    public void getAllLoadsMissingKeysInOneCall() {
+        CompositeCache cache = newCache(false);
+        this.l2.put("a", "1");
+        List<Set<Object>> loads = new ArrayList<>();
+
+        Map<Object, String> values = cache.getAll(Arrays.asList("a", "b", "c"), keys -> {
+            loads.add(new LinkedHashSet<>(keys));
+            Map<Object, String> loaded = new HashMap<>();
+            loaded.put("b", "2");
+            return loaded;
+        });
+        assertEquals(Collections.singletonList(set("b", "c")), loads);
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(values.keySet()));
+        assertEquals("2", values.get("b"));
+        for (Cache tier : Arrays.asList(this.l1, this.l2, this.l3)) {
+            assertEquals("2", tier.get("b").get());
+            assertNull(tier.get("c"));
+        }
+    }
+
+    @Test
+    public void getAllCachesMissingLoadsAsNullIfAllowed() {
+        CompositeCache cache = newCache(true);
+
+        Map<Object, String> values = cache.getAll(Collections.singletonList("a"), keys -> Collections.emptyMap());
+        assertTrue(values.containsKey("a"));
+        assertNull(values.get("a"));
+        assertEquals(NullValue.INSTANCE, this.l2.lookupRaw("a"));
+        assertTrue(cache.getAll(Collections.singletonList("a")).containsKey("a"));
+    }
+
+    @Test
+    public void getAllDropsBackfillOfKeyWrittenMeanwhile() {
+        CompositeCache cache = newCache(false);
+        this.l2.put("a", "old");
+        this.l2.onRead = () -> cache.put("a", "new");
+
+        assertEquals("old", cache.getAll(Collections.singletonList("a")).get("a"));
+        assertEquals("new", this.l1.get("a").get());
+        assertEquals("new", this.l2.get("a").get());
+    }
+
+    @Test
+    public void putAllAndEvictAllWriteEachBatchTierOnce() {
+        CompositeCache cache = newCache(false);
+        Map<Object, Object> entries = new HashMap<>();
+        entries.put("a", "1");
+        entries.put("b", "2");
+
+        cache.putAll(entries);
+        assertEquals(1, this.l2.writes);
+        assertEquals(1, this.l3.writes);
+        for (Cache tier : Arrays.asList(this.l1, this.l2, this.l3)) {
+            assertEquals("1", tier.get("a").get());
+            assertEquals("2", tier.get("b").get());
+        }
+
+        cache.evictAll(Arrays.asList("a", "b"));
+        assertEquals(1, this.l2.evictions);
+        assertEquals(1, this.l3.evictions);
+        for (Cache tier : Arrays.asList(this.l1, this.l2, this.l3)) {
+            assertNull(tier.get("a"));
+            assertNull(tier.get("b"));
+        }
+    }
+
+
+    private CompositeCache newCache(boolean allowNullValues) {
+        return new CompositeCache("test", Arrays.asList(this.l1, this.l2, this.l3), allowNullValues);
+    }
+
+    private static Set<Object> set(Object... keys) {
+        return new LinkedHashSet<>(Arrays.asList(keys));
+    }
+
+
+    /**
+     * A {@link BatchCache} recording its bulk calls.
+     */
+    private static class BatchMapCache extends ConcurrentMapCache implements BatchCache {
+
+        final List<Set<Object>> reads = new ArrayList<>();
+
+        int writes;
+
+        int evictions;
+
+        Runnable onRead;
+
+        BatchMapCache(String name) {
+            super(name, true);
+        }
+
+        @Override
+        public Map<Object, Object> getAll(Collection<?> keys) {
+            this.reads.add(new LinkedHashSet<>(keys));
+            Map<Object, Object> values = new HashMap<>();
+            for (Object key : keys) {
+                Object value = lookup(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            if (this.onRead != null) {
+                Runnable onRead = this.onRead;
+                this.onRead = null;
+                onRead.run();
+            }
+            return values;
+        }
+
+        @Override
+        public void putAll(Map<?, ?> entries) {
+            this.writes++;
+            entries.forEach(this::put);
+        }
+
+        @Override
+        public void evictAll(Collection<?> keys) {
+            this.evictions++;
+            keys.forEach(this::evict);
+        }
+
+        Object lookupRaw(Object key) {
+            return lookup(key);
+        }
+    }
+}
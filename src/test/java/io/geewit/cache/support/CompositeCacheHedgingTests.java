@@ -0,0 +1,114 @@
+package io.geewit.cache.support;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the hedged reads of {@link CompositeCache}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class CompositeCacheHedgingTests {
+
+    private final Cache l1 = new ConcurrentMapCache("l1");
+
+    private final SlowMapCache l2 = new SlowMapCache("l2");
+
+    private final Cache l3 = new ConcurrentMapCache("l3");
+
+
+    @After
+    public void releaseReads() {
+        this.l2.release.countDown();
+    }
+
+
+    @Test
+    public void slowReadIsHedgedWithNextTier() throws InterruptedException {
+        CompositeCache cache = newCache(1.0);
+        learnLatency(cache);
+        this.l2.slow = true;
+        this.l3.put("key", "value");
+
+        long start = System.nanoTime();
+        assertEquals("value", cache.get("key").get());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, cache.getTiers().get(1).getHedgeCount());
+    }
+
+    @Test
+    public void hedgesStayWithinRatio() throws InterruptedException {
+        CompositeCache cache = newCache(0.0);
+        learnLatency(cache);
+        this.l2.slow = true;
+        this.l2.put("key", "primary");
+        this.l3.put("key", "hedge");
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            this.l2.release.countDown();
+        }).start();
+
+        assertEquals("primary", cache.get("key").get());
+        assertEquals(0, cache.getTiers().get(1).getHedgeCount());
+    }
+
+
+    private CompositeCache newCache(double maxHedgeRatio) {
+        CacheTierConfig hedged = new CacheTierConfig();
+        hedged.setHedgedReads(true);
+        hedged.setHedgePercentile(0.5);
+        hedged.setMaxHedgeRatio(maxHedgeRatio);
+        return new CompositeCache("test", Arrays.asList(this.l1, this.l2, this.l3),
+                Arrays.asList(null, hedged, null), true);
+    }
+
+    /**
+     * Read the hedged tier often enough for a hedge delay, and let the
+     * window roll over so that it applies.
+     */
+    private static void learnLatency(CompositeCache cache) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            cache.get("warm-" + i);
+        }
+        Thread.sleep(1100);
+    }
+
+
+    /**
+     * A cache whose reads block until released once switched to slow.
+     */
+    private static class SlowMapCache extends ConcurrentMapCache {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        volatile boolean slow;
+
+        SlowMapCache(String name) {
+            super(name);
+        }
+
+        @Override
+        public Object lookup(Object key) {
+            if (this.slow) {
+                try {
+                    this.release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.lookup(key);
+        }
+    }
+}
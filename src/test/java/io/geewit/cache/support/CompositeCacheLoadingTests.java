@@ -0,0 +1,107 @@
+package io.geewit.cache.support;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the single-flight loading of {@link CompositeCache}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class CompositeCacheLoadingTests {
+
+    private Cache l1;
+
+    private Cache l2;
+
+    private CompositeCache cache;
+
+
+    @Before
+    public void createCache() {
+        this.l1 = new ConcurrentMapCache("l1");
+        this.l2 = new ConcurrentMapCache("l2");
+        this.cache = new CompositeCache("test", Arrays.asList(this.l1, this.l2), true);
+    }
+
+
+    @Test
+    public void concurrentCallersShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> this.cache.get("key", () -> {
+                    loads.incrementAndGet();
+                    loading.countDown();
+                    assertTrue(release.await(10, TimeUnit.SECONDS));
+                    return "value";
+                })));
+            }
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            release.countDown();
+            for (Future<String> future : futures) {
+                assertEquals("value", future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, loads.get());
+        assertEquals("value", this.l1.get("key").get());
+        assertEquals("value", this.l2.get("key").get());
+    }
+
+    @Test
+    public void lowerTierHitIsNotLoaded() {
+        this.l2.put("key", "stored");
+        assertEquals("stored", this.cache.get("key", () -> {
+            throw new IllegalStateException("Loaded a cached key");
+        }));
+        assertEquals("stored", this.l1.get("key").get());
+    }
+
+    @Test
+    public void nullIsLoadedOnce() {
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            assertNull(this.cache.get("key", () -> {
+                loads.incrementAndGet();
+                return null;
+            }));
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void failedLoadIsRetriedByNextCaller() {
+        try {
+            this.cache.get("key", () -> {
+                throw new IllegalStateException("Expected");
+            });
+            fail("Load did not fail");
+        } catch (Cache.ValueRetrievalException ex) {
+            assertEquals("Expected", ex.getCause().getMessage());
+        }
+        assertNull(this.cache.get("key"));
+        assertEquals("value", this.cache.get("key", () -> "value"));
+    }
+}
@@ -0,0 +1,102 @@
+package io.geewit.cache.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the per-tier read budgets of {@link CompositeCache}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class CompositeCacheReadBudgetTests {
+
+    private Cache l1;
+
+    private SlowMapCache l2;
+
+    private Cache l3;
+
+    private CompositeCache cache;
+
+
+    @Before
+    public void createCache() {
+        this.l1 = new ConcurrentMapCache("l1");
+        this.l2 = new SlowMapCache("l2");
+        this.l3 = new ConcurrentMapCache("l3");
+        CacheTierConfig budgeted = new CacheTierConfig();
+        budgeted.setReadTimeout(Duration.ofMillis(50));
+        this.cache = new CompositeCache("test", Arrays.asList(this.l1, this.l2, this.l3),
+                Arrays.asList(null, budgeted, null), true);
+    }
+
+    @After
+    public void releaseReads() {
+        this.l2.release.countDown();
+    }
+
+
+    @Test
+    public void slowTierIsSkippedOnceBudgetIsSpent() {
+        this.l3.put("key", "value");
+        long start = System.nanoTime();
+        assertEquals("value", this.cache.get("key").get());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, this.cache.getTiers().get(1).getTimeoutCount());
+        assertEquals("value", this.l1.get("key").get());
+    }
+
+    @Test
+    public void loaderRunsOnceBudgetIsSpent() {
+        assertEquals("loaded", this.cache.get("key", () -> "loaded"));
+        assertTrue(this.cache.getTiers().get(1).getTimeoutCount() > 0);
+        assertEquals("loaded", this.l1.get("key").get());
+    }
+
+    @Test
+    public void lateValueIsBackfilledIntoTiersAbove() throws InterruptedException {
+        this.l2.put("key", "late");
+        assertNull(this.cache.get("key"));
+        this.l2.release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (this.l1.get("key") == null) {
+            assertTrue("Late value not backfilled", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals("late", this.l1.get("key").get());
+    }
+
+
+    /**
+     * A cache whose reads block until released.
+     */
+    private static class SlowMapCache extends ConcurrentMapCache {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        SlowMapCache(String name) {
+            super(name);
+        }
+
+        @Override
+        public Object lookup(Object key) {
+            try {
+                this.release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return super.lookup(key);
+        }
+    }
+}
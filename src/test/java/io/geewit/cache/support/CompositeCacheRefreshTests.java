@@ -0,0 +1,98 @@
+package io.geewit.cache.support;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the stale-while-revalidate reads of {@link CompositeCache}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class CompositeCacheRefreshTests {
+
+    private static final long SOFT_MILLIS = 50L;
+
+    private CompositeCache cache;
+
+
+    @Before
+    public void createCache() {
+        Cache l1 = new ConcurrentMapCache("l1");
+        Cache l2 = new ConcurrentMapCache("l2");
+        this.cache = new CompositeCache("test", Arrays.asList(l1, l2), true);
+        this.cache.setSoftTimeToLive(Duration.ofMillis(SOFT_MILLIS));
+        this.cache.setHardTimeToLive(Duration.ofMillis(SOFT_MILLIS * 4));
+        this.cache.setRefreshExecutor(Runnable::run);
+    }
+
+
+    @Test
+    public void staleEntryIsServedAndReloaded() throws InterruptedException {
+        this.cache.put("key", "old");
+        Thread.sleep(SOFT_MILLIS);
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals("old", this.cache.get("key", () -> {
+            loads.incrementAndGet();
+            return "new";
+        }));
+        assertEquals(1, loads.get());
+        assertEquals(1, this.cache.getStaleHitCount());
+        assertEquals("new", this.cache.get("key", () -> "newer"));
+    }
+
+    @Test
+    public void staleEntryIsMissOfPlainGet() throws InterruptedException {
+        this.cache.put("key", "old");
+        assertEquals("old", this.cache.get("key").get());
+        Thread.sleep(SOFT_MILLIS);
+        assertNull(this.cache.get("key"));
+    }
+
+    @Test
+    public void expiredEntryIsLoadedInline() throws InterruptedException {
+        this.cache.put("key", "old");
+        Thread.sleep(SOFT_MILLIS * 4);
+        assertEquals("new", this.cache.get("key", () -> "new"));
+        assertEquals(0, this.cache.getStaleHitCount());
+    }
+
+    @Test
+    public void failedReloadKeepsStaleEntry() throws InterruptedException {
+        this.cache.put("key", "old");
+        Thread.sleep(SOFT_MILLIS);
+        assertEquals("old", this.cache.get("key", () -> {
+            throw new IllegalStateException("Expected");
+        }));
+        assertEquals(1, this.cache.getRefreshFailureCount());
+        assertEquals("old", this.cache.get("key", () -> "new"));
+    }
+
+    @Test
+    public void reloadsBeyondLimitAreSkipped() throws InterruptedException {
+        List<Runnable> queued = new ArrayList<>();
+        this.cache.setRefreshExecutor(queued::add);
+        this.cache.setMaxConcurrentRefreshes(1);
+        this.cache.put("a", "old");
+        this.cache.put("b", "old");
+        Thread.sleep(SOFT_MILLIS);
+
+        assertEquals("old", this.cache.get("a", () -> "new"));
+        assertEquals("old", this.cache.get("a", () -> "new"));
+        assertEquals("old", this.cache.get("b", () -> "new"));
+        assertEquals(1, queued.size());
+        assertEquals(1, this.cache.getSkippedRefreshCount());
+        queued.get(0).run();
+        assertEquals("new", this.cache.get("a", () -> "newer"));
+    }
+}
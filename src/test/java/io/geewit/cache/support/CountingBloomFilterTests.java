@@ -0,0 +1,69 @@
+package io.geewit.cache.support;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link CountingBloomFilter}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class CountingBloomFilterTests {
+
+    private final CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+
+
+    @Test
+    public void addedKeysMightBeContained() {
+        for (int i = 0; i < 1000; i++) {
+            this.filter.add("key-" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(this.filter.mightContain("key-" + i));
+        }
+    }
+
+    @Test
+    public void falsePositiveRateStaysNearTarget() {
+        for (int i = 0; i < 1000; i++) {
+            this.filter.add("key-" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (this.filter.mightContain("absent-" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void removedKeyIsAbsent() {
+        this.filter.add("a");
+        this.filter.add("a");
+        this.filter.remove("a");
+        assertTrue(this.filter.mightContain("a"));
+        this.filter.remove("a");
+        assertFalse(this.filter.mightContain("a"));
+    }
+
+    @Test
+    public void removingAbsentKeyIsNoOp() {
+        this.filter.add("a");
+        this.filter.remove("b");
+        assertTrue(this.filter.mightContain("a"));
+    }
+
+    @Test
+    public void saturatedCountersAreNeverDecremented() {
+        for (int i = 0; i < 20; i++) {
+            this.filter.add("a");
+        }
+        for (int i = 0; i < 20; i++) {
+            this.filter.remove("a");
+        }
+        assertTrue(this.filter.mightContain("a"));
+    }
+}
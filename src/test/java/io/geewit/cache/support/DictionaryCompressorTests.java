@@ -0,0 +1,119 @@
+package io.geewit.cache.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link DictionaryCompressor}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class DictionaryCompressorTests {
+
+    static final int SAMPLE_COUNT = 50;
+
+    private DictionaryCompressionConfig config;
+
+    private File directory;
+
+
+    @Before
+    public void createConfig() throws IOException {
+        this.directory = Files.createTempDirectory("dictionaries").toFile();
+        this.config = new DictionaryCompressionConfig();
+        this.config.setSampleCount(SAMPLE_COUNT);
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileSystemUtils.deleteRecursively(this.directory);
+    }
+
+
+    @Test
+    public void valuesAreCompressedOnceDictionaryIsTrained() {
+        ValueCodecs codecs = codecs();
+        String value = value(-1);
+        assertNotEquals(ValueCodecs.COMPRESSED, codecs.encode(value)[0]);
+        trainDictionary(codecs, 1);
+
+        byte[] encoded = codecs.encode(value);
+        assertEquals(ValueCodecs.COMPRESSED, encoded[0]);
+        assertEquals(value, codecs.decode(encoded));
+        assertTrue(codecs.getCompressionRatio() > 1.0);
+        // byte arrays stay uncompressed, to be leased as they are
+        assertEquals(ValueCodecs.BYTES, codecs.encode(value.getBytes())[0]);
+    }
+
+    @Test
+    public void dictionariesAreReadBackFromDirectory() {
+        this.config.setDictionaryDirectory(this.directory);
+        ValueCodecs codecs = codecs();
+        assertTrue(codecs.isPersistent());
+        trainDictionary(codecs, 1);
+        byte[] encoded = codecs.encode(value(-1));
+
+        ValueCodecs restarted = codecs();
+        assertEquals(1, restarted.getDictionaryVersion());
+        assertEquals(value(-1), restarted.decode(encoded));
+    }
+
+    @Test
+    public void compressionWithoutDirectoryIsNotPersistent() {
+        assertTrue(new ValueCodecs().forCache("test").isPersistent());
+        assertFalse(codecs().isPersistent());
+    }
+
+    @Test
+    public void valueOfDroppedDictionaryDoesNotDecode() {
+        this.config.setMaximumDictionaries(1);
+        ValueCodecs codecs = codecs();
+        trainDictionary(codecs, 1);
+        byte[] encoded = codecs.encode(value(-1));
+        codecs.retrainDictionary();
+        trainDictionary(codecs, 2);
+
+        assertEquals(value(-2), codecs.decode(codecs.encode(value(-2))));
+        try {
+            codecs.decode(encoded);
+            fail("Decoded a value of a dropped dictionary");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+
+    private ValueCodecs codecs() {
+        ValueCodecs codecs = new ValueCodecs();
+        codecs.setCompression(this.config);
+        return codecs.forCache("test");
+    }
+
+    /**
+     * Encode values until the given version of the dictionary is trained.
+     */
+    static void trainDictionary(ValueCodecs codecs, int version) {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            codecs.encode(value(i));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (codecs.getDictionaryVersion() < version) {
+            assertTrue("No dictionary trained", System.nanoTime() < deadline);
+            Thread.yield();
+        }
+    }
+
+    static String value(int i) {
+        return "{\"id\":" + i + ",\"name\":\"user-" + i + "\",\"email\":\"user-" + i +
+                "@example.com\",\"roles\":[\"reader\",\"writer\"],\"active\":true}";
+    }
+}
@@ -0,0 +1,303 @@
+package io.geewit.cache.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link DiskCache}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class DiskCacheTests {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    /**
+     * The offset of the clean flag in the header of the index file.
+     */
+    private static final int INDEX_CLEAN_OFFSET = 12;
+
+    private File directory;
+
+    private DiskCache cache;
+
+
+    @Before
+    public void createDirectory() throws IOException {
+        this.directory = Files.createTempDirectory("disk-cache").toFile();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        if (this.cache != null) {
+            this.cache.close();
+        }
+        FileSystemUtils.deleteRecursively(this.directory);
+    }
+
+
+    @Test
+    public void reopenAfterCleanCloseLoadsIndex() throws IOException {
+        this.cache = open();
+        this.cache.put("a", "first");
+        this.cache.put("b", "second");
+        this.cache.close();
+
+        this.cache = open();
+        assertFalse(this.cache.isIndexRebuilt());
+        assertEquals("first", value("a"));
+        assertEquals("second", value("b"));
+        assertEquals(2, this.cache.getEntryCount());
+    }
+
+    @Test
+    public void recoveryCutsSegmentAtTornRecord() throws IOException {
+        this.cache = open();
+        this.cache.put("a", "first");
+        this.cache.put("b", "second");
+        this.cache.put("c", "third");
+        crash();
+        corrupt(segmentFiles().get(0), "second".getBytes(StandardCharsets.UTF_8));
+
+        this.cache = open();
+        assertTrue(this.cache.isIndexRebuilt());
+        assertEquals("first", value("a"));
+        assertNull(this.cache.get("b"));
+        // records behind the torn one are dropped with it
+        assertNull(this.cache.get("c"));
+        assertEquals(1, this.cache.getEntryCount());
+
+        // appends go on from the cut, without stale records showing up behind them
+        this.cache.put("d", "fourth");
+        crash();
+        this.cache = open();
+        assertEquals("first", value("a"));
+        assertEquals("fourth", value("d"));
+        assertNull(this.cache.get("b"));
+        assertNull(this.cache.get("c"));
+    }
+
+    @Test
+    public void compactionCopiesLiveRecordsAndTombstones() throws IOException {
+        this.cache = open();
+        this.cache.put("evicted", payload(0));
+        int live = fillSegment("live", 2);
+        // the tombstone lands in the second segment, the record it hides stays in the first
+        this.cache.evict("evicted");
+        int dead = fillSegment("dead", 3);
+        for (int i = 0; i < dead; i++) {
+            this.cache.put("dead-" + i, payload(i + 1));
+        }
+
+        assertTrue(this.cache.compact() > 0);
+        assertTrue(this.cache.getCompactionCount() > 0);
+        assertNull(this.cache.get("evicted"));
+        assertLive(live, dead);
+
+        crash();
+        this.cache = open();
+        assertTrue(this.cache.isIndexRebuilt());
+        assertNull("Evicted key brought back by replaying its older record", this.cache.get("evicted"));
+        assertLive(live, dead);
+    }
+
+    @Test
+    public void evictionKeepsProbeSequencesIntact() throws IOException {
+        this.cache = open();
+        // below 3/4 of the initial index, so that long probe runs form in one table
+        int count = 700;
+        for (int i = 0; i < count; i++) {
+            this.cache.put("key-" + i, i);
+        }
+        Random random = new Random(42);
+        Set<Integer> evicted = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            if (random.nextBoolean()) {
+                assertTrue(this.cache.evictIfPresent("key-" + i));
+                evicted.add(i);
+            }
+        }
+        assertEntries(count, evicted);
+        for (int i = 0; i < count; i += 3) {
+            if (evicted.remove(i)) {
+                this.cache.put("key-" + i, i);
+            }
+        }
+        assertEntries(count, evicted);
+        assertEquals(count - evicted.size(), this.cache.getEntryCount());
+
+        this.cache.close();
+        this.cache = open();
+        assertFalse(this.cache.isIndexRebuilt());
+        assertEntries(count, evicted);
+    }
+
+    @Test
+    public void leasedSegmentIsDeletedOnceReleased() throws IOException {
+        this.cache = open();
+        byte[] leased = payload(7);
+        this.cache.put("leased", leased);
+        int live = fillSegment("live", 2);
+        File first = segmentFiles().get(0);
+        ValueLease lease = this.cache.lease("leased");
+        assertNotNull(lease);
+
+        // leave nothing live in the first segment
+        this.cache.put("leased", payload(8));
+        for (int i = 0; i < live; i++) {
+            this.cache.put("live-" + i, payload(i + 1));
+        }
+        assertTrue(this.cache.compact() > 0);
+        assertArrayEquals(payload(8), (byte[]) value("leased"));
+        assertTrue("Leased segment deleted", first.exists());
+        ByteBuffer buffer = lease.getBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertArrayEquals(leased, bytes);
+
+        lease.close();
+        assertFalse("Released segment kept", first.exists());
+    }
+
+
+    @Test
+    public void refusesCodecsCompressingWithoutDictionaryDirectory() {
+        this.cache = open();
+        ValueCodecs codecs = new ValueCodecs();
+        codecs.setCompression(new DictionaryCompressionConfig());
+        try {
+            this.cache.setValueCodecs(codecs.forCache("test"));
+            fail("Accepted dictionaries lost on restart");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void undecodableValueIsEvictedAsMiss() {
+        DictionaryCompressionConfig compression = new DictionaryCompressionConfig();
+        compression.setSampleCount(DictionaryCompressorTests.SAMPLE_COUNT);
+        compression.setMaximumDictionaries(1);
+        compression.setDictionaryDirectory(this.directory);
+        ValueCodecs codecs = new ValueCodecs();
+        codecs.setCompression(compression);
+        codecs = codecs.forCache("test");
+        this.cache = open();
+        this.cache.setValueCodecs(codecs);
+        DictionaryCompressorTests.trainDictionary(codecs, 1);
+        this.cache.put("a", DictionaryCompressorTests.value(-1));
+        codecs.retrainDictionary();
+        DictionaryCompressorTests.trainDictionary(codecs, 2);
+
+        CacheTier tier = new CacheTier(0, this.cache, new CacheTierConfig());
+        assertNull(tier.read("a"));
+        assertEquals(0, tier.getErrorCount());
+        assertEquals(0, this.cache.getEntryCount());
+        assertEquals("loaded", this.cache.get("a", () -> "loaded"));
+    }
+
+
+    private DiskCache open() {
+        return new DiskCache("test", this.directory, 64L * SEGMENT_SIZE, SEGMENT_SIZE, false);
+    }
+
+    /**
+     * Close the cache, then mark its index as not closed cleanly, as if the
+     * process had died: the next open replays the segments.
+     */
+    private void crash() throws IOException {
+        this.cache.close();
+        this.cache = null;
+        try (RandomAccessFile index = new RandomAccessFile(new File(this.directory, "index.dat"), "rw")) {
+            index.seek(INDEX_CLEAN_OFFSET);
+            index.writeInt(0);
+        }
+    }
+
+    /**
+     * Flip a byte of the first occurrence of the given bytes in the given file.
+     */
+    private static void corrupt(File file, byte[] bytes) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        for (int i = 0; i + bytes.length <= content.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(content, i, i + bytes.length), bytes)) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.seek(i);
+                    raf.write(content[i] ^ 0xff);
+                }
+                return;
+            }
+        }
+        fail("No such bytes in " + file);
+    }
+
+    private List<File> segmentFiles() {
+        File[] files = this.directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        assertNotNull(files);
+        List<File> sorted = new ArrayList<>(Arrays.asList(files));
+        sorted.sort(null);
+        return sorted;
+    }
+
+    /**
+     * Put keys of the given prefix until the log has the given number of segments.
+     * @return the number of keys put
+     */
+    private int fillSegment(String prefix, int segments) {
+        int count = 0;
+        while (this.cache.getSegmentCount() < segments) {
+            this.cache.put(prefix + "-" + count, payload(count));
+            count++;
+        }
+        return count;
+    }
+
+    private void assertLive(int live, int dead) {
+        for (int i = 0; i < live; i++) {
+            assertArrayEquals(payload(i), (byte[]) value("live-" + i));
+        }
+        for (int i = 0; i < dead; i++) {
+            assertArrayEquals(payload(i + 1), (byte[]) value("dead-" + i));
+        }
+    }
+
+    private void assertEntries(int count, Set<Integer> evicted) {
+        for (int i = 0; i < count; i++) {
+            if (evicted.contains(i)) {
+                assertNull(this.cache.get("key-" + i));
+            } else {
+                assertEquals(i, value("key-" + i));
+            }
+        }
+    }
+
+    private Object value(Object key) {
+        Cache.ValueWrapper wrapper = this.cache.get(key);
+        assertNotNull("No value for " + key, wrapper);
+        return wrapper.get();
+    }
+
+    private static byte[] payload(int seed) {
+        byte[] bytes = new byte[200];
+        Arrays.fill(bytes, (byte) seed);
+        return bytes;
+    }
+}
@@ -0,0 +1,74 @@
+package io.geewit.cache.support;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link KeyGenerations}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class KeyGenerationsTests {
+
+    private final KeyGenerations generations = new KeyGenerations();
+
+
+    @Test
+    public void stampStaysCurrentWithoutWrites() {
+        long stamp = this.generations.stamp("a");
+        assertTrue(this.generations.isCurrent("a", stamp));
+        assertTrue(this.generations.isCurrent("a", stamp));
+    }
+
+    @Test
+    public void writeInvalidatesEarlierStamp() {
+        long stamp = this.generations.stamp("a");
+        this.generations.beginWrite("a");
+        assertFalse(this.generations.isCurrent("a", stamp));
+        this.generations.endWrite("a");
+        assertFalse(this.generations.isCurrent("a", stamp));
+        assertTrue(this.generations.isCurrent("a", this.generations.stamp("a")));
+    }
+
+    @Test
+    public void stampTakenDuringWriteIsNeverCurrent() {
+        this.generations.beginWrite("a");
+        long stamp = this.generations.stamp("a");
+        assertFalse(this.generations.isCurrent("a", stamp));
+        this.generations.endWrite("a");
+        assertFalse(this.generations.isCurrent("a", stamp));
+    }
+
+    @Test
+    public void overlappingWritesInvalidateUntilBothEnd() {
+        this.generations.beginWrite("a");
+        this.generations.beginWrite("a");
+        this.generations.endWrite("a");
+        assertFalse(this.generations.isCurrent("a", this.generations.stamp("a")));
+        this.generations.endWrite("a");
+        assertTrue(this.generations.isCurrent("a", this.generations.stamp("a")));
+    }
+
+    @Test
+    public void stampAllTakesStampOfEveryKey() {
+        long[] stamps = this.generations.stampAll();
+        this.generations.beginWrite("a");
+        this.generations.endWrite("a");
+        assertFalse(this.generations.isCurrent("a", this.generations.stamp(stamps, "a")));
+        assertEquals(this.generations.stamp("a"), this.generations.stamp(this.generations.stampAll(), "a"));
+    }
+
+    @Test
+    public void writeAllInvalidatesEveryStamp() {
+        long a = this.generations.stamp("a");
+        long b = this.generations.stamp(42);
+        this.generations.beginWriteAll();
+        assertFalse(this.generations.isCurrent("a", this.generations.stamp("a")));
+        this.generations.endWriteAll();
+        assertFalse(this.generations.isCurrent("a", a));
+        assertFalse(this.generations.isCurrent(42, b));
+        assertTrue(this.generations.isCurrent("a", this.generations.stamp("a")));
+    }
+}
@@ -0,0 +1,121 @@
+package io.geewit.cache.support;
+
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link LocationHints}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class LocationHintsTests {
+
+    private final LocationHints hints = new LocationHints(64);
+
+
+    @Test
+    public void hintIsSetAndRemoved() {
+        assertEquals(0, this.hints.get("a"));
+        this.hints.set("a", 2);
+        assertEquals(2, this.hints.get("a"));
+        this.hints.set("a", 1);
+        assertEquals(1, this.hints.get("a"));
+        this.hints.remove("a");
+        assertEquals(0, this.hints.get("a"));
+        this.hints.set("a", 2);
+        this.hints.set("a", 0);
+        assertEquals(0, this.hints.get("a"));
+    }
+
+    @Test
+    public void keysOfEqualHashCodeHaveHintsOfTheirOwn() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        this.hints.set("Aa", 1);
+        assertEquals(0, this.hints.get("BB"));
+        this.hints.set("BB", 2);
+        assertEquals(1, this.hints.get("Aa"));
+        assertEquals(2, this.hints.get("BB"));
+
+        long collidingLong = (1L << 32) | 1L;
+        assertEquals(Long.valueOf(0L).hashCode(), Long.valueOf(collidingLong).hashCode());
+        this.hints.set(0L, 1);
+        assertEquals(0, this.hints.get(collidingLong));
+    }
+
+    @Test
+    public void fullBucketKeepsTableAtCapacity() {
+        for (int i = 0; i < 10000; i++) {
+            this.hints.set("key-" + i, 1);
+        }
+        assertEquals(64, this.hints.capacity());
+        int hinted = 0;
+        for (int i = 0; i < 10000; i++) {
+            hinted += this.hints.get("key-" + i);
+        }
+        assertEquals(64, hinted);
+        this.hints.clear();
+        assertEquals(0, this.hints.get("key-9999"));
+    }
+
+    @Test
+    public void hintedHitDoesNotOverwriteSkippedTierHoldingKey() {
+        Cache l1 = new ConcurrentMapCache("l1");
+        Cache l2 = new ConcurrentMapCache("l2");
+        Cache l3 = new ConcurrentMapCache("l3");
+        CompositeCache cache = new CompositeCache("test", Arrays.asList(l1, l2, l3), true);
+        cache.setLocationHintCapacity(64);
+        CollidingKey rejected = new CollidingKey("rejected");
+        CollidingKey key = new CollidingKey("key");
+        cache.setAdmissionPolicy(new AdmissionPolicy() {
+            @Override
+            public void record(Object key) {
+            }
+
+            @Override
+            public boolean admit(Object key) {
+                return !rejected.equals(key);
+            }
+        });
+        // the rejected key, kept out of the first tier, leaves a hint for the second
+        l3.put(rejected, "1");
+        assertEquals("1", cache.get(rejected).get());
+        assertNull(l1.get(rejected));
+        assertEquals("1", l2.get(rejected).get());
+
+        l1.put(key, "new");
+        l2.put(key, "old");
+        cache.get(key);
+        assertEquals(1, cache.getHintedReadCount());
+        assertEquals("new", l1.get(key).get());
+        assertEquals("new", cache.get(key).get());
+    }
+
+
+    /**
+     * A key of the same hash code as every other.
+     */
+    private static final class CollidingKey {
+
+        private final String name;
+
+        CollidingKey(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof CollidingKey && ((CollidingKey) other).name.equals(this.name));
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package io.geewit.cache.support;
+
+import org.junit.Test;
+import org.springframework.cache.Cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link OffHeapCache}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class OffHeapCacheTests {
+
+    private static final int SLAB_SIZE = 4096;
+
+
+    @Test
+    public void entriesRoundTrip() {
+        OffHeapCache cache = new OffHeapCache("test", 16 * SLAB_SIZE, SLAB_SIZE, true);
+        cache.put("a", "1");
+        cache.put(42L, 7);
+        cache.put("null", null);
+        assertEquals("1", cache.get("a").get());
+        assertEquals(7, cache.get(42L).get());
+        assertNotNull(cache.get("null"));
+        assertNull(cache.get("null").get());
+        assertNull(cache.get("b"));
+        assertEquals(3, cache.getEntryCount());
+
+        cache.put("a", "2");
+        assertEquals("2", cache.get("a").get());
+        assertTrue(cache.evictIfPresent("a"));
+        assertFalse(cache.evictIfPresent("a"));
+        assertNull(cache.get("a"));
+        cache.clear();
+        assertEquals(0, cache.getEntryCount());
+        assertNull(cache.get(42L));
+    }
+
+    @Test
+    public void entryLargerThanSlabIsRejected() {
+        OffHeapCache cache = new OffHeapCache("test", 4 * SLAB_SIZE, SLAB_SIZE, true);
+        cache.put("large", new byte[SLAB_SIZE]);
+        assertNull(cache.get("large"));
+        assertEquals(1, cache.getRejectionCount());
+    }
+
+    @Test
+    public void entriesAreEvictedWithinCapacity() {
+        OffHeapCache cache = new OffHeapCache("test", 4 * SLAB_SIZE, SLAB_SIZE, true);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key-" + i, "value-" + i);
+        }
+        assertTrue(cache.getAllocatedBytes() <= cache.getCapacity());
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getEntryCount() < 1000);
+        assertEquals("value-999", cache.get("key-999").get());
+        int found = 0;
+        for (int i = 0; i < 1000; i++) {
+            Cache.ValueWrapper wrapper = cache.get("key-" + i);
+            if (wrapper != null) {
+                assertEquals("value-" + i, wrapper.get());
+                found++;
+            }
+        }
+        assertEquals(cache.getEntryCount(), found);
+    }
+
+    @Test
+    public void segmentsFollowSlabsAndProcessors() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        assertEquals(1, new OffHeapCache("test", SLAB_SIZE, SLAB_SIZE, true).getSegmentCount());
+        assertEquals(Integer.highestOneBit(Math.min(processors, 64)),
+                new OffHeapCache("test", 64 * 64, 64, true).getSegmentCount());
+        assertEquals(64, new OffHeapCache("test", 64 * 64 * 64, 64, true).getSegmentCount());
+    }
+
+    @Test
+    public void concurrentReadsAndWritesKeepEntriesIntact() throws Exception {
+        OffHeapCache cache = new OffHeapCache("test", 8 * SLAB_SIZE, SLAB_SIZE, true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 20000; i++) {
+                        int key = random.nextInt(500);
+                        if (random.nextInt(4) == 0) {
+                            cache.put(key, "value-" + key);
+                        } else {
+                            Cache.ValueWrapper wrapper = cache.get(key);
+                            if (wrapper != null) {
+                                assertEquals("value-" + key, wrapper.get());
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(cache.getAllocatedBytes() <= cache.getCapacity());
+    }
+}
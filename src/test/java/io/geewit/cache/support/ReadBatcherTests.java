@@ -0,0 +1,149 @@
+package io.geewit.cache.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ReadBatcher}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class ReadBatcherTests {
+
+    private final BlockingBatchCache cache = new BlockingBatchCache();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private CacheTierConfig config;
+
+
+    @Before
+    public void createConfig() {
+        this.config = new CacheTierConfig();
+        this.config.setReadBatching(true);
+        this.config.setMaxConcurrentReadBatches(1);
+        for (int i = 0; i < 10; i++) {
+            this.cache.put("key-" + i, "value-" + i);
+        }
+    }
+
+    @After
+    public void releaseReads() {
+        this.cache.release.countDown();
+        this.executor.shutdownNow();
+    }
+
+
+    @Test
+    public void loneReadIsSentRightAway() {
+        this.cache.release.countDown();
+        CacheTier tier = new CacheTier(0, this.cache, this.config);
+        assertEquals("value-1", tier.read("key-1"));
+        assertNull(tier.read("absent"));
+        assertEquals(2, tier.getReadBatchCount());
+        assertEquals(2, tier.getBatchedReadCount());
+    }
+
+    @Test
+    public void readsQueuedBehindRunningBatchAreSentTogether() throws Exception {
+        CacheTier tier = new CacheTier(0, this.cache, this.config);
+        Future<Object> first = this.executor.submit(() -> tier.read("key-0"));
+        assertTrue(this.cache.blocked.await(10, TimeUnit.SECONDS));
+        List<Future<Object>> queued = readAll(tier, 1, 5);
+        Thread.sleep(100);
+        this.cache.release.countDown();
+
+        assertEquals("value-0", first.get(10, TimeUnit.SECONDS));
+        for (int i = 0; i < queued.size(); i++) {
+            assertEquals("value-" + (i + 1), queued.get(i).get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(2, tier.getReadBatchCount());
+        assertEquals(6, tier.getBatchedReadCount());
+    }
+
+    @Test
+    public void fullBatchIsSentWithoutWaiting() throws Exception {
+        this.config.setReadBatchMaxSize(2);
+        CacheTier tier = new CacheTier(0, this.cache, this.config);
+        Future<Object> first = this.executor.submit(() -> tier.read("key-0"));
+        assertTrue(this.cache.blocked.await(10, TimeUnit.SECONDS));
+        List<Future<Object>> full = readAll(tier, 1, 2);
+
+        assertEquals("value-1", full.get(0).get(10, TimeUnit.SECONDS));
+        assertEquals("value-2", full.get(1).get(10, TimeUnit.SECONDS));
+        assertFalse(first.isDone());
+        this.cache.release.countDown();
+        assertEquals("value-0", first.get(10, TimeUnit.SECONDS));
+    }
+
+
+    private List<Future<Object>> readAll(CacheTier tier, int from, int count) {
+        List<Future<Object>> futures = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            String key = "key-" + i;
+            futures.add(this.executor.submit(() -> tier.read(key)));
+        }
+        return futures;
+    }
+
+
+    /**
+     * A {@link BatchCache} whose multi-gets of {@code key-0} block until released.
+     */
+    private static class BlockingBatchCache extends ConcurrentMapCache implements BatchCache {
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingBatchCache() {
+            super("batch");
+        }
+
+        @Override
+        public Map<Object, Object> getAll(Collection<?> keys) {
+            if (keys.contains("key-0")) {
+                this.blocked.countDown();
+                try {
+                    this.release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Map<Object, Object> values = new HashMap<>();
+            for (Object key : keys) {
+                Object value = lookup(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public void putAll(Map<?, ?> entries) {
+            entries.forEach(this::put);
+        }
+
+        @Override
+        public void evictAll(Collection<?> keys) {
+            keys.forEach(this::evict);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package io.geewit.cache.support;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link TimerWheel}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class TimerWheelTests {
+
+    /**
+     * Ticks long enough for the wheel's origin and {@link #start} to fall in
+     * the same one, so that deadlines given in ticks from the start are exact.
+     */
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private TimerWheel<Long> wheel;
+
+    private long start;
+
+
+    @Before
+    public void createWheel() {
+        this.wheel = new TimerWheel<>(TICK_NANOS);
+        this.start = System.nanoTime();
+    }
+
+
+    @Test
+    public void timersFallDueAtTheirTickOnEveryLevel() {
+        // first level, the edges of the second and third, and the fourth
+        long[] deadlines = {1, 2, 63, 64, 65, 127, 128, 4095, 4096, 4097, 4160, 262143, 262144, 300000};
+        for (long deadline : deadlines) {
+            this.wheel.schedule(deadline, at(deadline));
+        }
+        assertEquals(deadlines.length, this.wheel.size());
+        for (long deadline : deadlines) {
+            assertEquals("Due before tick " + deadline, Collections.emptyList(), this.wheel.advance(at(deadline - 1)));
+            assertEquals(Collections.singletonList(deadline), this.wheel.advance(at(deadline)));
+        }
+        assertEquals(0, this.wheel.size());
+    }
+
+    @Test
+    public void timersCascadeInDeadlineOrder() {
+        Random random = new Random(42);
+        List<Long> deadlines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            long deadline = 1 + random.nextInt(100000);
+            deadlines.add(deadline);
+            this.wheel.schedule(deadline, at(deadline));
+        }
+        List<Long> due = new ArrayList<>();
+        // advance in uneven steps across cascades of several levels at once
+        for (long tick = 0; tick < 100000; tick += 1 + random.nextInt(5000)) {
+            List<Long> batch = this.wheel.advance(at(tick));
+            for (Long deadline : batch) {
+                assertTrue("Due early: " + deadline + " at " + tick, deadline <= tick);
+            }
+            due.addAll(batch);
+        }
+        due.addAll(this.wheel.advance(at(100000)));
+        for (int i = 1; i < due.size(); i++) {
+            assertTrue("Due out of order: " + due.get(i - 1) + " before " + due.get(i), due.get(i - 1) <= due.get(i));
+        }
+        Collections.sort(deadlines);
+        assertEquals(deadlines, due);
+    }
+
+    @Test
+    public void cancelledTimerIsNotDue() {
+        TimerWheel.Node<Long> cancelled = this.wheel.schedule(5000L, at(5000));
+        this.wheel.schedule(5001L, at(5001));
+        this.wheel.advance(at(4096));
+        assertTrue(this.wheel.cancel(cancelled));
+        assertFalse(this.wheel.cancel(cancelled));
+        assertEquals(1, this.wheel.size());
+        assertEquals(Collections.singletonList(5001L), this.wheel.advance(at(6000)));
+    }
+
+    @Test
+    public void timerOfPastDeadlineIsDueAtNextTick() {
+        this.wheel.advance(at(100));
+        TimerWheel.Node<Long> node = this.wheel.schedule(50L, at(50));
+        assertEquals(Collections.singletonList(50L), this.wheel.advance(at(101)));
+        assertFalse(this.wheel.cancel(node));
+    }
+
+    @Test
+    public void clearCancelsAllTimers() {
+        for (long deadline = 1; deadline < 10000; deadline += 7) {
+            this.wheel.schedule(deadline, at(deadline));
+        }
+        this.wheel.clear();
+        assertEquals(0, this.wheel.size());
+        assertEquals(Collections.emptyList(), this.wheel.advance(at(10000)));
+    }
+
+
+    private long at(long tick) {
+        return this.start + tick * TICK_NANOS;
+    }
+}
@@ -0,0 +1,85 @@
+package io.geewit.cache.support;
+
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link TinyLfuAdmissionPolicy}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class TinyLfuAdmissionPolicyTests {
+
+    private final TinyLfuAdmissionPolicy policy = new TinyLfuAdmissionPolicy(4);
+
+
+    @Test
+    public void everyKeyIsAdmittedWhileFirstTierHasRoom() {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(this.policy.admit("key-" + i));
+        }
+    }
+
+    @Test
+    public void keyIsAdmittedOnlyWhenMoreFrequentThanVictim() {
+        for (int i = 0; i < 4; i++) {
+            this.policy.record("key-" + i);
+            this.policy.admit("key-" + i);
+        }
+        // as frequent as the oldest admission is not enough
+        this.policy.record("rare");
+        assertFalse(this.policy.admit("rare"));
+        this.policy.record("frequent");
+        this.policy.record("frequent");
+        assertTrue(this.policy.admit("frequent"));
+    }
+
+    @Test
+    public void sketchCountsSaturateAndAge() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(15, sketch.frequency("a"));
+        assertEquals(0, sketch.frequency("b"));
+        // the sample period is ten times the expected size
+        for (int i = 0; sketch.frequency("a") == 15 && i < 160; i++) {
+            sketch.increment("key-" + i);
+        }
+        assertEquals(7, sketch.frequency("a"));
+    }
+
+    @Test
+    public void mostFrequentKeysComeFirst() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        sketch.increment("b");
+        sketch.increment("c");
+        sketch.increment("c");
+        assertEquals(Arrays.asList("c", "b"), sketch.mostFrequent(Arrays.asList("a", "b", "c"), 2));
+    }
+
+    @Test
+    public void rejectedKeyIsNotPromoted() {
+        Cache l1 = new ConcurrentMapCache("l1");
+        Cache l2 = new ConcurrentMapCache("l2");
+        CompositeCache cache = new CompositeCache("test", Arrays.asList(l1, l2), true);
+        TinyLfuAdmissionPolicy policy = new TinyLfuAdmissionPolicy(1);
+        cache.setAdmissionPolicy(policy);
+        for (int i = 0; i < 3; i++) {
+            cache.get("hot");
+        }
+        l2.put("hot", "1");
+        assertEquals("1", cache.get("hot").get());
+        assertEquals("1", l1.get("hot").get());
+
+        l2.put("cold", "2");
+        assertEquals("2", cache.get("cold").get());
+        assertNull(l1.get("cold"));
+    }
+}
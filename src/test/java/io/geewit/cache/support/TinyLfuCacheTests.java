@@ -0,0 +1,99 @@
+package io.geewit.cache.support;
+
+import org.junit.Test;
+import org.springframework.cache.Cache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link TinyLfuCache}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class TinyLfuCacheTests {
+
+    private final TinyLfuCache cache = new TinyLfuCache("test", 100, true);
+
+
+    @Test
+    public void entriesRoundTrip() {
+        this.cache.put("a", "1");
+        this.cache.put("null", null);
+        assertEquals("1", this.cache.get("a").get());
+        assertNull(this.cache.get("null").get());
+        assertNull(this.cache.get("b"));
+
+        assertEquals("1", this.cache.putIfAbsent("a", "2").get());
+        this.cache.put("a", "2");
+        assertEquals("2", this.cache.get("a").get());
+        assertTrue(this.cache.evictIfPresent("a"));
+        assertFalse(this.cache.evictIfPresent("a"));
+        this.cache.clear();
+        this.cache.cleanUp();
+        assertEquals(0, this.cache.estimatedSize());
+    }
+
+    @Test
+    public void valueIsLoadedOnce() {
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("value", this.cache.get("key", () -> {
+                loads.incrementAndGet();
+                return "value";
+            }));
+        }
+        assertEquals(1, loads.get());
+        try {
+            this.cache.get("failing", () -> {
+                throw new IllegalStateException("Expected");
+            });
+            fail("Load did not fail");
+        } catch (Cache.ValueRetrievalException expected) {
+        }
+        assertNull(this.cache.get("failing"));
+    }
+
+    @Test
+    public void sizeIsBoundedByMaximum() {
+        for (int i = 0; i < 1000; i++) {
+            this.cache.put("key-" + i, i);
+        }
+        this.cache.cleanUp();
+        assertEquals(100, this.cache.estimatedSize());
+        assertEquals(900, this.cache.getEvictionCount());
+        assertEquals(999, this.cache.get("key-999").get());
+    }
+
+    @Test
+    public void frequentKeysSurviveScan() {
+        for (int i = 0; i < 50; i++) {
+            this.cache.put("hot-" + i, i);
+            for (int read = 0; read < 10; read++) {
+                this.cache.get("hot-" + i);
+            }
+            this.cache.cleanUp();
+        }
+        for (int i = 0; i < 1000; i++) {
+            this.cache.put("scan-" + i, i);
+        }
+        this.cache.cleanUp();
+        for (int i = 0; i < 50; i++) {
+            assertNotNull("Evicted hot-" + i, this.cache.get("hot-" + i));
+        }
+        assertEquals(100, this.cache.estimatedSize());
+    }
+
+    @Test
+    public void hottestKeysComeFirst() {
+        this.cache.put("cold", 0);
+        this.cache.put("hot", 1);
+        for (int i = 0; i < 5; i++) {
+            this.cache.get("hot");
+        }
+        assertEquals(Arrays.asList("hot", "cold"), this.cache.hottestKeys(2));
+    }
+}
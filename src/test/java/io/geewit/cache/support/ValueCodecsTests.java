@@ -0,0 +1,137 @@
+package io.geewit.cache.support;
+
+import org.junit.Test;
+import org.springframework.cache.support.NullValue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ValueCodecs}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class ValueCodecsTests {
+
+    private final ValueCodecs codecs = new ValueCodecs();
+
+
+    @Test
+    public void builtInFormsRoundTrip() {
+        List<Object> values = Arrays.asList("text", "", 42, 42L, 4.2d, 4.2f, (short) 42, (byte) 42,
+                true, 'x', NullValue.INSTANCE, new ArrayList<>(Arrays.asList("a", "b")));
+        for (Object value : values) {
+            assertEquals(value, this.codecs.decode(this.codecs.encode(value)));
+        }
+        CacheEntry entry = (CacheEntry) this.codecs.decode(this.codecs.encode(new CacheEntry("v", 1L, 2L, 3L)));
+        assertEquals("v", entry.getValue());
+        assertEquals(1L, entry.getWriteTime());
+        assertEquals(2L, entry.getStaleTime());
+        assertEquals(3L, entry.getExpireTime());
+    }
+
+    @Test
+    public void byteArraysAreStoredAsTheyAre() {
+        byte[] value = {1, 2, 3};
+        byte[] encoded = this.codecs.encode(value);
+        assertEquals(ValueCodecs.BYTES, encoded[0]);
+        assertArrayEquals(value, Arrays.copyOfRange(encoded, 1, encoded.length));
+        assertArrayEquals(value, (byte[]) this.codecs.decode(encoded));
+    }
+
+    @Test
+    public void rangeOfBytesIsDecoded() {
+        byte[] encoded = this.codecs.encode(42L);
+        byte[] padded = new byte[encoded.length + 4];
+        System.arraycopy(encoded, 0, padded, 2, encoded.length);
+        assertEquals(42L, this.codecs.decode(padded, 2, encoded.length));
+    }
+
+    @Test
+    public void valueLargerThanRetainedBufferRoundTrips() {
+        ArrayList<Integer> value = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            value.add(i);
+        }
+        assertEquals(value, this.codecs.decode(this.codecs.encode(value)));
+        assertEquals(value, this.codecs.decode(this.codecs.encode(value)));
+    }
+
+    @Test
+    public void registeredCodecEncodesItsType() {
+        this.codecs.register(Point.class, 7, new PointCodec());
+        byte[] encoded = this.codecs.encode(new Point(3, 4));
+        assertEquals(9, encoded.length);
+        assertEquals(new Point(3, 4), this.codecs.decode(encoded));
+        try {
+            this.codecs.register(String.class, 7, new ValueCodec<String>() {
+                @Override
+                public void encode(String value, DataOutput out) {
+                }
+
+                @Override
+                public String decode(DataInput in) {
+                    return null;
+                }
+            });
+            fail("Registered a second codec under a taken id");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void valueOfUnregisteredCodecDoesNotDecode() {
+        this.codecs.register(Point.class, 7, new PointCodec());
+        byte[] encoded = this.codecs.encode(new Point(3, 4));
+        try {
+            new ValueCodecs().decode(encoded);
+            fail("Decoded a value of an unregistered codec");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+
+    private static final class Point {
+
+        final int x;
+
+        final int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof Point && ((Point) other).x == this.x && ((Point) other).y == this.y);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.x + this.y;
+        }
+    }
+
+
+    private static final class PointCodec implements ValueCodec<Point> {
+
+        @Override
+        public void encode(Point value, DataOutput out) throws IOException {
+            out.writeInt(value.x);
+            out.writeInt(value.y);
+        }
+
+        @Override
+        public Point decode(DataInput in) throws IOException {
+            return new Point(in.readInt(), in.readInt());
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package io.geewit.cache.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link WriteBehindQueue}.
+ *
+ * @author geewit
+ * @since 2020-07-22
+ */
+public class WriteBehindQueueTests {
+
+    private CacheTierConfig config;
+
+    private ScheduledExecutorService scheduler;
+
+
+    @Before
+    public void createConfig() {
+        this.config = new CacheTierConfig();
+        this.config.setWriteBehindBatchSize(100);
+        this.config.setWriteBehindMaxPending(1000);
+    }
+
+    @After
+    public void shutdownScheduler() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void writesAreMergedPerKey() {
+        Cache cache = new ConcurrentMapCache("test");
+        WriteBehindQueue queue = newQueue(cache);
+        queue.put("a", "1");
+        queue.put("a", "2");
+        queue.put("b", "1");
+        queue.evict("b");
+        assertEquals(2, queue.size());
+        assertEquals("2", queue.pending("a"));
+        assertSame(WriteBehindQueue.EVICTED, queue.pending("b"));
+        assertNull(cache.get("a"));
+
+        cache.put("b", "0");
+        queue.drain();
+        assertEquals(0, queue.size());
+        assertEquals("2", cache.get("a").get());
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void fullBatchIsFlushedByWritingThreadWithoutScheduler() {
+        this.config.setWriteBehindBatchSize(2);
+        Cache cache = new ConcurrentMapCache("test");
+        WriteBehindQueue queue = newQueue(cache);
+        queue.put("a", "1");
+        assertNull(cache.get("a"));
+        queue.put("b", "2");
+        assertEquals(0, queue.size());
+        assertEquals("1", cache.get("a").get());
+        assertEquals("2", cache.get("b").get());
+    }
+
+    @Test
+    public void writesBeyondMaxPendingGoStraightToTier() {
+        this.config.setWriteBehindMaxPending(2);
+        Cache cache = new ConcurrentMapCache("test");
+        WriteBehindQueue queue = newQueue(cache);
+        queue.put("a", "1");
+        queue.put("b", "1");
+        queue.put("c", "1");
+        assertEquals("1", cache.get("c").get());
+        assertNull(queue.pending("c"));
+        // pending keys are still merged
+        queue.put("a", "2");
+        assertEquals("2", queue.pending("a"));
+        assertNull(cache.get("a"));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void writeStaysPendingUntilApplied() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Cache cache = new ConcurrentMapCache("test") {
+            @Override
+            public void put(Object key, Object value) {
+                if ("1".equals(value)) {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.put(key, value);
+            }
+        };
+        WriteBehindQueue queue = newQueue(cache);
+        queue.put("a", "1");
+        Thread flusher = new Thread(queue::drain);
+        flusher.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        // being written, the value is still read from the queue
+        assertEquals("1", queue.pending("a"));
+        // a newer write is queued behind it rather than dropped by it
+        queue.put("a", "2");
+        release.countDown();
+        flusher.join(5000);
+        assertFalse(flusher.isAlive());
+        assertEquals(0, queue.size());
+        assertEquals("2", cache.get("a").get());
+    }
+
+    @Test
+    public void writeBeyondMaxPendingDoesNotWaitForFlush() throws Exception {
+        this.config.setWriteBehindMaxPending(1);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Cache cache = new ConcurrentMapCache("test") {
+            @Override
+            public void put(Object key, Object value) {
+                if ("a".equals(key)) {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.put(key, value);
+            }
+        };
+        WriteBehindQueue queue = newQueue(cache);
+        queue.put("a", "1");
+        Thread flusher = new Thread(queue::drain);
+        flusher.start();
+        try {
+            assertTrue(writing.await(5, TimeUnit.SECONDS));
+            Thread writer = new Thread(() -> queue.put("b", "1"));
+            writer.start();
+            writer.join(5000);
+            assertFalse("Write blocked by the running flush", writer.isAlive());
+            assertEquals("1", cache.get("b").get());
+        } finally {
+            release.countDown();
+            flusher.join(5000);
+        }
+        assertEquals("1", cache.get("a").get());
+    }
+
+    @Test
+    public void batchTierIsWrittenInOneCallPerBatch() {
+        this.config.setWriteBehindBatchSize(3);
+        BatchMapCache cache = new BatchMapCache();
+        WriteBehindQueue queue = newQueue(cache);
+        queue.put("a", "1");
+        queue.evict("b");
+        queue.evict("c");
+        assertEquals(1, cache.writes);
+        assertEquals(1, cache.evictions);
+        assertEquals("1", cache.get("a").get());
+        assertEquals(0, queue.size());
+
+        for (int i = 0; i < 5; i++) {
+            queue.put(i, i);
+        }
+        queue.drain();
+        assertEquals(3, cache.writes);
+        assertEquals(4, cache.get(4).get());
+    }
+
+    @Test
+    public void pendingWritesAreFlushedPeriodically() throws InterruptedException {
+        this.config.setWriteBehindFlushInterval(Duration.ofMillis(10));
+        Cache cache = new ConcurrentMapCache("test");
+        WriteBehindQueue queue = newQueue(cache);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        queue.start(this.scheduler);
+        queue.put("a", "1");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (queue.size() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, queue.size());
+        assertEquals("1", cache.get("a").get());
+    }
+
+
+    private WriteBehindQueue newQueue(Cache cache) {
+        return new WriteBehindQueue(new CacheTier(0, cache, new CacheTierConfig()), this.config);
+    }
+
+
+    /**
+     * A {@link BatchCache} counting its bulk writes.
+     */
+    private static class BatchMapCache extends ConcurrentMapCache implements BatchCache {
+
+        int writes;
+
+        int evictions;
+
+        BatchMapCache() {
+            super("test");
+        }
+
+        @Override
+        public Map<Object, Object> getAll(Collection<?> keys) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void putAll(Map<?, ?> entries) {
+            this.writes++;
+            entries.forEach(this::put);
+        }
+
+        @Override
+        public void evictAll(Collection<?> keys) {
+            this.evictions++;
+            keys.forEach(this::evict);
+        }
+    }
+}